@@ -0,0 +1,415 @@
+/**
+ * Copyright (c) 2012, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * -----------------------------------------------------------------
+ *
+ *
+ * CoreBenchmark
+ *
+ * Measures the parts of the emulator that dominate simulation speed:
+ * emulation of the bundled firmwares, instruction emulation, event queue
+ * insert/pop, IO segment dispatch, CC2420 SPI byte handling and ELF
+ * parsing. Each benchmark is warmed up before it is measured and every
+ * measurement is repeated. The mean, the standard deviation, the fastest
+ * and slowest round and the first warmup round are reported.
+ *
+ * The "emulate" benchmark runs the unmodified blink firmwares for a fixed
+ * emulated time. They spend most of that time in low power mode, so the
+ * "loop" benchmark also emulates a CPU bound loop that is written into
+ * the flash of each platform and started from the reset vector.
+ *
+ * Usage: java se.sics.mspsim.benchmark.CoreBenchmark [emulate|loop|events|io|cc2420|elf...]
+ */
+
+package se.sics.mspsim.benchmark;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import se.sics.mspsim.chip.CC2420;
+import se.sics.mspsim.cli.CommandHandler;
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.Memory;
+import se.sics.mspsim.core.Memory.AccessMode;
+import se.sics.mspsim.core.Memory.AccessType;
+import se.sics.mspsim.core.StateChangeListener;
+import se.sics.mspsim.core.USARTListener;
+import se.sics.mspsim.core.USARTSource;
+import se.sics.mspsim.platform.GenericNode;
+import se.sics.mspsim.platform.sky.SkyNode;
+import se.sics.mspsim.util.ConfigManager;
+import se.sics.mspsim.util.ELF;
+
+public class CoreBenchmark {
+
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 10;
+
+  private static final String[][] PLATFORMS = {
+    { "sky", "se.sics.mspsim.platform.sky.SkyNode", "firmware/sky/blink.sky" },
+    { "z1", "se.sics.mspsim.platform.z1.Z1Node", "firmware/z1/blink.z1" },
+    { "wismote", "se.sics.mspsim.platform.wismote.WismoteNode", "firmware/wismote/blink.wismote" }
+  };
+
+  private static final int EMULATED_MILLIS = 2000;
+  private static final int INSTRUCTIONS = 2000000;
+  private static final int IO_OPERATIONS = 2000000;
+  private static final int SPI_TRANSFERS = 200000;
+  private static final int ELF_LOADS = 20;
+  private static final int EVENTS = 64;
+
+  /* Address of the CPU bound loop, in flash on all platforms */
+  private static final int LOOP_ADDRESS = 0x8000;
+  private static final int RESET_VECTOR = 0xfffe;
+  private static final int WDTCTL = -1;
+  private static final int LOOP_START = -2;
+  private static final int RESTART = -3;
+
+  /*
+   * Stops the watchdog and then keeps reading words from RAM, mixing
+   * them with arithmetic and logic instructions and writing the result
+   * back to RAM, with a conditional jump in every iteration.
+   */
+  private static final int[] LOOP = {
+    0x40b2, 0x5a80, WDTCTL,     // mov #0x5a80, &WDTCTL
+    0x4034, 0x1c00,             // mov #0x1c00, r4
+    0x4037, 0x2c00,             // mov #0x2c00, r7
+    0x4038, 0x0400,             // mov #1024, r8
+    0x4435,                     // loop: mov @r4+, r5
+    0x5506,                     // add r5, r6
+    0xe036, 0x1234,             // xor #0x1234, r6
+    0x5606,                     // rla r6
+    0x1006,                     // rrc r6
+    0x4687, 0x0000,             // mov r6, 0(r7)
+    0x5327,                     // incd r7
+    0xf037, 0x2fff,             // and #0x2fff, r7
+    0x9506,                     // cmp r5, r6
+    0x2c01,                     // jhs +1
+    0x5316,                     // inc r6
+    0x8318,                     // dec r8
+    LOOP_START,                 // jnz loop
+    RESTART                     // jmp start
+  };
+
+  /* Sink for values that would otherwise be optimized away */
+  private static long check;
+
+  private static GenericNode createNode(String className, String firmware) throws Exception {
+    GenericNode node = (GenericNode) Class.forName(className).getDeclaredConstructor().newInstance();
+    ConfigManager config = new ConfigManager();
+    config.setProperty("nogui", "true");
+    node.setCommandHandler(new CommandHandler(System.out, System.err));
+    node.loadFirmware(firmware);
+    node.setup(config);
+    return node;
+  }
+
+  private static void report(String name, String unit, long[] warmup, long[] times, long operations) {
+    long min = Long.MAX_VALUE;
+    long max = 0;
+    double total = 0;
+    for (long t : times) {
+      min = Math.min(min, t);
+      max = Math.max(max, t);
+      total += t;
+    }
+    double mean = total / times.length;
+    double variance = 0;
+    for (long t : times) {
+      variance += (t - mean) * (t - mean);
+    }
+    double deviation = Math.sqrt(variance / (times.length - 1));
+    System.out.printf("%-24s %10.2f %s +- %.2f  (min %.2f  max %.2f  warmup %.2f)%n", name,
+        mean / operations, unit, deviation / operations,
+        (double) min / operations, (double) max / operations,
+        (double) warmup[0] / operations);
+  }
+
+  /* Emulates the firmware for the specified number of emulated milliseconds */
+  private static void runFirmware(MSP430 cpu, int millis) {
+    double end = cpu.getTimeMillis() + millis;
+    while (cpu.getTimeMillis() < end) {
+      cpu.stepInstructions(1000);
+    }
+  }
+
+  /* Writes the loop to flash and lets the CPU start it after reset */
+  private static void loadLoop(MSP430 cpu) {
+    int address = LOOP_ADDRESS;
+    for (int word : LOOP) {
+      if (word == WDTCTL) {
+        word = cpu.config.watchdogOffset;
+      } else if (word == LOOP_START) {
+        word = 0x2000 | (((LOOP_ADDRESS + 18 - address - 2) >> 1) & 0x3ff);
+      } else if (word == RESTART) {
+        word = 0x3c00 | (((LOOP_ADDRESS - address - 2) >> 1) & 0x3ff);
+      }
+      cpu.memory[address++] = (byte) word;
+      cpu.memory[address++] = (byte) (word >> 8);
+    }
+    cpu.memory[RESET_VECTOR] = (byte) LOOP_ADDRESS;
+    cpu.memory[RESET_VECTOR + 1] = (byte) (LOOP_ADDRESS >> 8);
+    cpu.invalidateInstructionCache();
+  }
+
+  private static void benchmarkFirmware() throws Exception {
+    for (String[] platform : PLATFORMS) {
+      GenericNode node = createNode(platform[1], platform[2]);
+      MSP430 cpu = node.getCPU();
+
+      long[] warmup = new long[WARMUP_ROUNDS];
+      for (int i = 0; i < WARMUP_ROUNDS; i++) {
+        long time = System.nanoTime();
+        runFirmware(cpu, EMULATED_MILLIS);
+        warmup[i] = System.nanoTime() - time;
+      }
+      long[] times = new long[ROUNDS];
+      for (int i = 0; i < ROUNDS; i++) {
+        long time = System.nanoTime();
+        runFirmware(cpu, EMULATED_MILLIS);
+        times[i] = System.nanoTime() - time;
+      }
+      report("emulate " + platform[0], "us/emulated ms", warmup, times, EMULATED_MILLIS * 1000L);
+    }
+  }
+
+  private static void benchmarkLoop() throws Exception {
+    for (String[] platform : PLATFORMS) {
+      GenericNode node = createNode(platform[1], platform[2]);
+      MSP430 cpu = node.getCPU();
+      loadLoop(cpu);
+
+      long[] warmup = new long[WARMUP_ROUNDS];
+      for (int i = 0; i < WARMUP_ROUNDS; i++) {
+        long time = System.nanoTime();
+        cpu.stepInstructions(INSTRUCTIONS);
+        warmup[i] = System.nanoTime() - time;
+      }
+      long[] times = new long[ROUNDS];
+      for (int i = 0; i < ROUNDS; i++) {
+        long time = System.nanoTime();
+        cpu.stepInstructions(INSTRUCTIONS);
+        times[i] = System.nanoTime() - time;
+      }
+      report("loop " + platform[0], "ns/instruction", warmup, times, INSTRUCTIONS);
+    }
+  }
+
+  private static void benchmarkEventQueue() {
+    long[] warmup = new long[WARMUP_ROUNDS];
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      long time = System.nanoTime();
+      check += EventQueueBenchmark.runHeap(EVENTS, 1 + i);
+      warmup[i] = System.nanoTime() - time;
+    }
+    long[] times = new long[ROUNDS];
+    for (int i = 0; i < ROUNDS; i++) {
+      long time = System.nanoTime();
+      check += EventQueueBenchmark.runHeap(EVENTS, 4711 + i);
+      times[i] = System.nanoTime() - time;
+    }
+    report("eventqueue " + EVENTS + " events", "ns/op", warmup, times, EventQueueBenchmark.OPERATIONS);
+  }
+
+  /* Port and timer registers on the sky node dispatched via the IO segment */
+  private static long runIO(Memory memory) {
+    long sum = 0;
+    for (int i = 0; i < IO_OPERATIONS; i += 4) {
+      sum += memory.read(0x20, AccessMode.BYTE, AccessType.READ);
+      memory.write(0x22, i & 0xff, AccessMode.BYTE);
+      sum += memory.read(0x170, AccessMode.WORD, AccessType.READ);
+      memory.write(0x2a, i & 0xf0, AccessMode.BYTE);
+    }
+    return sum;
+  }
+
+  private static void benchmarkIO() throws Exception {
+    GenericNode node = createNode(PLATFORMS[0][1], PLATFORMS[0][2]);
+    Memory memory = node.getCPU().getMemory();
+    long[] warmup = new long[WARMUP_ROUNDS];
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      long time = System.nanoTime();
+      check += runIO(memory);
+      warmup[i] = System.nanoTime() - time;
+    }
+
+    long[] times = new long[ROUNDS];
+    for (int i = 0; i < ROUNDS; i++) {
+      long time = System.nanoTime();
+      check += runIO(memory);
+      times[i] = System.nanoTime() - time;
+    }
+    report("io segment dispatch", "ns/access", warmup, times, IO_OPERATIONS);
+  }
+
+  /* Collects the bytes the radio sends back over SPI */
+  private static class SPISource implements USARTSource {
+    long received;
+    public void addUSARTListener(USARTListener listener) {
+    }
+    public void removeUSARTListener(USARTListener listener) {
+    }
+    public void addStateChangeListener(StateChangeListener listener) {
+    }
+    public void removeStateChangeListener(StateChangeListener listener) {
+    }
+    public boolean isReceiveFlagCleared() {
+      return true;
+    }
+    public void byteReceived(int b) {
+      received += b;
+    }
+  }
+
+  /* A register write, a register read and a frame written to the TX FIFO */
+  private static int runSPI(CC2420 radio, SPISource source) {
+    int bytes = 0;
+    for (int i = 0; i < SPI_TRANSFERS; i++) {
+      radio.setChipSelect(true);
+      radio.dataReceived(source, CC2420.REG_MDMCTRL0);
+      radio.dataReceived(source, 0x0a);
+      radio.dataReceived(source, 0xe2);
+      radio.setChipSelect(false);
+
+      radio.setChipSelect(true);
+      radio.dataReceived(source, CC2420.REG_MDMCTRL0 | 0x40);
+      radio.dataReceived(source, 0);
+      radio.dataReceived(source, 0);
+      radio.setChipSelect(false);
+
+      radio.setChipSelect(true);
+      radio.dataReceived(source, CC2420.REG_TXFIFO);
+      radio.dataReceived(source, 10);
+      for (int j = 0; j < 10; j++) {
+        radio.dataReceived(source, j);
+      }
+      radio.setChipSelect(false);
+
+      radio.setChipSelect(true);
+      radio.dataReceived(source, CC2420.REG_SFLUSHTX);
+      radio.setChipSelect(false);
+      bytes += 19;
+    }
+    return bytes;
+  }
+
+  private static void benchmarkCC2420() throws Exception {
+    SkyNode node = (SkyNode) createNode(PLATFORMS[0][1], PLATFORMS[0][2]);
+    CC2420 radio = node.radio;
+    /* let the firmware initialize the radio before taking over the SPI bus */
+    node.getCPU().stepInstructions(INSTRUCTIONS);
+    SPISource source = new SPISource();
+    radio.setVRegOn(true);
+    node.getCPU().stepInstructions(10000);
+    radio.setChipSelect(true);
+    radio.dataReceived(source, CC2420.REG_SXOSCON);
+    radio.setChipSelect(false);
+    node.getCPU().stepInstructions(10000);
+    long[] warmup = new long[WARMUP_ROUNDS];
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      long time = System.nanoTime();
+      runSPI(radio, source);
+      warmup[i] = System.nanoTime() - time;
+    }
+
+    long[] times = new long[ROUNDS];
+    int bytes = 0;
+    for (int i = 0; i < ROUNDS; i++) {
+      long time = System.nanoTime();
+      bytes = runSPI(radio, source);
+      times[i] = System.nanoTime() - time;
+    }
+    check += source.received;
+    report("cc2420 spi", "ns/byte", warmup, times, bytes);
+  }
+
+  /* Parses the ELF without the cache used by ELF.readELF() */
+  private static void parseELF(byte[] data) throws IOException {
+    ELF elf = new ELF(data);
+    elf.readAll();
+    check += elf.getMap().getAllEntries().length;
+  }
+
+  private static void benchmarkELF() throws Exception {
+    for (String[] platform : PLATFORMS) {
+      FileInputStream input = new FileInputStream(platform[2]);
+      byte[] data;
+      try {
+        data = new byte[(int) input.getChannel().size()];
+        new DataInputStream(input).readFully(data);
+      } finally {
+        input.close();
+      }
+      long[] warmup = new long[WARMUP_ROUNDS];
+      for (int i = 0; i < WARMUP_ROUNDS; i++) {
+        long time = System.nanoTime();
+        for (int j = 0; j < ELF_LOADS; j++) {
+          parseELF(data);
+        }
+        warmup[i] = System.nanoTime() - time;
+      }
+      long[] times = new long[ROUNDS];
+      for (int i = 0; i < ROUNDS; i++) {
+        long time = System.nanoTime();
+        for (int j = 0; j < ELF_LOADS; j++) {
+          parseELF(data);
+        }
+        times[i] = System.nanoTime() - time;
+      }
+      report("elf " + platform[0], "us/load", warmup, times, ELF_LOADS * 1000L);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      args = new String[] { "emulate", "loop", "events", "io", "cc2420", "elf" };
+    }
+    for (String name : args) {
+      if ("emulate".equals(name)) {
+        benchmarkFirmware();
+      } else if ("loop".equals(name)) {
+        benchmarkLoop();
+      } else if ("events".equals(name)) {
+        benchmarkEventQueue();
+      } else if ("io".equals(name)) {
+        benchmarkIO();
+      } else if ("cc2420".equals(name)) {
+        benchmarkCC2420();
+      } else if ("elf".equals(name)) {
+        benchmarkELF();
+      } else {
+        System.err.println("Unknown benchmark: " + name);
+        System.exit(1);
+      }
+    }
+    System.out.println("check: " + check);
+    System.exit(0);
+  }
+}
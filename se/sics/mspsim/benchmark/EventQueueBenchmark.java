@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2012, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * -----------------------------------------------------------------
+ *
+ * EventQueueBenchmark
+ *
+ * Compares the heap based EventQueue with the earlier linked list
+ * implementation using a workload similar to timers and radios that
+ * keep rescheduling their events.
+ *
+ * Usage: java se.sics.mspsim.benchmark.EventQueueBenchmark [events...]
+ */
+
+package se.sics.mspsim.benchmark;
+
+import java.util.Random;
+
+import se.sics.mspsim.core.EventQueue;
+import se.sics.mspsim.core.TimeEvent;
+
+public class EventQueueBenchmark {
+
+  static final int OPERATIONS = 2000000;
+  private static final int MAX_DELAY = 10000;
+
+  /* The earlier sorted linked list, kept here for comparison */
+  private static class ListEvent {
+    ListEvent nextEvent;
+    long time;
+    boolean scheduled;
+  }
+
+  private static class ListEventQueue {
+    private ListEvent first;
+    long nextTime;
+
+    void addEvent(ListEvent event, long time) {
+      if (event.scheduled) {
+        removeEvent(event);
+      }
+      event.time = time;
+      if (first == null || first.time >= time) {
+        event.nextEvent = first;
+        first = event;
+      } else {
+        ListEvent pos = first;
+        while (pos.nextEvent != null && pos.nextEvent.time < time) {
+          pos = pos.nextEvent;
+        }
+        event.nextEvent = pos.nextEvent;
+        pos.nextEvent = event;
+      }
+      event.scheduled = true;
+      nextTime = first.time;
+    }
+
+    boolean removeEvent(ListEvent event) {
+      ListEvent pos = first;
+      ListEvent lastPos = null;
+      while (pos != null && pos != event) {
+        lastPos = pos;
+        pos = pos.nextEvent;
+      }
+      if (pos == null) return false;
+      if (lastPos == null) {
+        first = pos.nextEvent;
+      } else {
+        lastPos.nextEvent = pos.nextEvent;
+      }
+      pos.nextEvent = null;
+      pos.scheduled = false;
+      nextTime = first != null ? first.time : 0;
+      return true;
+    }
+
+    ListEvent popFirst() {
+      ListEvent tmp = first;
+      if (tmp != null) {
+        first = tmp.nextEvent;
+        tmp.nextEvent = null;
+        tmp.scheduled = false;
+      }
+      nextTime = first != null ? first.time : 0;
+      return tmp;
+    }
+  }
+
+  private static class BenchEvent extends TimeEvent {
+    public BenchEvent() {
+      super(0);
+    }
+    public void execute(long t) {
+    }
+  }
+
+  /* Every third operation executes the first event, the others reschedule */
+  private static long runList(int events, long seed) {
+    Random random = new Random(seed);
+    ListEventQueue queue = new ListEventQueue();
+    ListEvent[] list = new ListEvent[events];
+    long now = 0;
+    for (int i = 0; i < events; i++) {
+      list[i] = new ListEvent();
+      queue.addEvent(list[i], now + random.nextInt(MAX_DELAY));
+    }
+    long check = 0;
+    for (int i = 0; i < OPERATIONS; i++) {
+      if (i % 3 == 0) {
+        ListEvent e = queue.popFirst();
+        now = e.time;
+        check += now;
+        queue.addEvent(e, now + 1 + random.nextInt(MAX_DELAY));
+      } else {
+        queue.addEvent(list[random.nextInt(events)], now + random.nextInt(MAX_DELAY));
+      }
+    }
+    return check;
+  }
+
+  static long runHeap(int events, long seed) {
+    Random random = new Random(seed);
+    EventQueue queue = new EventQueue();
+    TimeEvent[] list = new TimeEvent[events];
+    long now = 0;
+    for (int i = 0; i < events; i++) {
+      list[i] = new BenchEvent();
+      queue.addEvent(list[i], now + random.nextInt(MAX_DELAY));
+    }
+    long check = 0;
+    for (int i = 0; i < OPERATIONS; i++) {
+      if (i % 3 == 0) {
+        TimeEvent e = queue.popFirst();
+        now = e.getTime();
+        check += now;
+        queue.addEvent(e, now + 1 + random.nextInt(MAX_DELAY));
+      } else {
+        queue.addEvent(list[random.nextInt(events)], now + random.nextInt(MAX_DELAY));
+      }
+    }
+    return check;
+  }
+
+  public static void main(String[] args) {
+    int[] sizes = { 4, 16, 64, 256 };
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+    for (int events : sizes) {
+      /* warm up both implementations before measuring */
+      runList(events, 1);
+      runHeap(events, 1);
+
+      long time = System.nanoTime();
+      long listCheck = runList(events, 4711);
+      long listTime = System.nanoTime() - time;
+
+      time = System.nanoTime();
+      long heapCheck = runHeap(events, 4711);
+      long heapTime = System.nanoTime() - time;
+
+      System.out.printf("events: %4d  list: %6.1f ns/op  heap: %6.1f ns/op  %s%n",
+          events, (double) listTime / OPERATIONS, (double) heapTime / OPERATIONS,
+          listCheck == heapCheck ? "" : "MISMATCH");
+    }
+  }
+}
@@ -40,6 +40,8 @@
  */
 
 package se.sics.mspsim.chip;
+import java.io.IOException;
+
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
@@ -49,12 +51,15 @@ import javax.sound.sampled.SourceDataLine;
 import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.core.MSP430Core;
+import se.sics.mspsim.core.SnapshotInput;
+import se.sics.mspsim.core.SnapshotOutput;
+import se.sics.mspsim.core.Snapshotable;
 import se.sics.mspsim.core.TimeEvent;
 
 /**
  * Beeper for the ESB...
  */
-public class Beeper extends Chip {
+public class Beeper extends Chip implements Snapshotable {
 
     public static final int MODE_OFF = 0;
     public static final int MODE_ON = 1;
@@ -202,4 +207,17 @@ public class Beeper extends Chip {
         return beepOn ? 1 : 0;
     }
 
+    /* The sound output belongs to the host and is not part of the snapshot */
+    public void saveState(SnapshotOutput out) throws IOException {
+        saveChipState(out);
+        out.writeBoolean(beepOn);
+        out.writeInt(beepCtrl);
+    }
+
+    public void loadState(SnapshotInput in) throws IOException {
+        loadChipState(in);
+        beepOn = in.readBoolean();
+        beepCtrl = in.readInt();
+    }
+
 }
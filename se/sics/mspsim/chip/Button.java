@@ -29,10 +29,14 @@
  *
  */
 package se.sics.mspsim.chip;
+import java.io.IOException;
 import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.IOPort.PortReg;
 import se.sics.mspsim.core.MSP430Core;
+import se.sics.mspsim.core.SnapshotInput;
+import se.sics.mspsim.core.SnapshotOutput;
+import se.sics.mspsim.core.Snapshotable;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -41,7 +45,7 @@ import java.awt.event.ActionListener;
  * @author Niclas Finne
  *
  */
-public class Button extends Chip implements ActionListener {
+public class Button extends Chip implements ActionListener, Snapshotable {
 
 	public enum Btn_Typ {
 		HighOpen, NoOpen
@@ -138,4 +142,15 @@ public class Button extends Chip implements ActionListener {
 	public void notifyReset() {
 		SetState();
 	}    
+
+	/* The pin is part of the IO port state and not updated here */
+	public void saveState(SnapshotOutput out) throws IOException {
+		out.writeBoolean(isPressed);
+		saveChipState(out);
+	}
+
+	public void loadState(SnapshotInput in) throws IOException {
+		isPressed = in.readBoolean();
+		loadChipState(in);
+	}
 }
@@ -37,9 +37,15 @@
  */
 
 package se.sics.mspsim.chip;
+
+import java.io.IOException;
+
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.MSP430Core;
+import se.sics.mspsim.core.SnapshotInput;
+import se.sics.mspsim.core.SnapshotOutput;
+import se.sics.mspsim.core.Snapshotable;
 import se.sics.mspsim.core.TimeEvent;
 import se.sics.mspsim.core.USARTListener;
 import se.sics.mspsim.core.USARTSource;
@@ -47,7 +53,7 @@ import se.sics.mspsim.util.ArrayFIFO;
 import se.sics.mspsim.util.CCITT_CRC;
 import se.sics.mspsim.util.Utils;
 
-public class CC2420 extends Radio802154 implements USARTListener {
+public class CC2420 extends Radio802154 implements USARTListener, Snapshotable {
 
   public enum Reg {
     SNOP, SXOSCON, STXCAL, SRXON, /* 0x00 */
@@ -1409,6 +1415,127 @@ public class CC2420 extends Radio802154 implements USARTListener {
     return chipSelect;
   }
   
+  public void saveState(SnapshotOutput out) throws IOException {
+    saveChipState(out);
+    out.writeInt(stateMachine.ordinal());
+    out.writeInt(state.ordinal());
+    out.writeInt(usartDataPos);
+    out.writeInt(usartDataAddress);
+    out.writeInt(usartDataValue);
+    out.writeInt(shrPos);
+    out.writeInt(txfifoPos);
+    out.writeBoolean(txfifoFlush);
+    out.writeInt(rxfifoReadLeft);
+    out.writeInt(rxlen);
+    out.writeInt(rxread);
+    out.writeInt(zeroSymbols);
+    out.writeBoolean(ramRead);
+    out.writeInt(rssi);
+    out.writeBoolean(cca);
+    out.writeInt(corrval);
+    out.writeInt(fifopThr);
+    out.writeBoolean(autoAck);
+    out.writeBoolean(shouldAck);
+    out.writeBoolean(addressDecode);
+    out.writeBoolean(ackRequest);
+    out.writeBoolean(autoCRC);
+    out.writeInt(dsn);
+    out.writeInt(fcf0);
+    out.writeInt(fcf1);
+    out.writeInt(frameType);
+    out.writeBoolean(crcOk);
+    out.writeInt(activeFrequency);
+    out.writeInt(activeChannel);
+    out.writeInt(status);
+    out.writeInts(registers);
+    out.writeInts(memory);
+    out.writeByteArray(SHR);
+    out.writeBoolean(chipSelect);
+    out.writeInt(txCursor);
+    out.writeBoolean(on);
+    out.writeBoolean(currentCCA);
+    out.writeBoolean(currentSFD);
+    out.writeBoolean(currentFIFO);
+    out.writeBoolean(currentFIFOP);
+    out.writeBoolean(overflow);
+    out.writeBoolean(frameRejected);
+    out.writeInt(ackPos);
+    out.writeInts(ackBuf);
+    out.writeBoolean(ackFramePending);
+    out.writeInt(rxCrc.getCRC());
+    out.writeInt(txCrc.getCRC());
+    out.writeInt(destinationAddressMode);
+    out.writeBoolean(decodeAddress);
+    rxFIFO.saveState(out);
+    out.writeEvent(oscillatorEvent);
+    out.writeEvent(vregEvent);
+    out.writeEvent(sendEvent);
+    out.writeEvent(ackEvent);
+    out.writeEvent(shrEvent);
+    out.writeEvent(symbolEvent);
+  }
+
+  /* The pins are part of the IO port state and not updated here */
+  public void loadState(SnapshotInput in) throws IOException {
+    loadChipState(in);
+    stateMachine = RadioState.values()[in.readInt()];
+    state = SpiState.values()[in.readInt()];
+    usartDataPos = in.readInt();
+    usartDataAddress = in.readInt();
+    usartDataValue = in.readInt();
+    shrPos = in.readInt();
+    txfifoPos = in.readInt();
+    txfifoFlush = in.readBoolean();
+    rxfifoReadLeft = in.readInt();
+    rxlen = in.readInt();
+    rxread = in.readInt();
+    zeroSymbols = in.readInt();
+    ramRead = in.readBoolean();
+    rssi = in.readInt();
+    cca = in.readBoolean();
+    corrval = in.readInt();
+    fifopThr = in.readInt();
+    autoAck = in.readBoolean();
+    shouldAck = in.readBoolean();
+    addressDecode = in.readBoolean();
+    ackRequest = in.readBoolean();
+    autoCRC = in.readBoolean();
+    dsn = in.readInt();
+    fcf0 = in.readInt();
+    fcf1 = in.readInt();
+    frameType = in.readInt();
+    crcOk = in.readBoolean();
+    activeFrequency = in.readInt();
+    activeChannel = in.readInt();
+    status = in.readInt();
+    in.readInts(registers);
+    in.readInts(memory);
+    in.readByteArray(SHR);
+    chipSelect = in.readBoolean();
+    txCursor = in.readInt();
+    on = in.readBoolean();
+    currentCCA = in.readBoolean();
+    currentSFD = in.readBoolean();
+    currentFIFO = in.readBoolean();
+    currentFIFOP = in.readBoolean();
+    overflow = in.readBoolean();
+    frameRejected = in.readBoolean();
+    ackPos = in.readInt();
+    in.readInts(ackBuf);
+    ackFramePending = in.readBoolean();
+    rxCrc.setCRC(in.readInt());
+    txCrc.setCRC(in.readInt());
+    destinationAddressMode = in.readInt();
+    decodeAddress = in.readBoolean();
+    rxFIFO.loadState(in);
+    in.readEvent(oscillatorEvent);
+    in.readEvent(vregEvent);
+    in.readEvent(sendEvent);
+    in.readEvent(ackEvent);
+    in.readEvent(shrEvent);
+    in.readEvent(symbolEvent);
+  }
+
   public void setCCAPort(IOPort port, int pin) {
     ccaPort = port;
     ccaPin = pin;
@@ -35,13 +35,14 @@
  */
 
 package se.sics.mspsim.chip;
+import java.io.IOException;
 import se.sics.mspsim.core.*;
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.util.ArrayFIFO;
 import se.sics.mspsim.util.CCITT_CRC;
 import se.sics.mspsim.util.Utils;
 
-public class CC2520 extends Radio802154 implements USARTListener, SPIData {
+public class CC2520 extends Radio802154 implements USARTListener, SPIData, Snapshotable {
 
     public static class GPIO {
         private IOPort port;
@@ -248,6 +249,9 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
     /* one single byte instruction can be stored in the IBUF */
     int instructionBuffer = 0;
 
+    /* address of the next byte in a memory or register burst */
+    int spiAddress = 0;
+
     // IOCFG0 memory Bit masks
     public static final int BCN_ACCEPT = (1<<11);
     public static final int FIFOP_THR = 0x7F;
@@ -1501,6 +1505,133 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
         gpio[index].setConfig(port, pin);
     }
 
+    public void saveState(SnapshotOutput out) throws IOException {
+        saveChipState(out);
+        out.writeInt(stateMachine.ordinal());
+        out.writeInt(shrPos);
+        out.writeInt(txfifoPos);
+        out.writeBoolean(txfifoFlush);
+        out.writeInt(rxfifoReadLeft);
+        out.writeInt(rxlen);
+        out.writeInt(rxread);
+        out.writeInt(zeroSymbols);
+        out.writeInt(rssi);
+        out.writeInt(corrval);
+        out.writeInt(fifopThr);
+        out.writeBoolean(frameFilter);
+        out.writeBoolean(autoAck);
+        out.writeBoolean(shouldAck);
+        out.writeBoolean(ackRequest);
+        out.writeBoolean(autoCRC);
+        out.writeInt(dsn);
+        out.writeInt(fcf0);
+        out.writeInt(fcf1);
+        out.writeInt(frameType);
+        out.writeBoolean(crcOk);
+        out.writeInt(activeFrequency);
+        out.writeInt(activeChannel);
+        out.writeInt(status);
+        out.writeInt(instructionBuffer);
+        out.writeInt(spiAddress);
+        out.writeInts(memory);
+        /* a pending command is always the one selected by the first SPI byte */
+        out.writeBoolean(command != null);
+        out.writeInts(spiData);
+        out.writeInt(spiLen);
+        out.writeByteArray(SHR);
+        out.writeInt(outputSPI);
+        out.writeBoolean(chipSelect);
+        for (GPIO io : gpio) {
+            out.writeBoolean(io.polarity);
+            out.writeBoolean(io.isActive);
+        }
+        out.writeBoolean(currentFIFO);
+        out.writeBoolean(currentFIFOP);
+        out.writeBoolean(currentCCA);
+        out.writeInt(txCursor);
+        out.writeBoolean(isRadioOn);
+        out.writeBoolean(overflow);
+        out.writeBoolean(frameRejected);
+        out.writeInt(ackPos);
+        out.writeInts(ackBuf);
+        out.writeBoolean(ackFramePending);
+        out.writeInt(rxCrc.getCRC());
+        out.writeInt(txCrc.getCRC());
+        out.writeInt(destinationAddressMode);
+        out.writeBoolean(decodeAddress);
+        rxFIFO.saveState(out);
+        out.writeEvent(oscillatorEvent);
+        out.writeEvent(vregEvent);
+        out.writeEvent(sendEvent);
+        out.writeEvent(ackEvent);
+        out.writeEvent(shrEvent);
+        out.writeEvent(symbolEvent);
+    }
+
+    /* The GPIO pins are part of the IO port state and not updated here */
+    public void loadState(SnapshotInput in) throws IOException {
+        loadChipState(in);
+        stateMachine = RadioState.values()[in.readInt()];
+        shrPos = in.readInt();
+        txfifoPos = in.readInt();
+        txfifoFlush = in.readBoolean();
+        rxfifoReadLeft = in.readInt();
+        rxlen = in.readInt();
+        rxread = in.readInt();
+        zeroSymbols = in.readInt();
+        rssi = in.readInt();
+        corrval = in.readInt();
+        fifopThr = in.readInt();
+        frameFilter = in.readBoolean();
+        autoAck = in.readBoolean();
+        shouldAck = in.readBoolean();
+        ackRequest = in.readBoolean();
+        autoCRC = in.readBoolean();
+        dsn = in.readInt();
+        fcf0 = in.readInt();
+        fcf1 = in.readInt();
+        frameType = in.readInt();
+        crcOk = in.readBoolean();
+        activeFrequency = in.readInt();
+        activeChannel = in.readInt();
+        status = in.readInt();
+        instructionBuffer = in.readInt();
+        spiAddress = in.readInt();
+        in.readInts(memory);
+        boolean pending = in.readBoolean();
+        in.readInts(spiData);
+        spiLen = in.readInt();
+        command = pending ? cc2520SPI.getCommand(spiData[0]) : null;
+        in.readByteArray(SHR);
+        outputSPI = in.readInt();
+        chipSelect = in.readBoolean();
+        for (GPIO io : gpio) {
+            io.polarity = in.readBoolean();
+            io.isActive = in.readBoolean();
+        }
+        currentFIFO = in.readBoolean();
+        currentFIFOP = in.readBoolean();
+        currentCCA = in.readBoolean();
+        txCursor = in.readInt();
+        isRadioOn = in.readBoolean();
+        overflow = in.readBoolean();
+        frameRejected = in.readBoolean();
+        ackPos = in.readInt();
+        in.readInts(ackBuf);
+        ackFramePending = in.readBoolean();
+        rxCrc.setCRC(in.readInt());
+        txCrc.setCRC(in.readInt());
+        destinationAddressMode = in.readInt();
+        decodeAddress = in.readBoolean();
+        rxFIFO.loadState(in);
+        in.readEvent(oscillatorEvent);
+        in.readEvent(vregEvent);
+        in.readEvent(sendEvent);
+        in.readEvent(ackEvent);
+        in.readEvent(shrEvent);
+        in.readEvent(symbolEvent);
+    }
+
 
     /*****************************************************************************
      * Chip APIs
@@ -55,14 +55,13 @@ public class CC2520SPI {
             new SPICommand("SRES 0 0 0 0 1 1 1 1 - - - - - - - -"),
             new SPICommand("MEMRD 0 0 0 1 a a a a a a a a a a a a - - - - - - - - ...") {
                 final BitField adr = getBitField("a");
-                int cAdr = 0;
                 public boolean dataReceived(int data) {
                     /* check if this is first two bytes*/
                     if (spiData.getSPIDataLen() == 2) {
-                        cAdr = adr.getValue(spiData);
+                        cc2520.spiAddress = adr.getValue(spiData);
                     } else if (spiData.getSPIDataLen() > 2){
-                        spiData.outputSPI(cc2520.readMemory(cAdr));
-                        cAdr = (cAdr + 1) & 0x3ff;
+                        spiData.outputSPI(cc2520.readMemory(cc2520.spiAddress));
+                        cc2520.spiAddress = (cc2520.spiAddress + 1) & 0x3ff;
                     }
                     return true;
                 }
@@ -70,19 +69,18 @@ public class CC2520SPI {
             },
             new SPICommand("MEMWR 0 0 1 0 a a a a a a a a a a a a d d d d d d d d ...") {
                 final BitField adr = getBitField("a");
-                int cAdr = -1;
                 public boolean dataReceived(int data) {
                     /* check if this is first two bytes*/
                     int len = spiData.getSPIDataLen();
 //                    int sdata[] = spiData.getSPIData();
                     if (len == 2) {
-                        cAdr = adr.getValue(spiData);
+                        cc2520.spiAddress = adr.getValue(spiData);
 //                        System.out.println("SPI BitValue: [" + adr.startBit + " - " +
 //                                adr.endBit + "] mask:" + adr.firstMask);
-//                        System.out.printf("SPI Data: %02x %02x  => adr:%x\n", sdata[0], sdata[1], cAdr);
+//                        System.out.printf("SPI Data: %02x %02x  => adr:%x\n", sdata[0], sdata[1], cc2520.spiAddress);
                     } else if (len > 2){
-                        cc2520.writeMemory(cAdr, data);
-                        cAdr = (cAdr + 1) & 0x3ff;
+                        cc2520.writeMemory(cc2520.spiAddress, data);
+                        cc2520.spiAddress = (cc2520.spiAddress + 1) & 0x3ff;
                     }
                     return true;
                 }
@@ -185,14 +183,13 @@ public class CC2520SPI {
             new SPICommand("ABORT 0 1 1 1 1 1 1 1 0 0 0 0 0 0 c c"),
             new SPICommand("REGRD 1 0 a a a a a a - - - - - - - - ...") {
                 final BitField adr = getBitField("a");
-                int cAdr = 0;
                 public boolean dataReceived(int data) {
                     /* check if this is first byte*/
                     if (spiData.getSPIDataLen() == 1) {
-                        cAdr = adr.getValue(spiData);
+                        cc2520.spiAddress = adr.getValue(spiData);
                     } else {
-                        spiData.outputSPI(cc2520.readMemory(cAdr));
-                        cAdr = (cAdr + 1) & 0x7f;
+                        spiData.outputSPI(cc2520.readMemory(cc2520.spiAddress));
+                        cc2520.spiAddress = (cc2520.spiAddress + 1) & 0x7f;
                     }
                     return true;
                 }
@@ -200,14 +197,13 @@ public class CC2520SPI {
             },
             new SPICommand("REGWR 1 1 a a a a a a d d d d d d d d ...") {
                 final BitField adr = getBitField("a");
-                int cAdr = 0;
                 public boolean dataReceived(int data) {
                     /* check if this is first byte*/
                     if (spiData.getSPIDataLen() == 1) {
-                        cAdr = adr.getValue(spiData);
+                        cc2520.spiAddress = adr.getValue(spiData);
                     } else {
-                        cc2520.writeMemory(cAdr, data);
-                        cAdr = (cAdr + 1) & 0x7f;
+                        cc2520.writeMemory(cc2520.spiAddress, data);
+                        cc2520.spiAddress = (cc2520.spiAddress + 1) & 0x7f;
                     }
                     return true;
                 }
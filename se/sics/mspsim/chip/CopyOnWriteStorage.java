@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2012, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ */
+package se.sics.mspsim.chip;
+
+import java.io.IOException;
+
+/**
+ * Storage that starts from contents shared with other storages and
+ * copies a page the first time it is written. Used by forked nodes to
+ * share the external flash of the node they were forked from.
+ */
+public class CopyOnWriteStorage implements Storage {
+
+    private static final int PAGE_SIZE = 4096;
+
+    private final byte[] base;
+    private final byte[][] pages;
+
+    /* The shared contents must not be changed after this */
+    public CopyOnWriteStorage(byte[] base) {
+        this.base = base;
+        this.pages = new byte[(base.length + PAGE_SIZE - 1) / PAGE_SIZE][];
+    }
+
+    @Override
+    public int read(long pos, byte[] b) throws IOException {
+        return read(pos, b, 0, b.length);
+    }
+
+    @Override
+    public int read(long storagePos, byte[] buffer, int offset, int len) throws IOException {
+        if (storagePos < 0 || storagePos + len > base.length) {
+            throw new IOException("outside storage");
+        }
+        int pos = (int) storagePos;
+        for (int n = 0; n < len; ) {
+            int page = (pos + n) / PAGE_SIZE;
+            int start = (pos + n) % PAGE_SIZE;
+            int count = Math.min(PAGE_SIZE - start, len - n);
+            if (pages[page] != null) {
+                System.arraycopy(pages[page], start, buffer, offset + n, count);
+            } else {
+                System.arraycopy(base, pos + n, buffer, offset + n, count);
+            }
+            n += count;
+        }
+        return len;
+    }
+
+    @Override
+    public void write(long storagePos, byte[] buffer) throws IOException {
+        write(storagePos, buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void write(long storagePos, byte[] buffer, int offset, int len) throws IOException {
+        if (storagePos < 0 || storagePos + len > base.length) {
+            throw new IOException("outside storage");
+        }
+        int pos = (int) storagePos;
+        for (int n = 0; n < len; ) {
+            int page = (pos + n) / PAGE_SIZE;
+            int start = (pos + n) % PAGE_SIZE;
+            int count = Math.min(PAGE_SIZE - start, len - n);
+            byte[] data = pages[page];
+            if (data == null) {
+                int pageStart = page * PAGE_SIZE;
+                data = new byte[Math.min(PAGE_SIZE, base.length - pageStart)];
+                System.arraycopy(base, pageStart, data, 0, data.length);
+                pages[page] = data;
+            }
+            System.arraycopy(buffer, offset + n, data, start, count);
+            n += count;
+        }
+    }
+
+    @Override
+    public long getMaxSize() {
+        return base.length;
+    }
+
+    @Override
+    public void setMaxSize(long size) {
+        // The size is given by the shared contents
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+    @Override
+    public String info() {
+        int copied = 0;
+        for (byte[] page : pages) {
+            if (page != null) {
+                copied++;
+            }
+        }
+        return "CopyOnWriteStorage(" + copied + "/" + pages.length + " pages copied)";
+    }
+}
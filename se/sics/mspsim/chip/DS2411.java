@@ -36,13 +36,18 @@
  */
 package se.sics.mspsim.chip;
 
+import java.io.IOException;
+
 import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.MSP430Core;
+import se.sics.mspsim.core.SnapshotInput;
+import se.sics.mspsim.core.SnapshotOutput;
+import se.sics.mspsim.core.Snapshotable;
 import se.sics.mspsim.core.TimeEvent;
 import se.sics.mspsim.util.Utils;
 
-public class DS2411 extends Chip {
+public class DS2411 extends Chip implements Snapshotable {
   
   private enum STATE {
     IDLE, WAIT_FOR_RESET, RESETTING, SIGNAL_READY, READY, WAIT_SENDING, SENDING
@@ -149,6 +154,34 @@ public class DS2411 extends Chip {
     }
   }
 
+  public void saveState(SnapshotOutput out) throws IOException {
+    saveChipState(out);
+    out.writeInt(state.ordinal());
+    out.writeBoolean(lastPin);
+    out.writeInt(pos);
+    out.writeInt(readByte);
+    out.writeInt(writeByte);
+    out.writeInt(writeLen);
+    out.writeInt(writePos);
+    out.writeInts(writeBuf);
+    out.writeInts(macID);
+    out.writeEvent(stateEvent);
+  }
+
+  public void loadState(SnapshotInput in) throws IOException {
+    loadChipState(in);
+    state = STATE.values()[in.readInt()];
+    lastPin = in.readBoolean();
+    pos = in.readInt();
+    readByte = in.readInt();
+    writeByte = in.readInt();
+    writeLen = in.readInt();
+    writePos = in.readInt();
+    in.readInts(writeBuf);
+    in.readInts(macID);
+    in.readEvent(stateEvent);
+  }
+
   public int getModeMax() {
     return 0;
   }
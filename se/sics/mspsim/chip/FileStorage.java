@@ -116,6 +116,17 @@ public class FileStorage implements Storage {
         }
     }
 
+    /**
+     * Returns the channel of the locked storage file or null if no file
+     * could be opened. The file is only created when opened for writing.
+     */
+    protected FileChannel getFileChannel(boolean write) throws IOException {
+        if (fileLock != null || ensureOpen(write)) {
+            return fileChannel;
+        }
+        return null;
+    }
+
     public String getFilename() {
         return filename;
     }
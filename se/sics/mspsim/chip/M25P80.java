@@ -45,7 +45,7 @@ import se.sics.mspsim.core.*;
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.util.Utils;
 
-public class M25P80 extends ExternalFlash implements USARTListener, PortListener, Memory {
+public class M25P80 extends ExternalFlash implements USARTListener, PortListener, Memory, Snapshotable {
 
   public static final int WRITE_STATUS = 0x01;
   public static final int PAGE_PROGRAM = 0x02;
@@ -107,6 +107,56 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
     writing = false;
   }
 
+  public void saveState(SnapshotOutput out) throws IOException {
+    saveChipState(out);
+    out.writeInt(state);
+    out.writeBoolean(chipSelect);
+    out.writeInt(pos);
+    out.writeInt(status);
+    out.writeBoolean(writeEnable);
+    out.writeBoolean(writing);
+    out.writeInt(readAddress);
+    out.writeInt(loadedAddress);
+    out.writeInt(blockWriteAddress);
+    out.writeByteArray(readMemory);
+    out.writeByteArray(buffer);
+    out.writeEvent(writeEvent);
+    byte[] contents = new byte[MEMORY_SIZE];
+    Storage storage = getStorage();
+    for (int n = 0; n < contents.length; ) {
+      int len = storage.read(n, contents, n, contents.length - n);
+      if (len <= 0) {
+        /* not written yet */
+        break;
+      }
+      n += len;
+    }
+    out.writeByteArray(contents);
+  }
+
+  public void loadState(SnapshotInput in) throws IOException {
+    loadChipState(in);
+    state = in.readInt();
+    chipSelect = in.readBoolean();
+    pos = in.readInt();
+    status = in.readInt();
+    writeEnable = in.readBoolean();
+    writing = in.readBoolean();
+    readAddress = in.readInt();
+    loadedAddress = in.readInt();
+    blockWriteAddress = in.readInt();
+    in.readByteArray(readMemory);
+    in.readByteArray(buffer);
+    in.readEvent(writeEvent);
+    /* restored into memory to keep the flash file of the saved node as it is */
+    byte[] contents = new byte[MEMORY_SIZE];
+    in.readByteArray(contents);
+    Storage storage = new MemoryStorage();
+    storage.setMaxSize(getSize());
+    storage.write(0, contents);
+    setStorage(storage);
+  }
+
   public int getStatus() {
     return status | (writeEnable ? 0x02 : 0x00) | (writing ? 0x01 : 0x00);
   }
@@ -39,12 +39,16 @@
  */
 
 package se.sics.mspsim.chip;
+import java.io.IOException;
 import se.sics.mspsim.core.MSP430Core;
+import se.sics.mspsim.core.SnapshotInput;
+import se.sics.mspsim.core.SnapshotOutput;
+import se.sics.mspsim.core.Snapshotable;
 
 /**
  * MMA7260QT - 1.5g-6g Three Axis Low-g Micromachined Accelerometer
  */
-public class MMA7260QT extends Accelerometer {
+public class MMA7260QT extends Accelerometer implements Snapshotable {
 
     public static final int MODE_SLEEP = 0x00;
     public static final int MODE_ACTIVE = 0x01;
@@ -123,4 +127,20 @@ public class MMA7260QT extends Accelerometer {
         return gSelect;
     }
 
+    public void saveState(SnapshotOutput out) throws IOException {
+        saveChipState(out);
+        out.writeInt(gSelect);
+        out.writeDouble(x);
+        out.writeDouble(y);
+        out.writeDouble(z);
+    }
+
+    public void loadState(SnapshotInput in) throws IOException {
+        loadChipState(in);
+        gSelect = in.readInt();
+        x = in.readDouble();
+        y = in.readDouble();
+        z = in.readDouble();
+    }
+
 }
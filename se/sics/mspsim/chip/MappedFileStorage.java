@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2012, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ */
+package se.sics.mspsim.chip;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * File storage that keeps the storage file memory mapped so that reads
+ * and writes are plain memory copies. The file is locked and named in
+ * the same way as by FileStorage. The mapping grows in steps while the
+ * file is written and the modified pages are left to the operating
+ * system until the storage is closed.
+ */
+public class MappedFileStorage extends FileStorage {
+
+    /* Size of each step when growing a storage without maximal size */
+    private static final int MAP_INCREMENT = 64 * 1024;
+
+    private MappedByteBuffer buffer;
+    /* The file length not counting the unwritten part of the mapping */
+    private long length;
+    private boolean dirty;
+
+    public MappedFileStorage() {
+        super();
+    }
+
+    public MappedFileStorage(String filename) {
+        super(filename);
+    }
+
+    private boolean map(long size, boolean write) throws IOException {
+        if (buffer != null && size <= buffer.capacity()) {
+            return true;
+        }
+        FileChannel channel = getFileChannel(write);
+        if (channel == null) {
+            return false;
+        }
+        if (buffer == null) {
+            length = channel.size();
+        }
+        long mapSize = Math.max(size, length);
+        if (write && size > length) {
+            long maxSize = getMaxSize();
+            mapSize = maxSize > 0 ? maxSize
+                    : (size + MAP_INCREMENT - 1) / MAP_INCREMENT * MAP_INCREMENT;
+        }
+        if (mapSize > Integer.MAX_VALUE) {
+            throw new IOException("storage too large to map");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+        return true;
+    }
+
+    /* Writes back modified pages and trims the file to the written length */
+    private void unmap() {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            if (dirty) {
+                buffer.force();
+                dirty = false;
+            }
+            buffer = null;
+            FileChannel channel = getFileChannel(false);
+            if (channel != null && channel.size() > length) {
+                channel.truncate(length);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public int read(long pos, byte[] b, int offset, int len) throws IOException {
+        long maxSize = getMaxSize();
+        if (maxSize > 0 && pos + len > maxSize) {
+            throw new IOException("outside storage");
+        }
+        int available = 0;
+        if (map(0, false) && pos < length) {
+            available = (int) Math.min(len, length - pos);
+            ByteBuffer data = buffer.duplicate();
+            data.position((int) pos);
+            data.get(b, offset, available);
+        }
+        if (available < len) {
+            Arrays.fill(b, offset + available, offset + len, (byte) 0);
+        }
+        return len;
+    }
+
+    @Override
+    public void write(long pos, byte[] b, int offset, int len) throws IOException {
+        long maxSize = getMaxSize();
+        if (maxSize > 0 && pos + len > maxSize) {
+            throw new IOException("outside storage");
+        }
+        if (map(pos + len, true)) {
+            ByteBuffer data = buffer.duplicate();
+            data.position((int) pos);
+            data.put(b, offset, len);
+            if (pos + len > length) {
+                length = pos + len;
+            }
+            dirty = true;
+        }
+    }
+
+    @Override
+    public void setMaxSize(long size) {
+        unmap();
+        super.setMaxSize(size);
+    }
+
+    @Override
+    public void close() {
+        unmap();
+        super.close();
+    }
+
+    @Override
+    public String info() {
+        return "Mapped" + super.info();
+    }
+}
@@ -1,11 +1,15 @@
 package se.sics.mspsim.chip;
+import java.io.IOException;
 import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.IOPort.PortReg;
 import se.sics.mspsim.core.MSP430Core;
 import se.sics.mspsim.core.PortListener;
+import se.sics.mspsim.core.SnapshotInput;
+import se.sics.mspsim.core.SnapshotOutput;
+import se.sics.mspsim.core.Snapshotable;
 
-public class NotConnected extends Chip implements PortListener {
+public class NotConnected extends Chip implements PortListener, Snapshotable {
 
     private final IOPort port;
     private final int pin;
@@ -55,4 +59,13 @@ public class NotConnected extends Chip implements PortListener {
     public void notifyReset() {
       SetState();
     }    
+
+    /* the pin follows the IO port registers which are restored by the port */
+    public void saveState(SnapshotOutput out) throws IOException {
+        saveChipState(out);
+    }
+
+    public void loadState(SnapshotInput in) throws IOException {
+        loadChipState(in);
+    }
 }
\ No newline at end of file
@@ -41,13 +41,18 @@
 
 package se.sics.mspsim.chip;
 
+import java.io.IOException;
+
 import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.MSP430Core;
+import se.sics.mspsim.core.SnapshotInput;
+import se.sics.mspsim.core.SnapshotOutput;
+import se.sics.mspsim.core.Snapshotable;
 import se.sics.mspsim.core.TimeEvent;
 import se.sics.mspsim.util.Utils;
 
-public class SHT11 extends Chip {
+public class SHT11 extends Chip implements Snapshotable {
 
   private static final int IDLE = 0;
   private static final int COMMAND = 1;
@@ -283,6 +288,40 @@ public class SHT11 extends Chip {
   }
   
   
+  public void saveState(SnapshotOutput out) throws IOException {
+    saveChipState(out);
+    out.writeInt(initPos);
+    out.writeInt(state);
+    out.writeBoolean(clockHi);
+    out.writeBoolean(dataHi);
+    out.writeInt(readData);
+    out.writeInt(bitCnt);
+    out.writeInt(temp);
+    out.writeInt(humid);
+    out.writeInts(output);
+    out.writeInt(writePos);
+    out.writeInt(writeLen);
+    out.writeInt(writeData);
+    out.writeEvent(measureEvent);
+  }
+
+  public void loadState(SnapshotInput in) throws IOException {
+    loadChipState(in);
+    initPos = in.readInt();
+    state = in.readInt();
+    clockHi = in.readBoolean();
+    dataHi = in.readBoolean();
+    readData = in.readInt();
+    bitCnt = in.readInt();
+    temp = in.readInt();
+    humid = in.readInt();
+    in.readInts(output);
+    writePos = in.readInt();
+    writeLen = in.readInt();
+    writeData = in.readInt();
+    in.readEvent(measureEvent);
+  }
+
   public int getModeMax() {
     return 0;
   }
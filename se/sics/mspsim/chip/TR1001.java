@@ -35,8 +35,12 @@
  */
 
 package se.sics.mspsim.chip;
+import java.io.IOException;
 import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.MSP430Core;
+import se.sics.mspsim.core.SnapshotInput;
+import se.sics.mspsim.core.SnapshotOutput;
+import se.sics.mspsim.core.Snapshotable;
 import se.sics.mspsim.core.USART;
 import se.sics.mspsim.core.USARTListener;
 import se.sics.mspsim.core.USARTSource;
@@ -44,7 +48,7 @@ import se.sics.mspsim.core.USARTSource;
 /**
  *
  */
-public class TR1001 extends Chip implements RFListener, RFSource {
+public class TR1001 extends Chip implements RFListener, RFSource, Snapshotable {
 
   public static final int MODE_TXRX_OFF = 0x00;
   public static final int MODE_RX_ON = 0x01;
@@ -124,4 +128,13 @@ public class TR1001 extends Chip implements RFListener, RFSource {
   public int getConfiguration(int parameter) {
       return 0;
   }
+
+  /* the radio keeps no state besides its mode */
+  public void saveState(SnapshotOutput out) throws IOException {
+    saveChipState(out);
+  }
+
+  public void loadState(SnapshotInput in) throws IOException {
+    loadChipState(in);
+  }
 }
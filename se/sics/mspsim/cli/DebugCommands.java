@@ -33,6 +33,8 @@
  * Created : Mon Feb 11 2008
  */
 package se.sics.mspsim.cli;
+
+import java.io.IOException;
 import se.sics.mspsim.core.DbgInstruction;
 import se.sics.mspsim.core.DisAsm;
 import se.sics.mspsim.core.EmulationException;
@@ -53,6 +55,8 @@ import se.sics.mspsim.util.DebugInfo;
 import se.sics.mspsim.util.ELF;
 import se.sics.mspsim.util.GDBStubs;
 import se.sics.mspsim.util.MapEntry;
+import se.sics.mspsim.util.MapTable;
+import se.sics.mspsim.util.TraceRecorder;
 import se.sics.mspsim.util.Utils;
 
 public class DebugCommands implements CommandBundle {
@@ -273,6 +277,17 @@ public class DebugCommands implements CommandBundle {
           }
       });
 
+      ch.registerCommand("busywait", new BasicCommand("set skipping of busy-wait loops to on or off", "[0/1]") {
+          public int executeCommand(final CommandContext context) {
+              if (context.getArgumentCount() > 0) {
+                  cpu.setBusyWaitSkipping(context.getArgumentAsBoolean(0));
+              }
+              context.out.println("Busy-wait skipping is set to " + cpu.isBusyWaitSkipping()
+                      + " (skipped cycles: " + cpu.getSkippedCycles() + ')');
+              return 0;
+          }
+      });
+
       ch.registerCommand("line", new BasicCommand("print line number of address/symbol", "<address or symbol>") {
         public int executeCommand(final CommandContext context) {
           int adr = context.getArgumentAsAddress(0);
@@ -375,9 +390,9 @@ public class DebugCommands implements CommandBundle {
           public int executeCommand(CommandContext context) {
             int adr = context.getArgumentAsAddress(0);
             if (adr >= 0) {
-              int value = cpu.memory[adr];
+              int value = cpu.memory[adr] & 0xff;
               if (adr >= 0x100 && adr + 1 < cpu.MAX_MEM) {
-                  value |= cpu.memory[adr + 1] << 8;
+                  value |= (cpu.memory[adr + 1] & 0xff) << 8;
               }
               context.out.println(context.getArgument(0) + " = $" + Utils.hex16(value));
               return 0;
@@ -419,6 +434,38 @@ public class DebugCommands implements CommandBundle {
           }
         });
 
+        ch.registerCommand("snapshot", new BasicCommand("save or restore the node state", "<save|load> <filename>") {
+          public int executeCommand(CommandContext context) {
+            if (context.getArgumentCount() != 2) {
+                context.err.println("Usage: snapshot <save|load> <filename>");
+                return 1;
+            }
+            String cmd = context.getArgument(0);
+            String fileName = context.getArgument(1);
+            if (cpu.isRunning()) {
+                context.err.println("Can not handle snapshots when emulation is running.");
+                return 1;
+            }
+            try {
+              if ("save".equals(cmd)) {
+                node.saveSnapshot(fileName);
+                context.out.println("Saved snapshot at cycle " + cpu.cycles + " to " + fileName);
+              } else if ("load".equals(cmd)) {
+                node.loadSnapshot(fileName);
+                context.out.println("Restored snapshot at cycle " + cpu.cycles
+                    + " PC: $" + cpu.getAddressAsString(cpu.getPC()));
+              } else {
+                context.err.println("unknown snapshot command: " + cmd);
+                return 1;
+              }
+            } catch (IOException e) {
+              context.err.println("snapshot " + cmd + " failed: " + e.getMessage());
+              return 1;
+            }
+            return 0;
+          }
+        });
+
         ch.registerCommand("time", new BasicCommand("print the elapse time and cycles", "") {
           public int executeCommand(CommandContext context) {
             long time = (long)cpu.getTimeMillis();
@@ -470,21 +517,23 @@ public class DebugCommands implements CommandBundle {
             }
             // Does not yet handle signed data...
             DisAsm disAsm = cpu.getDisAsm();
+            String lastFunction = null;
             for (int i = 0; i < count; i++) {
                 if (mode == Utils.DIS_ASM) {
                     DbgInstruction dbg = disAsm.disassemble(start, cpu.memory, cpu.reg, new DbgInstruction(),
                             0);
-                    String fkn;
-                    if ((fkn = dbg.getFunction()) != null) {
+                    String fkn = dbg.getFunction();
+                    if (fkn != null && !fkn.equals(lastFunction)) {
                         context.out.println("//// " + fkn);
                     }
+                    lastFunction = fkn;
                     context.out.println(dbg.getASMLine(false));
                     start += dbg.getSize();
                 } else {
                     int data = 0;
-                    data = cpu.memory[start++];
+                    data = cpu.memory[start++] & 0xff;
                     if (Utils.size(type) == 2) {
-                        data = data  + (cpu.memory[start++] << 8);
+                        data = data  + ((cpu.memory[start++] & 0xff) << 8);
                     }
                     context.out.print((mode != Utils.ASCII ? " " : "") + 
                             Utils.toString(data, type, mode));
@@ -691,11 +740,38 @@ public class DebugCommands implements CommandBundle {
             }
         });
 
-        ch.registerCommand("trace", new BasicCommand("store a trace of execution positions.", "[trace size | show]") {
+        ch.registerCommand("trace", new BasicCommand("store a trace of execution positions.",
+                "[trace size | show | record <file> [memory] | stop]") {
             @Override
             public int executeCommand(CommandContext context) {
                 if (context.getArgumentCount() > 0) {
-                    if ("show".equals(context.getArgument(0))) {
+                    String cmd = context.getArgument(0);
+                    if ("record".equals(cmd) || "stop".equals(cmd)) {
+                        try {
+                            TraceRecorder recorder = cpu.getTraceRecorder();
+                            if (recorder != null) {
+                                cpu.setTraceRecorder(null, false);
+                                recorder.close();
+                                context.out.println("Recorded " + recorder.getRecordCount() + " trace records");
+                            }
+                            if ("record".equals(cmd)) {
+                                if (context.getArgumentCount() < 2) {
+                                    context.err.println("please specify a trace file");
+                                    return 1;
+                                }
+                                String fileName = context.getArgument(1);
+                                boolean memory = context.getArgumentCount() > 2
+                                    && "memory".equals(context.getArgument(2));
+                                cpu.setTraceRecorder(new TraceRecorder(fileName), memory);
+                                context.out.println("Recording execution trace to " + fileName);
+                            }
+                        } catch (IOException e) {
+                            context.err.println("trace " + cmd + " failed: " + e.getMessage());
+                            return 1;
+                        }
+                        return 0;
+                    }
+                    if ("show".equals(cmd)) {
                         int size = cpu.getTraceSize();
                         if (size > 0) {
                             DisAsm disAsm = cpu.getDisAsm();
@@ -732,10 +808,15 @@ public class DebugCommands implements CommandBundle {
   }
 
   private static String getSymOrAddr(MSP430 cpu, CommandContext context, int adr) {
-    MapEntry me = context.getMapTable().getEntry(adr);
+    MapTable map = context.getMapTable();
+    MapEntry me = map.getEntry(adr);
     if (me != null) {
       return me.getName();
     }
+    me = map.getContainingEntry(adr);
+    if (me != null) {
+      return me.getName() + "+" + (adr - me.getAddress());
+    }
     return '$' + cpu.getAddressAsString(adr);
   }
 
@@ -130,7 +130,7 @@ public class MiscCommands implements CommandBundle {
       }
     });
 
-    handler.registerCommand("speed", new BasicCommand("set the speed factor for the CPU", "[factor]") {
+    handler.registerCommand("speed", new BasicCommand("set the speed factor for the CPU", "[factor|max]") {
       public int executeCommand(CommandContext context) {
         MSP430 cpu = registry.getComponent(MSP430.class);
         if (cpu == null) {
@@ -138,17 +138,28 @@ public class MiscCommands implements CommandBundle {
           return 1;
         } else if (context.getArgumentCount() == 0) {
           /* No speed specified. Simply show current speed. */
+        } else if ("max".equals(context.getArgument(0))) {
+          cpu.setFastForward(true);
         } else {
           double rate = context.getArgumentAsDouble(0);
           if (rate > 0.0) {
             cpu.setExecutionRate(rate);
+            cpu.setFastForward(false);
           } else {
             context.err.println("Speed factor must be larger than zero.");
             return 1;
           }
         }
-        double rate = cpu.getExecutionRate();
-        context.out.printf("Speed factor is set to %.2f\n", rate);
+        if (cpu.isFastForward()) {
+          context.out.println("Speed factor is set to max");
+        } else {
+          context.out.printf("Speed factor is set to %.2f\n", cpu.getExecutionRate());
+        }
+        double speed = cpu.getCyclesPerSecond();
+        if (speed > 0.0) {
+          context.out.printf("Achieved speed is %.0f cycles/s (%.2f x real time)\n",
+              speed, speed / cpu.dcoFrq);
+        }
         return 0;
       }
     });
@@ -39,17 +39,23 @@
  */
 
 package se.sics.mspsim.cli;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
 import java.util.Properties;
 
 import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.EventListener;
 import se.sics.mspsim.core.EventSource;
+import se.sics.mspsim.core.ExecutionCounter;
 import se.sics.mspsim.core.MSP430;
 import se.sics.mspsim.core.Profiler;
+import se.sics.mspsim.profiler.CoverageReport;
 import se.sics.mspsim.profiler.SimpleProfiler;
 import se.sics.mspsim.ui.CPUHeatMap;
 import se.sics.mspsim.ui.WindowManager;
 import se.sics.mspsim.util.ComponentRegistry;
+import se.sics.mspsim.util.ELF;
+import se.sics.mspsim.util.MapTable;
 import se.sics.mspsim.util.StackMonitor;
 
 /**
@@ -139,6 +145,43 @@ public class ProfilerCommands implements CommandBundle {
         }
       });
 
+      ch.registerCommand("coverage", new BasicCommand("show executed functions or write lcov coverage",
+          "[-clear] [lcov file]") {
+        public int executeCommand(CommandContext context) {
+          ExecutionCounter counter = cpu.getExecutionCounter();
+          if (counter == null) {
+            context.err.println("Execution monitoring is not enabled.");
+            return 1;
+          }
+          if (context.getArgumentCount() > 0 && "-clear".equals(context.getArgument(0))) {
+            counter.clear();
+            context.out.println("Cleared execution counters.");
+            return 0;
+          }
+          MapTable map = context.getMapTable();
+          if (map == null) {
+            context.err.println("No map table found.");
+            return 1;
+          }
+          CoverageReport report = new CoverageReport(counter, map, registry.getComponent(ELF.class));
+          if (context.getArgumentCount() == 0) {
+            report.printFunctions(context.out);
+            return 0;
+          }
+          String fileName = context.getArgument(0);
+          try {
+            PrintStream out = new PrintStream(fileName);
+            report.writeLcov(out, null);
+            out.close();
+          } catch (FileNotFoundException e) {
+            context.err.println("Failed to write " + fileName + ": " + e.getMessage());
+            return 1;
+          }
+          context.out.println("Wrote coverage to " + fileName);
+          return 0;
+        }
+      });
+
       ch.registerCommand("stackprof", new BasicCommand("Start stack profiler", "") {
           public int executeCommand(CommandContext context) {
               new StackMonitor(cpu);
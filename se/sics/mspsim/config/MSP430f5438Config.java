@@ -180,7 +180,7 @@ public class MSP430f5438Config extends MSP430Config {
   }
 
   @Override
-  public ClockSystem createClockSystem(MSP430Core cpu, int[] memory,
+  public ClockSystem createClockSystem(MSP430Core cpu, byte[] memory,
       Timer[] timers) {
     return new UnifiedClockSystem(cpu, memory, 0, timers);
   }
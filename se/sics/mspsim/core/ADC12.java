@@ -47,9 +47,10 @@
 
 package se.sics.mspsim.core;
 
+import java.io.IOException;
 import java.util.Arrays;
 
-public class ADC12 extends IOUnit {
+public class ADC12 extends IOUnit implements Snapshotable {
 
   public static final int ADC12CTL0 = 0x01A0;// Reset with POR
   public static final int ADC12CTL1 = 0x01A2;// Reset with POR
@@ -299,4 +300,54 @@ public class ADC12 extends IOUnit {
   
   public void interruptServiced(int vector) {
   }
+
+  public void saveState(SnapshotOutput out) throws IOException {
+    saveIOState(out);
+    out.writeInt(adc12ctl0);
+    out.writeInt(adc12ctl1);
+    out.writeInts(adc12mctl);
+    out.writeInts(adc12mem);
+    out.writeInt(adc12Pos);
+    out.writeInt(shTime0);
+    out.writeInt(shTime1);
+    out.writeBoolean(adc12On);
+    out.writeBoolean(enableConversion);
+    out.writeBoolean(startConversion);
+    out.writeBoolean(isConverting);
+    out.writeInt(shSource);
+    out.writeInt(startMem);
+    out.writeInt(adcDiv);
+    out.writeInt(conSeq);
+    out.writeInt(adc12ie);
+    out.writeInt(adc12ifg);
+    out.writeInt(adc12iv);
+    out.writeInt(adcSSel);
+    out.writeInt(smp);
+    out.writeEvent(adcTrigger);
+  }
+
+  public void loadState(SnapshotInput in) throws IOException {
+    loadIOState(in);
+    adc12ctl0 = in.readInt();
+    adc12ctl1 = in.readInt();
+    in.readInts(adc12mctl);
+    in.readInts(adc12mem);
+    adc12Pos = in.readInt();
+    shTime0 = in.readInt();
+    shTime1 = in.readInt();
+    adc12On = in.readBoolean();
+    enableConversion = in.readBoolean();
+    startConversion = in.readBoolean();
+    isConverting = in.readBoolean();
+    shSource = in.readInt();
+    startMem = in.readInt();
+    adcDiv = in.readInt();
+    conSeq = in.readInt();
+    adc12ie = in.readInt();
+    adc12ifg = in.readInt();
+    adc12iv = in.readInt();
+    adcSSel = in.readInt();
+    smp = in.readInt();
+    in.readEvent(adcTrigger);
+  }
 }
@@ -76,6 +76,7 @@
 
 package se.sics.mspsim.core;
 
+import java.io.IOException;
 import java.util.Arrays;
 
 import se.sics.mspsim.core.EmulationLogger.WarningType;
@@ -93,7 +94,7 @@ import se.sics.mspsim.core.EmulationLogger.WarningType;
  * @author Joakim Eriksson <joakime@sics.se>
  * @author Víctor Ariño <victor.arino@tado.com>
  */
-public class ADC12Plus extends IOUnit {
+public class ADC12Plus extends IOUnit implements Snapshotable {
 
 	/**
 	 * Address and size for IO configuration
@@ -430,6 +431,66 @@ public class ADC12Plus extends IOUnit {
 	public void interruptServiced(int vector) {
 	}
 
+	public void saveState(SnapshotOutput out) throws IOException {
+		saveIOState(out);
+		out.writeInt(adc12ctl0);
+		out.writeInt(adc12ctl1);
+		out.writeInt(adc12ctl2);
+		out.writeInts(adc12mctl);
+		out.writeInts(adc12mem);
+		out.writeInt(adc12Pos);
+		out.writeInt(shTime0);
+		out.writeInt(shTime1);
+		out.writeBoolean(adc12On);
+		out.writeBoolean(enableConversion);
+		out.writeBoolean(startConversion);
+		out.writeBoolean(isConverting);
+		out.writeInt(shSource);
+		out.writeInt(startMem);
+		out.writeInt(adcDiv);
+		out.writeInt(conSeq);
+		out.writeInt(adc12ie);
+		out.writeInt(adc12ifg);
+		out.writeInt(adc12iv);
+		out.writeInt(adcSSel);
+		out.writeInt(bitsResolution);
+		out.writeBoolean(formatSigned);
+		out.writeInt(clockPredivider);
+		out.writeBoolean(ref25V);
+		out.writeInt(smp);
+		out.writeEvent(adcTrigger);
+	}
+
+	public void loadState(SnapshotInput in) throws IOException {
+		loadIOState(in);
+		adc12ctl0 = in.readInt();
+		adc12ctl1 = in.readInt();
+		adc12ctl2 = in.readInt();
+		in.readInts(adc12mctl);
+		in.readInts(adc12mem);
+		adc12Pos = in.readInt();
+		shTime0 = in.readInt();
+		shTime1 = in.readInt();
+		adc12On = in.readBoolean();
+		enableConversion = in.readBoolean();
+		startConversion = in.readBoolean();
+		isConverting = in.readBoolean();
+		shSource = in.readInt();
+		startMem = in.readInt();
+		adcDiv = in.readInt();
+		conSeq = in.readInt();
+		adc12ie = in.readInt();
+		adc12ifg = in.readInt();
+		adc12iv = in.readInt();
+		adcSSel = in.readInt();
+		bitsResolution = in.readInt();
+		formatSigned = in.readBoolean();
+		clockPredivider = in.readInt();
+		ref25V = in.readBoolean();
+		smp = in.readInt();
+		in.readEvent(adcTrigger);
+	}
+
 	/**
 	 * Get the reference voltage if it is 1.5 volts or 2.5V
 	 * 
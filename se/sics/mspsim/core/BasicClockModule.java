@@ -40,9 +40,11 @@
  */
 
 package se.sics.mspsim.core;
+import java.io.IOException;
+
 import se.sics.mspsim.util.Utils;
 
-public class BasicClockModule extends ClockSystem {
+public class BasicClockModule extends ClockSystem implements Snapshotable {
 
   private static final int DCOCTL = 0x56; // 0x60
   private static final int BCSCTL1 = 0x57; // 0x84 
@@ -81,7 +83,7 @@ public class BasicClockModule extends ClockSystem {
    * Creates a new <code>BasicClockModule</code> instance.
    *
    */
-  public BasicClockModule(MSP430Core core, int[] memory, int offset, Timer[] timers) {
+  public BasicClockModule(MSP430Core core, byte[] memory, int offset, Timer[] timers) {
     super("BasicClockModule", core, memory, offset);
     this.timers = timers;
     //    reset(0);
@@ -107,9 +109,9 @@ public class BasicClockModule extends ClockSystem {
 
   // do nothing?
   public int read(int address, boolean word, long cycles) {
-    int val = memory[address];
+    int val = memory[address] & 0xff;
     if (word) {
-      val |= memory[(address + 1) & 0xffff] << 8;
+      val |= (memory[(address + 1) & 0xffff] & 0xff) << 8;
     }
     return val;
   }
@@ -119,8 +121,8 @@ public class BasicClockModule extends ClockSystem {
     if (DEBUG) log("Write to BasicClockModule: " +
 		       Utils.hex16(address) + " => " + Utils.hex16(data));
 
-    memory[address] = data & 0xff;
-    if (word) memory[address + 1] = (data >> 8) & 0xff;
+    memory[address] = (byte) data;
+    if (word) memory[address + 1] = (byte) (data >> 8);
 
 
     switch (address) {
@@ -166,6 +168,39 @@ public class BasicClockModule extends ClockSystem {
     }
   }
 
+  public void saveState(SnapshotOutput out) throws IOException {
+    saveIOState(out);
+    out.writeInt(dcoFrequency);
+    out.writeInt(dcoModulator);
+    out.writeInt(resistorSel);
+    out.writeInt(calcDCOFrq);
+    out.writeInt(divAclk);
+    out.writeInt(lfxt1Mode);
+    out.writeInt(xt2Off);
+    out.writeInt(mclkSel);
+    out.writeInt(divMclk);
+    out.writeInt(smclSel);
+    out.writeInt(divSMclk);
+    out.writeInt(dcoResitorSel);
+  }
+
+  /* The CPU clocks are restored by the CPU itself */
+  public void loadState(SnapshotInput in) throws IOException {
+    loadIOState(in);
+    dcoFrequency = in.readInt();
+    dcoModulator = in.readInt();
+    resistorSel = in.readInt();
+    calcDCOFrq = in.readInt();
+    divAclk = in.readInt();
+    lfxt1Mode = in.readInt();
+    xt2Off = in.readInt();
+    mclkSel = in.readInt();
+    divMclk = in.readInt();
+    smclSel = in.readInt();
+    divSMclk = in.readInt();
+    dcoResitorSel = in.readInt();
+  }
+
   private void updateTimers(long cycles) {
     if (timers != null) {
       for(int i = 0; i < timers.length; i++) {
@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2007-2012, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * -----------------------------------------------------------------
+ *
+ * BusyWaitLoop
+ *
+ * A short loop ending with a backward jump that can only poll memory,
+ * such as while (!(IFG1 & URXIFG0)). All instructions either write a
+ * register or just update the status register and all memory operands
+ * use absolute or symbolic addresses, so the loop has no side effects
+ * except the reads. Jumps may leave the loop but not skip instructions
+ * within it, so every iteration executes all instructions once. If two iterations leave the registers unchanged and
+ * nothing that is read can change before the next event, all following
+ * iterations until the next event are identical and can be skipped.
+ */
+
+package se.sics.mspsim.core;
+
+public class BusyWaitLoop implements MSP430Constants {
+
+    /* Maximal size of a loop in bytes, including the jump */
+    public static final int MAX_SIZE = 16;
+
+    /* Marker for backward jumps that are not busy-wait loops */
+    static final BusyWaitLoop NONE = new BusyWaitLoop(0, 0, new int[0], new int[0]);
+
+    public final int start;
+    public final int jump;
+
+    /* instruction addresses */
+    final int[] pcs;
+    /* memory addresses read by the loop */
+    final int[] reads;
+
+    private BusyWaitLoop(int start, int jump, int[] pcs, int[] reads) {
+        this.start = start;
+        this.jump = jump;
+        this.pcs = pcs;
+        this.reads = reads;
+    }
+
+    public int getInstructionCount() {
+        return pcs.length;
+    }
+
+    public int getPC(int index) {
+        return pcs[index];
+    }
+
+    /**
+     * Analyzes the loop from the jump target to the backward jump. The
+     * loop must be within one 256 byte page so that page invalidation
+     * covers the whole loop.
+     */
+    static BusyWaitLoop analyze(byte[] memory, int start, int jump) {
+        if (jump < start || jump - start + 2 > MAX_SIZE || (start >> 8) != (jump >> 8)) {
+            return NONE;
+        }
+        int[] pcs = new int[MAX_SIZE / 2];
+        int[] reads = new int[MAX_SIZE];
+        int instructions = 0;
+        int count = 0;
+        int pc = start;
+        while (pc < jump) {
+            int instruction = read(memory, pc);
+            int op = instruction >> 12;
+            int size = 2;
+            pcs[instructions++] = pc;
+            if (op == 2 || op == 3) {
+                int offset = instruction & 0x3ff;
+                offset = (offset & 0x200) == 0 ? 2 * offset : -(2 * (0x200 - (offset & 0x1ff)));
+                int target = pc + 2 + offset;
+                if (target >= start && target <= jump) {
+                    return NONE;
+                }
+                /* jumps out of the loop simply end the busy-wait */
+            } else if (op == 1) {
+                int sop = instruction & 0xff80;
+                int ad = (instruction >> 4) & 3;
+                int dstRegister = instruction & 0xf;
+                if ((sop != RRC && sop != SWPB && sop != RRA && sop != SXT)
+                        || ad != AM_REG || dstRegister <= SR) {
+                    return NONE;
+                }
+            } else if (op >= 4) {
+                int srcRegister = (instruction >> 8) & 0xf;
+                int as = (instruction >> 4) & 3;
+                int ad = (instruction >> 7) & 1;
+                int dstRegister = instruction & 0xf;
+                boolean write = op != CMP && op != BIT;
+
+                /* source operand */
+                if (srcRegister == CG2 || (srcRegister == CG1 && as > AM_INDEX)) {
+                    /* constant */
+                } else if (as == AM_INDEX && (srcRegister == CG1 || srcRegister == PC)) {
+                    int address = read(memory, pc + size);
+                    reads[count++] = srcRegister == PC ? (pc + size + address) & 0xffff : address;
+                    size += 2;
+                } else if (as == AM_IND_AUTOINC && srcRegister == PC) {
+                    /* immediate */
+                    size += 2;
+                } else if (as != AM_REG) {
+                    /* indexed or indirect via a register */
+                    return NONE;
+                }
+
+                /* destination operand */
+                if (ad == 1) {
+                    if (write || (dstRegister != CG1 && dstRegister != PC)) {
+                        return NONE;
+                    }
+                    int address = read(memory, pc + size);
+                    reads[count++] = dstRegister == PC ? (pc + size + address) & 0xffff : address;
+                    size += 2;
+                } else if (write && (dstRegister == PC || dstRegister == SP || dstRegister == SR)) {
+                    return NONE;
+                }
+            } else {
+                /* MSP430X instructions and extension words */
+                return NONE;
+            }
+            pc += size;
+        }
+        if (pc != jump) {
+            return NONE;
+        }
+        pcs[instructions++] = jump;
+        return new BusyWaitLoop(start, jump, copy(pcs, instructions), copy(reads, count));
+    }
+
+    private static int[] copy(int[] data, int count) {
+        int[] tmp = new int[count];
+        System.arraycopy(data, 0, tmp, 0, count);
+        return tmp;
+    }
+
+    private static int read(byte[] memory, int address) {
+        return (memory[address] & 0xff) | ((memory[address + 1] & 0xff) << 8);
+    }
+
+}
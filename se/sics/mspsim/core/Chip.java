@@ -35,6 +35,8 @@
  * Created : 17 jan 2008
  */
 package se.sics.mspsim.core;
+import java.io.IOException;
+
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.util.ArrayUtils;
 
@@ -179,6 +181,17 @@ public abstract class Chip implements Loggable, EventSource {
       }
   }
   
+  /* Used by snapshot capable chips to save the operating mode and state */
+  protected void saveChipState(SnapshotOutput out) throws IOException {
+      out.writeInt(mode);
+      out.writeInt(chipState);
+  }
+
+  protected void loadChipState(SnapshotInput in) throws IOException {
+      setMode(in.readInt());
+      stateChanged(in.readInt());
+  }
+
   /* Called by subclasses to inform about changes of configuration */
   protected void configurationChanged(int parameter, int oldValue, int newValue) {
       ConfigurationChangeListener[] listeners = ccListeners;
@@ -52,6 +52,8 @@ public class DisAsm implements MSP430Constants {
   private boolean step = true; //false;
 
   private MapTable map;
+  /* function of the last printed instruction */
+  private String lastFunction;
 
   // Idiots solution to single stepping...
   private BufferedReader input =
@@ -66,18 +68,19 @@ public class DisAsm implements MSP430Constants {
     return map;
   }
 
-  public DbgInstruction disassemble(int pc, int[] memory, int[] reg) {
+  public DbgInstruction disassemble(int pc, byte[] memory, int[] reg) {
     return disassemble(pc, memory, reg, 0);
   }
 
-  public DbgInstruction disassemble(int pc, int[] memory, int[] reg,
+  public DbgInstruction disassemble(int pc, byte[] memory, int[] reg,
 				 int interrupt) {
     DbgInstruction dbg = disassemble(pc, memory, reg, new DbgInstruction(),
 				     interrupt);
-    String fkn;
-    if ((fkn = dbg.getFunction()) != null) {
+    String fkn = dbg.getFunction();
+    if (fkn != null && !fkn.equals(lastFunction)) {
       System.out.println("//// " + fkn);
     }
+    lastFunction = fkn;
     System.out.println(dbg.getASMLine());
 
     /* Hack for printing the instruction after the ext word... */
@@ -96,11 +99,11 @@ public class DisAsm implements MSP430Constants {
 		       cpu.servicedInterrupt);
   }
 
-  public DbgInstruction disassemble(int pc, int[] memory, int[] reg,
+  public DbgInstruction disassemble(int pc, byte[] memory, int[] reg,
 					   DbgInstruction dbg, int interrupt) {
     int startPC = pc;
     int size = 0;
-    int instruction = memory[pc] + (memory[pc + 1] << 8);
+    int instruction = (memory[pc] & 0xff) + ((memory[pc + 1] & 0xff) << 8);
     int op = instruction >> 12;
     boolean word = (instruction & 0x40) == 0;
 
@@ -136,7 +139,7 @@ public class DisAsm implements MSP430Constants {
         op = instruction & 0xf0f0;
         int srcdata = (instruction & 0x0f00) >> 8;
         int dst = instruction & 0x000f;
-        int nextData = memory[pc] + (memory[pc + 1] << 8);
+        int nextData = (memory[pc] & 0xff) + ((memory[pc + 1] & 0xff) << 8);
         boolean rrword = true;
 
         switch(op) {
@@ -222,7 +225,7 @@ public class DisAsm implements MSP430Constants {
     {
         /* check CALLA first */
         int dst = instruction & 0x000f;
-        int nextData = memory[pc] + (memory[pc + 1] << 8);
+        int nextData = (memory[pc] & 0xff) + ((memory[pc + 1] & 0xff) << 8);
         String opstr = null;
         switch(instruction & 0xfff0) {
         case CALLA_REG:
@@ -281,7 +284,7 @@ public class DisAsm implements MSP430Constants {
                 adr = "R" + register;
                 break;
             case AM_INDEX:
-                dstAddress = memory[pc] + (memory[pc + 1] << 8);
+                dstAddress = (memory[pc] & 0xff) + ((memory[pc + 1] & 0xff) << 8);
                 adr = "R" + register + "(" + dstAddress + ")";
                 dstAddress = (register == CG1 ? 0 : reg[register]) + dstAddress;
                 pc += 2;
@@ -295,7 +298,7 @@ public class DisAsm implements MSP430Constants {
             case AM_IND_AUTOINC:
                 if (register == 0) {
                     // Can this be PC and be incremented only one byte?
-                    int tmp = memory[pc] + (memory[pc + 1] << 8);
+                    int tmp = (memory[pc] & 0xff) + ((memory[pc + 1] & 0xff) << 8);
                     MapEntry me;
                     if (map != null && (me = map.getEntry(tmp)) != null) {
                         adr = me.getName(); // + " = $" + Utils.hex16(tmp);
@@ -429,7 +432,7 @@ public class DisAsm implements MSP430Constants {
       case AM_INDEX:
 	// Indexed if reg != PC & CG1/CG2 - will PC be incremented?
 	if (srcRegister == CG1) {
-	  srcAddress = memory[pc] + (memory[pc + 1] << 8);
+	  srcAddress = (memory[pc] & 0xff) + ((memory[pc + 1] & 0xff) << 8);
 
 	  MapEntry me;
 	  if (map != null && (me = map.getEntry(srcAddress)) != null) {
@@ -441,8 +444,8 @@ public class DisAsm implements MSP430Constants {
 	} else if (srcRegister == CG2) {
 	  srcadr = "#1";
 	} else {
-	  srcAddress = reg[srcRegister] + memory[pc] + (memory[pc + 1] << 8);
-	  srcadr = "$" + Utils.hex16(memory[pc] + (memory[pc + 1] << 8)) + "(R" + srcRegister + ")";
+	  srcAddress = reg[srcRegister] + (memory[pc] & 0xff) + ((memory[pc + 1] & 0xff) << 8);
+	  srcadr = "$" + Utils.hex16((memory[pc] & 0xff) + ((memory[pc + 1] & 0xff) << 8)) + "(R" + srcRegister + ")";
 	  size += 2;
 	}
 	pc += 2;
@@ -463,7 +466,7 @@ public class DisAsm implements MSP430Constants {
 	} else if (srcRegister == CG1) {
 	  srcadr = "#8";
 	} else if (srcRegister == PC) {
-	  srcadr = "#$" + Utils.hex16(memory[pc] + (memory[pc + 1] << 8));
+	  srcadr = "#$" + Utils.hex16((memory[pc] & 0xff) + ((memory[pc + 1] & 0xff) << 8));
 	  pc += 2;
 	  size += 2;
 	} else if (srcRegister == CG2) {
@@ -478,7 +481,7 @@ public class DisAsm implements MSP430Constants {
       if (dstRegMode) {
 	dstadr = getRegName(dstRegister);
       } else {
-	dstAddress = memory[pc] + (memory[pc + 1] << 8);
+	dstAddress = (memory[pc] & 0xff) + ((memory[pc + 1] & 0xff) << 8);
         MapEntry me = map != null ? map.getEntry(dstAddress) : null;
 	if (dstRegister == 2) {
 	  if (me != null) {
@@ -564,8 +567,8 @@ public class DisAsm implements MSP430Constants {
       srcAddress &= 0xffff;
       if (srcAddress != -1) {
 	srcAddress &= 0xffff;
-	regs += " sMem:" + Utils.hex16(memory[srcAddress] +
-				       (memory[(srcAddress + 1) % 0xffff]
+	regs += " sMem:" + Utils.hex16((memory[srcAddress] & 0xff) +
+				       ((memory[(srcAddress + 1) % 0xffff] & 0xff)
 					<< 8));
       }
     }
@@ -574,7 +577,10 @@ public class DisAsm implements MSP430Constants {
     dbg.setRegs(regs);
     dbg.setInstruction(instruction, size);
     if (map != null) {
-      dbg.setFunction(map.getFunctionName(startPC));
+      MapEntry function = map.getContainingEntry(startPC);
+      if (function != null) {
+        dbg.setFunction(function.getName());
+      }
     }
 
     if (!step) {
@@ -629,11 +635,11 @@ public class DisAsm implements MSP430Constants {
       (((sr & CARRY) != 0) ? 'C' : '-');
   }
 
-  private static String dumpMem(int pc, int size, int[] memory) {
+  private static String dumpMem(int pc, int size, byte[] memory) {
     String output = "";
     for (int i = 0, n = size; i < n; i++) {
       if (size > i) {
-	output += Utils.hex8(memory[pc + i]) + " ";
+	output += Utils.hex8(memory[pc + i] & 0xff) + " ";
       } else {
 	output += "   ";
       }
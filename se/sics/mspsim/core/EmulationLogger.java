@@ -13,6 +13,9 @@ public interface EmulationLogger {
       ILLEGAL_IO_WRITE, VOID_IO_READ, VOID_IO_WRITE
   };
   
+  /* returns false if warnings of the specified type are ignored */
+  public boolean isEnabled(WarningType type);
+
   public void log(Loggable source, String message);
   public void logw(Loggable source, WarningType type, String message) throws EmulationException;
 
@@ -23,5 +26,8 @@ public interface EmulationLogger {
   
   public void addLogListener(LogListener listener);
   public void removeLogListener(LogListener listener);
+
+  /* prints any pending warnings and releases the resources of the logger */
+  public void close();
   
 }
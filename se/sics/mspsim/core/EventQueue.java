@@ -33,6 +33,11 @@
  *
  * EventQueue
  *
+ * Indexed binary heap of time events. Each scheduled event knows its
+ * position in the heap so that reschedule and remove are O(log n).
+ * Events with the same time are executed in the same order as with the
+ * earlier linked list implementation, i.e. the last added event first.
+ *
  * Author  : Joakim Eriksson
  * Created : Sun Oct 21 22:00:00 2007
  * Updated : $Date$
@@ -42,10 +47,25 @@
 package se.sics.mspsim.core;
 
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
 
 public class EventQueue {
 
-  private TimeEvent first;
+  private static final Comparator<TimeEvent> ORDER = new Comparator<TimeEvent>() {
+    public int compare(TimeEvent e1, TimeEvent e2) {
+      return before(e1, e2) ? -1 : (before(e2, e1) ? 1 : 0);
+    }
+  };
+
+  private static final Comparator<TimeEvent> ADD_ORDER = new Comparator<TimeEvent>() {
+    public int compare(TimeEvent e1, TimeEvent e2) {
+      return e1.queueOrder < e2.queueOrder ? -1 : (e1.queueOrder > e2.queueOrder ? 1 : 0);
+    }
+  };
+
+  private TimeEvent[] heap = new TimeEvent[16];
+  private long addCount = 0;
   public long nextTime;
   public int eventCount = 0;
 
@@ -53,6 +73,9 @@ public class EventQueue {
   }
 
   public void addEvent(TimeEvent event, long time) {
+    if (event.scheduledIn != null) {
+      event.remove();
+    }
     event.time = time;
     addEvent(event);
   }
@@ -61,111 +84,138 @@ public class EventQueue {
     if (event.scheduledIn != null) {
       event.remove();
     }
-    if (first == null) {
-      first = event;
-    } else {
-      TimeEvent pos = first;
-      TimeEvent lastPos = first;
-      while (pos != null && pos.time < event.time) {
-        lastPos = pos;
-        pos = pos.nextEvent;
-      }
-      // Here pos will be the first TE after event
-      // and lastPos the first before
-      if (pos == first) {
-        // Before all other
-        event.nextEvent = pos;
-        first = event;
-      } else {
-        event.nextEvent = pos;
-        lastPos.nextEvent = event;
-      }
-    }
-    if (first != null) {
-      nextTime = first.time;
-    } else {
-      nextTime = 0;
+    if (eventCount == heap.length) {
+      heap = Arrays.copyOf(heap, eventCount * 2);
     }
+    event.queueOrder = addCount++;
     event.scheduledIn = this;
-    eventCount++;
+    siftUp(event, eventCount++);
+    nextTime = heap[0].time;
   }
 
-  // Not yet impl.
-  public boolean removeEvent(TimeEvent event) {
-    TimeEvent pos = first;
-    TimeEvent lastPos = first;
-//  System.out.println("Removing: " + event.getShort() + "  Before remove: ");
-//  print();
-    while (pos != null && pos != event) {
-      lastPos = pos;
-      pos = pos.nextEvent;
-    }
-    if (pos == null) return false;
-    // pos == event!
-    if (pos == first) {
-      // remove it from first pos.
-      first = pos.nextEvent;
-    } else {
-      // else link prev to next...
-      lastPos.nextEvent = pos.nextEvent;
+  /* Used when restoring a snapshot to keep the original event order */
+  void addEvent(TimeEvent event, long time, long order) {
+    addEvent(event, time);
+    event.queueOrder = order;
+    int index = event.queueIndex;
+    siftDown(event, index);
+    if (heap[index] == event) {
+      siftUp(event, index);
     }
-    // unlink
-    pos.nextEvent = null;
+    nextTime = heap[0].time;
+  }
 
-    if (first != null) {
-      nextTime = first.time;
-    } else {
-      nextTime = 0;
-    }
-//  System.out.println("Removed =>");
-//  print();
-    event.scheduledIn = null;
-    eventCount--;
-    return true;
+  /* The scheduled events in the order they were added */
+  TimeEvent[] getEvents() {
+    TimeEvent[] events = Arrays.copyOf(heap, eventCount);
+    Arrays.sort(events, ADD_ORDER);
+    return events;
   }
 
-  public TimeEvent popFirst() {
-    TimeEvent tmp = first;
-    if (tmp != null) {
-      first = tmp.nextEvent;
-      // Unlink.
-      tmp.nextEvent = null;
+  long getAddCount() {
+    return addCount;
+  }
 
-      // No longer scheduled!
-      tmp.scheduledIn = null;
+  void setAddCount(long addCount) {
+    this.addCount = addCount;
+  }
 
-      eventCount--;
+  public boolean removeEvent(TimeEvent event) {
+    int index = event.queueIndex;
+    if (event.scheduledIn != this || index < 0 || index >= eventCount
+        || heap[index] != event) {
+      return false;
     }
+    removeAt(index);
+    return true;
+  }
 
-    if (first != null) {
-      nextTime = first.time;
-    } else {
+  public TimeEvent popFirst() {
+    if (eventCount == 0) {
       nextTime = 0;
+      return null;
     }
+    TimeEvent tmp = heap[0];
+    removeAt(0);
     return tmp;
   }
 
   public void removeAll() {
-    TimeEvent t = first;
-    while(t != null) {
-      TimeEvent clr = t;
-      t = t.nextEvent;
-      clr.nextEvent = null;
+    for (int i = 0; i < eventCount; i++) {
+      TimeEvent clr = heap[i];
+      heap[i] = null;
+      clr.queueIndex = -1;
       clr.time = 0;
       clr.scheduledIn = null;
     }
-    first = null;
     eventCount = 0;
   }
-  
+
+  private void removeAt(int index) {
+    TimeEvent event = heap[index];
+    int last = --eventCount;
+    TimeEvent moved = heap[last];
+    heap[last] = null;
+    if (index != last) {
+      siftDown(moved, index);
+      if (heap[index] == moved) {
+        siftUp(moved, index);
+      }
+    }
+    event.queueIndex = -1;
+    event.scheduledIn = null;
+    nextTime = eventCount > 0 ? heap[0].time : 0;
+  }
+
+  private void siftUp(TimeEvent event, int index) {
+    while (index > 0) {
+      int parent = (index - 1) >> 1;
+      TimeEvent p = heap[parent];
+      if (!before(event, p)) {
+        break;
+      }
+      heap[index] = p;
+      p.queueIndex = index;
+      index = parent;
+    }
+    heap[index] = event;
+    event.queueIndex = index;
+  }
+
+  private void siftDown(TimeEvent event, int index) {
+    int half = eventCount >> 1;
+    while (index < half) {
+      int child = 2 * index + 1;
+      TimeEvent c = heap[child];
+      int right = child + 1;
+      if (right < eventCount && before(heap[right], c)) {
+        child = right;
+        c = heap[child];
+      }
+      if (!before(c, event)) {
+        break;
+      }
+      heap[index] = c;
+      c.queueIndex = index;
+      index = child;
+    }
+    heap[index] = event;
+    event.queueIndex = index;
+  }
+
+  /* Earlier time first and the last added first for the same time */
+  private static boolean before(TimeEvent e1, TimeEvent e2) {
+    return e1.time < e2.time || (e1.time == e2.time && e1.queueOrder > e2.queueOrder);
+  }
+
   public void print(PrintStream out) {
-    TimeEvent t = first;
+    TimeEvent[] events = Arrays.copyOf(heap, eventCount);
+    Arrays.sort(events, ORDER);
     out.print("nxt: " + nextTime + " [");
-    while(t != null) {
-      out.print(t.getShort());
-      t = t.nextEvent;
-      if (t != null) out.print(", ");
+    for (int i = 0; i < events.length; i++) {
+      if (i > 0) out.print(", ");
+      out.print(events[i].getShort());
     }
     out.println("]");
   }
-} // LLEventQueue
+} // EventQueue
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2007-2012, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * -----------------------------------------------------------------
+ *
+ * ExecutionCounter
+ *
+ * Counts how many times each instruction has been executed. Counters
+ * are kept in 256 byte pages (same as the memory segments) that are
+ * only allocated for pages that code is executed from, so a node only
+ * pays for the code it runs instead of one counter per address.
+ */
+
+package se.sics.mspsim.core;
+
+import java.util.Arrays;
+
+public class ExecutionCounter {
+
+    /* One counter per instruction word address */
+    private static final int COUNTERS_PER_PAGE = Memory.SEGMENT_SIZE / 2;
+
+    private final int[][] pages;
+
+    public ExecutionCounter(int maxMem) {
+        pages = new int[maxMem / Memory.SEGMENT_SIZE][];
+    }
+
+    private ExecutionCounter(int[][] pages) {
+        this.pages = pages;
+    }
+
+    public final void count(int pc) {
+        int[] page = pages[pc >> 8];
+        if (page == null) {
+            page = pages[pc >> 8] = new int[COUNTERS_PER_PAGE];
+        }
+        page[(pc & 0xff) >> 1]++;
+    }
+
+    public final void count(int pc, int times) {
+        int[] page = pages[pc >> 8];
+        if (page == null) {
+            page = pages[pc >> 8] = new int[COUNTERS_PER_PAGE];
+        }
+        page[(pc & 0xff) >> 1] += times;
+    }
+
+    public int getCount(int address) {
+        int[] page = pages[address >> 8];
+        return page == null ? 0 : page[(address & 0xff) >> 1];
+    }
+
+    /**
+     * Returns the number of 256 byte pages that code has been executed from.
+     */
+    public int getPageCount() {
+        int count = 0;
+        for (int[] page : pages) {
+            if (page != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a copy of the current counters. The counters are copied
+     * while the emulation is running and a count being incremented at
+     * the same time might not be included.
+     */
+    public ExecutionCounter copy() {
+        int[][] tmp = new int[pages.length][];
+        for (int i = 0; i < pages.length; i++) {
+            int[] page = pages[i];
+            if (page != null) {
+                tmp[i] = page.clone();
+            }
+        }
+        return new ExecutionCounter(tmp);
+    }
+
+    public void clear() {
+        Arrays.fill(pages, null);
+    }
+
+}
@@ -42,16 +42,16 @@ import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.core.Memory.AccessMode;
 import se.sics.mspsim.util.Utils;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class Flash extends IOUnit {
+public class Flash extends IOUnit implements Snapshotable {
 
 	private static final int FCTL1 = 0x00;
 	private static final int FCTL2 = 0x02;
@@ -131,6 +131,18 @@ public class Flash extends IOUnit {
 
 	private String flashSaveFileName = "";  
 
+	/* Flash image: header, one flag per saved segment, info and main flash */
+	private static final int IMAGE_MAGIC = 0x4d535046; /* "MSPF" */
+	private static final int IMAGE_VERSION = 2;
+	private static final int IMAGE_HEADER_SIZE = 36;
+	/* Checksum of the firmware the saved main flash belongs to */
+	private static final int IMAGE_FIRMWARE = 32;
+
+	private MappedByteBuffer image;
+	private int segmentCount;
+	private boolean[] dirtySegments;
+	private boolean dirty;
+
 	/**
 	 * Infomem Configurations
 	 */
@@ -189,14 +201,14 @@ public class Flash extends IOUnit {
 		}
 	};
 
-	public Flash(MSP430Core cpu, int[] memory, FlashRange main_range,
+	public Flash(MSP430Core cpu, byte[] memory, FlashRange main_range,
 			FlashRange info_range, int offset) {
 		super("Flash", "Internal Flash", cpu, memory, offset);
 		this.main_range = main_range;
 		this.info_range = info_range;
 
-		Arrays.fill(memory, main_range.start, main_range.end, 0xff);
-		Arrays.fill(memory, info_range.start, info_range.end, 0xff);
+		Arrays.fill(memory, main_range.start, main_range.end, (byte) 0xff);
+		Arrays.fill(memory, info_range.start, info_range.end, (byte) 0xff);
 
 		reset(MSP430.RESET_POR);
 	}
@@ -303,8 +315,10 @@ public class Flash extends IOUnit {
 						Utils.hex(area_end, 4));
 			}
 			for (int i = area_start; i < area_end; i++) {
-				memory[i] = 0xff;
+				memory[i] = (byte) 0xff;
 			}
+			cpu.instructionCache.invalidate(area_start, area_end);
+			markDirty(area_start, area_end);
 			waitFlashProcess(SEGMENT_ERASE_TIME);
 			break;
 
@@ -313,18 +327,24 @@ public class Flash extends IOUnit {
 				return;
 			}
 			for (int i = main_range.start; i < main_range.end; i++) {
-				memory[i] = 0xff;
+				memory[i] = (byte) 0xff;
 			}
+			cpu.instructionCache.invalidate(main_range.start, main_range.end);
+			markDirty(main_range.start, main_range.end);
 			waitFlashProcess(MASS_ERASE_TIME);
 			break;
 
 		case ERASE_ALL:
 			for (int i = main_range.start; i < main_range.end; i++) {
-				memory[i] = 0xff;
+				memory[i] = (byte) 0xff;
 			}
 			for (int i = info_range.start; i < main_range.end; i++) {
-				memory[i] = 0xff;
+				memory[i] = (byte) 0xff;
 			}
+			cpu.instructionCache.invalidate(main_range.start, main_range.end);
+			cpu.instructionCache.invalidate(info_range.start, info_range.end);
+			markDirty(info_range.start, info_range.end);
+			markDirty(main_range.start, main_range.end);
 			waitFlashProcess(MASS_ERASE_TIME);
 			break;
 		case WRITE_SINGLE:
@@ -357,13 +377,14 @@ public class Flash extends IOUnit {
 					memory[address + 3] &= (data >> 24) & 0xff;
 				}
 			}
+			cpu.instructionCache.invalidate(address, address + dataMode.bytes);
+			markDirty(address, address + dataMode.bytes);
 			if (DEBUG) {
 				log("Writing $" + Utils.hex20(data) + " to $" + Utils.hex(address, 4) + " (" + dataMode.bytes + " bytes)");
 			}
 			waitFlashProcess(wait_time);
 			break;
 		}
-		writeFile();
 	}
 
 	public void notifyRead(int address) {
@@ -467,6 +488,7 @@ public class Flash extends IOUnit {
 		wait = true;
 		locked = true;
 		currentWriteMode = WriteMode.NONE;   
+		writeFile();
 	}
 
 	private WriteMode getEraseMode(int regdata) {
@@ -485,6 +507,8 @@ public class Flash extends IOUnit {
 
 	private void triggerLockFlash() {
 		locked = true;
+		/* the programming sequence is complete - save the changed segments */
+		writeFile();
 	}
 
 	private void triggerUnlockFlash() {
@@ -632,87 +656,251 @@ public class Flash extends IOUnit {
 		currentWriteMode = WriteMode.NONE;
 	}
 
-	public void setFile(String FileName) {
-		flashSaveFileName = FileName;
+	public void saveState(SnapshotOutput out) throws IOException {
+		saveIOState(out);
+		out.writeInt(mode);
+		out.writeInt(clockcfg);
+		out.writeInt(statusreg);
+		out.writeBoolean(locked);
+		out.writeBoolean(wait);
+		out.writeBoolean(blocked_cpu);
+		out.writeInt(currentWriteMode.ordinal());
+		out.writeInt(blockwriteCount);
+		out.writeInt(infomemcfg);
+		out.writeBoolean(lockInfo);
+		out.writeEvent(end_process);
+	}
+
+	public void loadState(SnapshotInput in) throws IOException {
+		loadIOState(in);
+		mode = in.readInt();
+		clockcfg = in.readInt();
+		statusreg = in.readInt();
+		locked = in.readBoolean();
+		wait = in.readBoolean();
+		blocked_cpu = in.readBoolean();
+		currentWriteMode = WriteMode.values()[in.readInt()];
+		blockwriteCount = in.readInt();
+		infomemcfg = in.readInt();
+		lockInfo = in.readBoolean();
+		in.readEvent(end_process);
+	}
+
+	/**
+	 * Selects the file the flash is saved to. Any earlier file is saved
+	 * and released first and an empty name keeps the flash in memory only.
+	 */
+	public void setFile(String fileName) {
+		close();
+		flashSaveFileName = fileName;
 		readFile();
 	}
 
-	public byte[] convertByte2HexByte(byte[] buf){
-		byte[] bufO = new byte[buf.length*2];
-		for(int i=0;i<buf.length;i++){
-			String a=Utils.hex8(buf[i]);
-			bufO[2*i]=(byte)a.charAt(0);
-			bufO[2*i+1]=(byte)a.charAt(1);
+	/**
+	 * Saves the changed segments, forces the flash image to the storage
+	 * device and releases it. The flash is kept in memory only afterwards.
+	 */
+	public void close() {
+		if (image != null) {
+			writeFile();
+			image.force();
+			image = null;
+			dirtySegments = null;
+		}
+		flashSaveFileName = "";
+	}
+
+	private static int getSegmentCount(FlashRange range) {
+		return (range.end - range.start + range.segment_size - 1) / range.segment_size;
+	}
 
+	/* Offset of a flash address in the image (info memory is stored first) */
+	private int getImageOffset(int address) {
+		int offset = IMAGE_HEADER_SIZE + segmentCount;
+		if (info_range.isInRange(address)) {
+			return offset + address - info_range.start;
 		}
-		return bufO;
+		return offset + info_range.end - info_range.start + address - main_range.start;
 	}
 
-	public byte[] convertHexByte2Byte(byte[] buf){
-		byte[] bufO = new byte[buf.length/2];
-		for(int i=0;i<buf.length/2;i++){
-			bufO[i]= (byte)Integer.parseInt(String.format("%c", buf[2*i])+String.format("%c", buf[2*i+1]),16);
+	private void getSegment(int index, int[] start, int[] end) {
+		FlashRange range = info_range;
+		int infoSegments = getSegmentCount(info_range);
+		if (index >= infoSegments) {
+			range = main_range;
+			index -= infoSegments;
 		}
-		return bufO;	
+		start[0] = range.start + index * range.segment_size;
+		end[0] = Math.min(start[0] + range.segment_size, range.end);
 	}
 
-public void readFile() {
-	if (flashSaveFileName.length() > 0) {
+	private void markDirty(int start, int end) {
+		if (dirtySegments != null) {
+			markDirty(info_range, 0, start, end);
+			markDirty(main_range, getSegmentCount(info_range), start, end);
+		}
+	}
 
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		byte[] buf = new byte[1024];
-		try {
-			File file = new File(flashSaveFileName);
-			FileInputStream fis = new FileInputStream(file);
-			for (int readNum; (readNum = fis.read(buf)) != -1;) {
-				bos.write(convertHexByte2Byte(buf), 0, readNum/2);
+	private void markDirty(FlashRange range, int firstSegment, int start, int end) {
+		start = Math.max(start, range.start);
+		end = Math.min(end, range.end);
+		if (start < end) {
+			int first = (start - range.start) / range.segment_size;
+			int last = (end - 1 - range.start) / range.segment_size;
+			for (int i = first; i <= last; i++) {
+				dirtySegments[firstSegment + i] = true;
 			}
-			fis.close();
-		} catch (Exception ex) {
-			System.out.println("No file "+flashSaveFileName+ " found. Write a new file");
-			writeFile();
-			return;
+			dirty = true;
 		}
-		byte[] bytes = bos.toByteArray();
+	}
 
-		int j = 0;
+	private boolean isValidImage(ByteBuffer header) {
+		return header.getInt(0) == IMAGE_MAGIC
+				&& header.getInt(4) == IMAGE_VERSION
+				&& header.getInt(8) == info_range.start
+				&& header.getInt(12) == info_range.end
+				&& header.getInt(16) == info_range.segment_size
+				&& header.getInt(20) == main_range.start
+				&& header.getInt(24) == main_range.end
+				&& header.getInt(28) == main_range.segment_size;
+	}
 
-		for (int i = info_range.start; i < info_range.end; i++) {
-			memory[i] = bytes[j++];
-		}
+	/* Checksum of the main flash as loaded with the firmware */
+	private int getFirmwareChecksum() {
+		CRC32 crc = new CRC32();
+		crc.update(memory, main_range.start, main_range.end - main_range.start);
+		return (int) crc.getValue();
 	}
-}
 
-public void writeFile() {
-	if (flashSaveFileName.length() > 0) {
-		File someFile = new File(flashSaveFileName);
-		FileOutputStream fos;
+	/**
+	 * Maps the flash image and restores all segments that have been saved
+	 * in it. Saved main flash segments are only restored for the same
+	 * firmware as when they were saved, i.e. the file must be selected
+	 * after the firmware has been loaded. A file that is not a valid image
+	 * for this flash layout is replaced by a new image. Info memory saved
+	 * in the earlier hex format is converted to the new image.
+	 */
+	public void readFile() {
+		if (flashSaveFileName.length() == 0) {
+			return;
+		}
+		segmentCount = getSegmentCount(info_range) + getSegmentCount(main_range);
+		int imageSize = getImageOffset(main_range.end);
+		byte[] oldData = null;
+		boolean valid = false;
 		try {
-			fos = new FileOutputStream(someFile);
-		} catch (Exception e) {
+			RandomAccessFile file = new RandomAccessFile(flashSaveFileName, "rw");
+			try {
+				FileChannel channel = file.getChannel();
+				long size = channel.size();
+				if (size == imageSize) {
+					ByteBuffer header = ByteBuffer.allocate(IMAGE_HEADER_SIZE);
+					channel.read(header, 0);
+					valid = isValidImage(header);
+				}
+				if (!valid) {
+					if (size > 0 && size < imageSize) {
+						oldData = new byte[(int) size];
+						file.readFully(oldData);
+					}
+					channel.truncate(0);
+				}
+				image = channel.map(FileChannel.MapMode.READ_WRITE, 0, imageSize);
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			logw(WarningType.EMULATION_ERROR, "Failed to open flash image " + flashSaveFileName + ": " + e);
+			image = null;
+			dirtySegments = null;
 			return;
 		}
 
-		int size = info_range.end - info_range.start;//+main_range.end - main_range.start;
-		byte[] All = new byte[size * 4];
+		dirtySegments = new boolean[segmentCount];
+		dirty = false;
+		int firmware = getFirmwareChecksum();
+		if (valid) {
+			if (image.getInt(IMAGE_FIRMWARE) != firmware) {
+				/* the saved main flash was written by other firmware */
+				for (int i = getSegmentCount(info_range); i < segmentCount; i++) {
+					image.put(IMAGE_HEADER_SIZE + i, (byte) 0);
+				}
+				image.putInt(IMAGE_FIRMWARE, firmware);
+				log("Firmware changed. Discarding the saved main flash in " + flashSaveFileName);
+			}
+			int[] start = new int[1];
+			int[] end = new int[1];
+			ByteBuffer data = image.duplicate();
+			for (int i = 0; i < segmentCount; i++) {
+				if (image.get(IMAGE_HEADER_SIZE + i) != 0) {
+					getSegment(i, start, end);
+					data.position(getImageOffset(start[0]));
+					data.get(memory, start[0], end[0] - start[0]);
+					cpu.instructionCache.invalidate(start[0], end[0]);
+				}
+			}
+			return;
+		}
 
-		int j = 0;
-		//      for (int i = main_range.start; i < main_range.end; i++)
+		image.putInt(0, IMAGE_MAGIC);
+		image.putInt(4, IMAGE_VERSION);
+		image.putInt(8, info_range.start);
+		image.putInt(12, info_range.end);
+		image.putInt(16, info_range.segment_size);
+		image.putInt(20, main_range.start);
+		image.putInt(24, main_range.end);
+		image.putInt(28, main_range.segment_size);
+		image.putInt(IMAGE_FIRMWARE, firmware);
+		if (oldData != null && readHexFile(oldData)) {
+			log("Converted info memory in " + flashSaveFileName + " to a flash image");
+			markDirty(info_range.start, info_range.end);
+			writeFile();
+		} else {
+			log("No flash image " + flashSaveFileName + " found. Write a new image");
+		}
+	}
 
-		for (int i = info_range.start; i < info_range.end; i++) {
-//			All[j++] = (byte) (memory[i] >> 24);
-//			All[j++] = (byte) (memory[i] >> 16);
-//			All[j++] = (byte) (memory[i] >> 8);
-			All[j++] = (byte) memory[i];
+	/* Info memory saved as hex digits by earlier versions */
+	private boolean readHexFile(byte[] data) {
+		int size = info_range.end - info_range.start;
+		if (data.length < size * 2) {
+			return false;
 		}
+		for (int i = 0; i < size * 2; i++) {
+			if (Character.digit(data[i], 16) < 0) {
+				return false;
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			memory[info_range.start + i] = (byte)
+					((Character.digit(data[i * 2], 16) << 4) | Character.digit(data[i * 2 + 1], 16));
+		}
+		cpu.instructionCache.invalidate(info_range.start, info_range.end);
+		return true;
+	}
 
-		try {
-			fos.write(convertByte2HexByte(All));
-			fos.flush();
-			fos.close();
-		} catch (Exception e) {
+	/**
+	 * Writes the segments that have been erased or programmed since the
+	 * last call to the flash image. The segment data is written before
+	 * the segment is flagged as saved. This is done each time the flash
+	 * is locked after programming and when the image is closed.
+	 */
+	public void writeFile() {
+		if (!dirty) {
 			return;
 		}
+		int[] start = new int[1];
+		int[] end = new int[1];
+		ByteBuffer data = image.duplicate();
+		for (int i = 0; i < segmentCount; i++) {
+			if (dirtySegments[i]) {
+				getSegment(i, start, end);
+				data.position(getImageOffset(start[0]));
+				data.put(memory, start[0], end[0] - start[0]);
+				image.put(IMAGE_HEADER_SIZE + i, (byte) 1);
+				dirtySegments[i] = false;
+			}
+		}
+		dirty = false;
 	}
 }
-}
@@ -1,5 +1,6 @@
 package se.sics.mspsim.core;
 
+import java.io.IOException;
 import java.util.ArrayDeque;
 
 import javax.swing.tree.DefaultMutableTreeNode;
@@ -13,7 +14,7 @@ import se.sics.mspsim.chip.I2CUnit.I2CData;
  * @author Unknown
  * @author Víctor Ariño <victor.arino@tado.com>
  */
-public class GenericUSCI extends IOUnit implements DMATrigger, USARTSource {
+public class GenericUSCI extends IOUnit implements DMATrigger, USARTSource, Snapshotable {
 
     // USCI A/Bx common register offset
     public static final int CTL0 = 1; /* Is this really correct??? */
@@ -90,7 +91,7 @@ public class GenericUSCI extends IOUnit implements DMATrigger, USARTSource {
 	
 	private ArrayDeque<Integer> txBuffer = new ArrayDeque<Integer>(100);
 
-    public GenericUSCI(MSP430Core cpu, int uartIndex, int[] memory, MSP430Config config) {
+    public GenericUSCI(MSP430Core cpu, int uartIndex, byte[] memory, MSP430Config config) {
         super(config.uartConfig[uartIndex].name, cpu, memory, config.uartConfig[uartIndex].offset);
         /* do some stuff ? */
         
@@ -231,6 +232,82 @@ public class GenericUSCI extends IOUnit implements DMATrigger, USARTSource {
     public void interruptServiced(int vector) {
     }
 
+    public void saveState(SnapshotOutput out) throws IOException {
+        saveIOState(out);
+        out.writeInt(ubr0);
+        out.writeInt(ubr1);
+        out.writeInt(ie);
+        out.writeInt(ifg);
+        out.writeInt(iv);
+        out.writeInt(clockSource);
+        out.writeInt(baudRate);
+        out.writeInt(tickPerByte);
+        out.writeLong(nextTXReady);
+        out.writeBoolean(transmitting);
+        out.writeInt(ctl0);
+        out.writeInt(ctl1);
+        out.writeInt(br0);
+        out.writeInt(br1);
+        out.writeInt(mctl);
+        out.writeInt(rxbuf);
+        out.writeInt(txbuf);
+        out.writeInt(stat);
+        out.writeBoolean(syncMode);
+        out.writeBoolean(moduleEnabled);
+        out.writeBoolean(i2cEnabled);
+        out.writeBoolean(i2cTransmitter);
+        out.writeInt(i2cSlaveAddress);
+        out.writeInt(i2cOwnAddress);
+        out.writeBoolean(readyForNextTransmit);
+        out.writeBoolean(stopConditionPending);
+        out.writeInt(txBuffer.size());
+        for (Integer data : txBuffer) {
+            out.writeInt(data);
+        }
+        out.writeEvent(txTrigger);
+    }
+
+    public void loadState(SnapshotInput in) throws IOException {
+        loadIOState(in);
+        ubr0 = in.readInt();
+        ubr1 = in.readInt();
+        ie = in.readInt();
+        ifg = in.readInt();
+        iv = in.readInt();
+        clockSource = in.readInt();
+        baudRate = in.readInt();
+        tickPerByte = in.readInt();
+        nextTXReady = in.readLong();
+        transmitting = in.readBoolean();
+        ctl0 = in.readInt();
+        ctl1 = in.readInt();
+        br0 = in.readInt();
+        br1 = in.readInt();
+        mctl = in.readInt();
+        rxbuf = in.readInt();
+        txbuf = in.readInt();
+        stat = in.readInt();
+        syncMode = in.readBoolean();
+        moduleEnabled = in.readBoolean();
+        i2cEnabled = in.readBoolean();
+        i2cTransmitter = in.readBoolean();
+        i2cSlaveAddress = in.readInt();
+        i2cOwnAddress = in.readInt();
+        readyForNextTransmit = in.readBoolean();
+        stopConditionPending = in.readBoolean();
+        txBuffer.clear();
+        for (int i = in.readInt(); i > 0; i--) {
+            txBuffer.add(in.readInt());
+        }
+        in.readEvent(txTrigger);
+    }
+
+    @Override
+    public boolean isReadStable(int address) {
+        /* reading the receive buffer clears the receive flag */
+        return address - offset != RXBUF;
+    }
+
     // Only 8 bits / read!
     public void write(int address, int data, boolean word, long cycles) {
       address = address - offset;
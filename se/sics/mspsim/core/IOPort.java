@@ -36,6 +36,7 @@
  */
 
 package  se.sics.mspsim.core;
+import java.io.IOException;
 import java.util.Arrays;
 
 import javax.swing.tree.DefaultMutableTreeNode;
@@ -43,7 +44,7 @@ import javax.swing.tree.DefaultMutableTreeNode;
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.util.Utils;
 
-public class IOPort extends IOUnit {
+public class IOPort extends IOUnit implements Snapshotable {
 
     public enum PinState { LOW, HI };
 
@@ -95,14 +96,14 @@ public class IOPort extends IOUnit {
      * Creates a new <code>IOPort</code> instance.
      *
      */
-    public IOPort(MSP430Core cpu, int port, int interrupt, int[] memory, int offset) {
+    public IOPort(MSP430Core cpu, int port, int interrupt, byte[] memory, int offset) {
         this(cpu, port, interrupt, memory, offset,
                 interrupt == 0 ? PORTMAP_NO_INTERRUPT : PORTMAP_INTERRUPT);
     }
 
     /* Create an IOPort with a special PortMap */
     public IOPort(MSP430Core cpu, int port,
-            int interrupt, int[] memory, int offset, PortReg[] portMap) {
+            int interrupt, byte[] memory, int offset, PortReg[] portMap) {
         super("P" + port, "Port " + port, cpu, memory, offset);
         this.port = port;
         this.interrupt = interrupt;
@@ -422,6 +423,13 @@ public class IOPort extends IOUnit {
     }
 
 
+    @Override
+    public boolean isReadStable(int address) {
+        /* reading the interrupt vector clears the interrupt flag */
+        PortReg reg = portMap[address - offset];
+        return reg != null && reg != PortReg.IV_L && reg != PortReg.IV_H;
+    }
+
     public void write(int address, int data, boolean word, long cycles) {
         int iAddress = address - offset;
         PortReg fun = portMap[iAddress];
@@ -484,6 +492,51 @@ public class IOPort extends IOUnit {
         }
     }
 
+    public void saveState(SnapshotOutput out) throws IOException {
+        saveIOState(out);
+        out.writeInt(in);
+        out.writeInt(this.out);
+        out.writeInt(dir);
+        out.writeInt(sel);
+        out.writeInt(sel2);
+        out.writeInt(ie);
+        out.writeInt(ifg);
+        out.writeInt(ies);
+        out.writeInt(ren);
+        out.writeInt(ds);
+        out.writeInt(selValue);
+        out.writeInt(selValue2);
+        out.writeInt(oldPortOut);
+        out.writeInt(iv);
+        for (PinState state : pinState) {
+            out.writeByte(state == null ? -1 : state.ordinal());
+        }
+    }
+
+    /* Listeners are not notified - connected chips restore their own state */
+    public void loadState(SnapshotInput in) throws IOException {
+        loadIOState(in);
+        this.in = in.readInt();
+        out = in.readInt();
+        dir = in.readInt();
+        sel = in.readInt();
+        sel2 = in.readInt();
+        ie = in.readInt();
+        ifg = in.readInt();
+        ies = in.readInt();
+        ren = in.readInt();
+        ds = in.readInt();
+        selValue = in.readInt();
+        selValue2 = in.readInt();
+        oldPortOut = in.readInt();
+        iv = in.readInt();
+        PinState[] states = PinState.values();
+        for (int i = 0; i < pinState.length; i++) {
+            int state = in.readByte();
+            pinState[i] = state < 0 ? null : states[state];
+        }
+    }
+
     public void reset(int type) {
         //Arrays.fill(pinState, PinState.LOW);
         //in = 0;
@@ -1,6 +1,7 @@
 package se.sics.mspsim.core;
 
 import java.util.Arrays;
+import java.util.List;
 import se.sics.mspsim.util.Utils;
 
 public class IOSegment implements Memory {
@@ -54,6 +55,21 @@ public class IOSegment implements Memory {
         }
     }
 
+    /* adds the units that are only reachable through this segment */
+    void addIOUnits(List<Object> units) {
+        IOUnit last = voidIO;
+        for (IOUnit io : mem) {
+            if (io != last && io != voidIO && !units.contains(io)) {
+                units.add(io);
+            }
+            last = io;
+        }
+    }
+
+    boolean isReadStable(int address) {
+        return mem[address].isReadStable(address);
+    }
+
     @Override
     public int get(int address, AccessMode mode) {
         return read(address, mode, AccessType.READ);
@@ -36,6 +36,8 @@
  */
 
 package se.sics.mspsim.core;
+import java.io.IOException;
+
 import javax.swing.tree.DefaultMutableTreeNode;
 
 import se.sics.mspsim.core.EmulationLogger.WarningType;
@@ -43,7 +45,7 @@ import se.sics.mspsim.core.EmulationLogger.WarningType;
 public abstract class IOUnit implements InterruptHandler, Loggable {
 
   protected final MSP430Core cpu;
-  protected final int[] memory;
+  protected final byte[] memory;
   protected final int offset;
 
   protected final String id;
@@ -56,11 +58,11 @@ public abstract class IOUnit implements InterruptHandler, Loggable {
 
   protected EmulationLogger logger;
 
-  public IOUnit(String id, MSP430Core cpu, int[] memory, int offset) {
+  public IOUnit(String id, MSP430Core cpu, byte[] memory, int offset) {
     this(id, id, cpu, memory, offset);
   }
 
-  public IOUnit(String id, String name, MSP430Core cpu, int[] memory, int offset) {
+  public IOUnit(String id, String name, MSP430Core cpu, byte[] memory, int offset) {
     this.id = id;
     this.name = name;
     this.cpu = cpu;
@@ -105,6 +107,15 @@ public abstract class IOUnit implements InterruptHandler, Loggable {
       }
   }
   
+  /* Used by snapshot capable units to save the IO state */
+  protected void saveIOState(SnapshotOutput out) throws IOException {
+      out.writeInt(ioState);
+  }
+
+  protected void loadIOState(SnapshotInput in) throws IOException {
+      stateChanged(in.readInt());
+  }
+
   public void reset(int type) {
   }
 
@@ -132,6 +143,16 @@ public abstract class IOUnit implements InterruptHandler, Loggable {
       logger.logw(this, type, msg);
   }
 
+  /**
+   * Returns true if reading the specified register has no side effects and
+   * its value can only change when a time event is executed or when the
+   * CPU writes to the IO unit. Busy-wait loops polling such registers can
+   * skip ahead to the next event.
+   */
+  public boolean isReadStable(int address) {
+      return false;
+  }
+
   public String info() {
       return "* no info";
   }
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2007-2012, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * -----------------------------------------------------------------
+ *
+ * InstructionCache
+ *
+ * Caches the fetched and decoded instruction words per PC so that
+ * emulateOP does not need to go through the memory segments and
+ * re-decode the extension word for every executed instruction.
+ *
+ * Entries are kept in 256 byte pages (same as the memory segments)
+ * that are only allocated for pages that code is executed from. The
+ * analyzed busy-wait loops are kept per page in the same way and are
+ * dropped as soon as anything in their page is modified.
+ */
+
+package se.sics.mspsim.core;
+
+import java.util.Arrays;
+
+import se.sics.mspsim.core.Memory.AccessMode;
+
+public class InstructionCache {
+
+    /* Entry layout: two ints per instruction word address */
+    private static final int ENTRIES_PER_PAGE = Memory.SEGMENT_SIZE / 2;
+    private static final int INVALID = -1;
+
+    /* Decoded info bits */
+    public static final int INFO_MODE_MASK    = 0x03; /* AccessMode ordinal */
+    public static final int INFO_REPEAT_REG   = 0x08; /* repeat count in register */
+    public static final int INFO_WORDX20      = 0x10; /* 20 bit data length */
+
+    private static final AccessMode[] MODES = AccessMode.values();
+
+    private final int[][] pages;
+    private final BusyWaitLoop[][] loops;
+
+    public InstructionCache(int maxMem) {
+        pages = new int[maxMem / Memory.SEGMENT_SIZE][];
+        loops = new BusyWaitLoop[maxMem / Memory.SEGMENT_SIZE][];
+    }
+
+    /**
+     * Returns the cached instruction at the specified address as
+     * (extension word << 16) | instruction or -1 if not cached.
+     */
+    public final int getInstruction(int address) {
+        final int[] page = pages[address >> 8];
+        if (page == null) {
+            return INVALID;
+        }
+        return page[address & 0xfe];
+    }
+
+    /**
+     * Returns the decoded info for an address that is known to be cached.
+     */
+    public final int getInfo(int address) {
+        return pages[address >> 8][(address & 0xfe) + 1];
+    }
+
+    public void put(int address, int instruction, int extWord) {
+        int[] page = getPage(address);
+        int info = decode(instruction, extWord);
+        page[address & 0xfe] = instruction | (extWord << 16);
+        page[(address & 0xfe) + 1] = info;
+    }
+
+    /**
+     * Returns the analyzed busy-wait loop ending with the backward jump at
+     * the specified address or null if the loop has not been analyzed yet.
+     */
+    public final BusyWaitLoop getLoop(int address) {
+        final BusyWaitLoop[] page = loops[address >> 8];
+        if (page == null) {
+            return null;
+        }
+        return page[(address & 0xff) >> 1];
+    }
+
+    public void putLoop(int address, BusyWaitLoop loop) {
+        /* make sure writes to the page are noticed */
+        getPage(address);
+        BusyWaitLoop[] page = loops[address >> 8];
+        if (page == null) {
+            page = new BusyWaitLoop[ENTRIES_PER_PAGE];
+            loops[address >> 8] = page;
+        }
+        page[(address & 0xff) >> 1] = loop;
+    }
+
+    private int[] getPage(int address) {
+        int[] page = pages[address >> 8];
+        if (page == null) {
+            page = new int[ENTRIES_PER_PAGE * 2];
+            Arrays.fill(page, INVALID);
+            pages[address >> 8] = page;
+        }
+        return page;
+    }
+
+    public static int decode(int instruction, int extWord) {
+        int info = 0;
+        boolean word = (instruction & 0x40) == 0;
+        boolean wordx20 = false;
+        if (extWord != 0) {
+            if ((extWord & 0x80) == 0x80) {
+                info |= INFO_REPEAT_REG;
+            }
+            wordx20 = (extWord & 0x40) == 0;
+            if (wordx20) {
+                info |= INFO_WORDX20;
+            }
+        }
+        AccessMode mode = wordx20 ? AccessMode.WORD20 : (word ? AccessMode.WORD : AccessMode.BYTE);
+        return info | mode.ordinal();
+    }
+
+    public static AccessMode getMode(int info) {
+        return MODES[info & INFO_MODE_MASK];
+    }
+
+    /**
+     * Invalidates all cached instructions that overlap the specified
+     * address range (end exclusive). An instruction with extension word
+     * spans four bytes so the entry before the range is also invalidated.
+     */
+    public void invalidate(int start, int end) {
+        int address = (start - 2) & ~1;
+        if (address < 0) {
+            address = 0;
+        }
+        if (end > pages.length * Memory.SEGMENT_SIZE) {
+            end = pages.length * Memory.SEGMENT_SIZE;
+        }
+        for (; address < end; address += 2) {
+            int[] page = pages[address >> 8];
+            if (page != null) {
+                page[address & 0xfe] = INVALID;
+                loops[address >> 8] = null;
+            } else {
+                /* skip to next page */
+                address = (address | 0xff) - 1;
+            }
+        }
+    }
+
+    /**
+     * Invalidates any cached instructions affected by a write of the
+     * specified number of bytes. Cheap when no code is cached near
+     * the address which is the normal case for RAM writes.
+     */
+    public final void invalidateWrite(int address, int bytes) {
+        int first = (address - 2) >> 8;
+        int last = (address + bytes - 1) >> 8;
+        if (first < 0) {
+            first = 0;
+        }
+        if (last >= pages.length) {
+            last = pages.length - 1;
+        }
+        for (int i = first; i <= last; i++) {
+            if (pages[i] != null) {
+                invalidate(address, address + bytes);
+                return;
+            }
+        }
+    }
+
+    public void invalidatePage(int page) {
+        pages[page] = null;
+        loops[page] = null;
+    }
+
+    public void clear() {
+        Arrays.fill(pages, null);
+        Arrays.fill(loops, null);
+    }
+
+}
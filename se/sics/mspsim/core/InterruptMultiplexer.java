@@ -12,6 +12,12 @@ public class InterruptMultiplexer implements InterruptHandler {
         this.vector = vector;
     }
 
+    /* Used when restoring a snapshot */
+    void setInterruptBits(int bits) {
+        interruptBits = bits;
+        cpu.flagInterrupt(vector, this, interruptBits > 0);
+    }
+
     public void updateInterrupt(boolean value, int bit) {
         if (value) interruptBits |= 1 << bit;
         else interruptBits &= ~(1 << bit);
@@ -36,23 +36,49 @@
  */
 
 package se.sics.mspsim.core;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
 
 import se.sics.mspsim.profiler.SimpleProfiler;
 import se.sics.mspsim.util.ArrayUtils;
 import se.sics.mspsim.util.ComponentRegistry;
 import se.sics.mspsim.util.MapTable;
+import se.sics.mspsim.util.TraceRecorder;
 
 public class MSP430 extends MSP430Core {
 
-	private int[] execCounter;
+	private ExecutionCounter execCounter;
 	private int[] trace;
 	private int tracePos;
+	private volatile TraceRecorder traceRecorder;
+	/* a trace recorder change is handed over to the execution thread */
+	private final Object traceLock = new Object();
+	private volatile boolean traceChangePending;
+	private TraceRecorder pendingRecorder;
+	private boolean pendingMemoryAccess;
+	private Thread executionThread;
 
 	private boolean debug = false;
 	private boolean running = false;
 	private boolean isBreaking = false;
-	private double rate = 1.0;
+	private boolean busyWaitSkipping = false;
+	/* changed by other threads while the CPU is running */
+	private volatile boolean fastForward = false;
+	private volatile double rate = 1.0;
+	private volatile boolean paceReset = false;
+
+	/* Do not try to catch up when more than this behind real time */
+	private static final long MAX_PACE_LAG = 100000000L;
+	private long paceTime;
+	private long paceCycles;
+
+	// Achieved speed of the last or current run
+	private long runStartTime;
+	private long runStartCycles;
+	private long runStopTime;
+	private long runStopCycles;
 
 	// Debug time - measure cycles
 	private long lastCycles = 0;
@@ -92,8 +118,12 @@ public class MSP430 extends MSP430Core {
 		try {
 			// ??? - power-up  should be executed?!
 			time = System.currentTimeMillis();
+			runStartTime = paceTime = System.nanoTime();
+			runStartCycles = paceCycles = cycles;
 			run();
 		} finally {
+			runStopTime = System.nanoTime();
+			runStopCycles = cycles;
 			setRunning(false);
 		}
 	}
@@ -101,21 +131,31 @@ public class MSP430 extends MSP430Core {
 	private void run() throws EmulationException {
 		while (!isStopping) {
 
-			if (cycles > nextOut && !debug) {
+			if (traceChangePending) {
+				changeTraceRecorder();
+			}
+
+			if (cycles > nextOut && !debug && !fastForward) {
 				printCPUSpeed(reg[PC]);
 				nextOut = cycles + 20000007;
 			}
 
 			int pc = emulateOP(-1);
 			if (pc >= 0) {
+				if (busyWaitSkipping && !debug && traceRecorder == null) {
+					skipLoop(pc, -1);
+				}
 				if (execCounter != null) {
-					execCounter[pc]++;
+					execCounter.count(pc);
 				}
 				if (trace != null) {
 					trace[tracePos++] = pc;
 					if (tracePos >= trace.length)
 						tracePos = 0;
 				}
+				if (traceRecorder != null) {
+					traceRecorder.recordExecution(pc, reg[SR], cycles);
+				}
 				// -------------------------------------------------------------------
 				// Debug information
 				// -------------------------------------------------------------------
@@ -128,14 +168,10 @@ public class MSP430 extends MSP430Core {
 				}
 			}
 
-			/* Just a test to see if it gets down to a reasonable speed */
-			if (cycles > nextSleep) {
-				try {
-					Thread.sleep(5);
-				} catch (Exception e) {
-				}
-				// Frequency = 100 * cycles ratio
-				// Ratio = Frq / 100
+			/* Keep the emulation at the selected speed factor */
+			if (cycles > nextSleep && !fastForward) {
+				pace();
+				// Check again after 5 ms emulated time
 				nextSleep = cycles + (long)(rate * dcoFrq / (10*20));
 			}
 
@@ -159,12 +195,15 @@ public class MSP430 extends MSP430Core {
 		int trys=0;
 		try {
 			while (count > 0 && !isStopping) {      
+				if (traceChangePending) {
+					changeTraceRecorder();
+				}
 				int pc = emulateOP(-1);
 				if (pc >= 0) {
 					trys=0;
 					count--;
 					if (execCounter != null) {
-						execCounter[pc]++;
+						execCounter.count(pc);
 					}
 					if (trace != null) {
 						trace[tracePos++] = pc;
@@ -172,6 +211,9 @@ public class MSP430 extends MSP430Core {
 							tracePos = 0;
 						}
 					}
+					if (traceRecorder != null) {
+						traceRecorder.recordExecution(pc, reg[SR], cycles);
+					}
 
 					// -------------------------------------------------------------------
 					// Debug information
@@ -208,6 +250,25 @@ public class MSP430 extends MSP430Core {
 		microClockReady = false;
 	}
 
+	/* stepMicros continues from the restored cycle count */
+	@Override
+	void saveCoreState(SnapshotOutput out, ArrayList<Object> components) throws IOException {
+		super.saveCoreState(out, components);
+		out.writeLong(lastReturnedMicros);
+		out.writeLong(lastMicrosCycles);
+		out.writeLong(maxCycles);
+		out.writeBoolean(microClockReady);
+	}
+
+	@Override
+	void loadCoreState(SnapshotInput in, ArrayList<Object> components) throws IOException {
+		super.loadCoreState(in, components);
+		lastReturnedMicros = in.readLong();
+		lastMicrosCycles = in.readLong();
+		maxCycles = in.readLong();
+		microClockReady = in.readBoolean();
+	}
+
 	/* 
 	 * Perform a single step (even if in LPM) but no longer than to maxCycles + 1 instr
 	 * Note: jumpMicros just jump the clock until that time
@@ -261,8 +322,11 @@ public class MSP430 extends MSP430Core {
 		while (cycles < maxCycles || (cpuOff && (nextEventCycles < cycles))) {
 			int pc = emulateOP(maxCycles);
 			if (pc >= 0) {
+				if (busyWaitSkipping && !debug && traceRecorder == null) {
+					skipLoop(pc, maxCycles);
+				}
 				if (execCounter != null) {
-					execCounter[pc]++;
+					execCounter.count(pc);
 				}
 				if (trace != null) {
 					if (tracePos >= trace.length) {
@@ -270,6 +334,9 @@ public class MSP430 extends MSP430Core {
 					}
 					trace[tracePos++] = pc;
 				}
+				if (traceRecorder != null) {
+					traceRecorder.recordExecution(pc, reg[SR], cycles);
+				}
 				// -------------------------------------------------------------------
 				// Debug information
 				// -------------------------------------------------------------------
@@ -313,6 +380,17 @@ public class MSP430 extends MSP430Core {
 		return lastReturnedMicros;
 	}
 
+	/* Skip ahead in a busy-wait loop and count the skipped instructions */
+	private void skipLoop(int pc, long maxCycles) {
+		long iterations = skipBusyWait(pc, maxCycles);
+		if (iterations > 0 && execCounter != null) {
+			BusyWaitLoop loop = lastLoop;
+			for (int i = 0, n = loop.getInstructionCount(); i < n; i++) {
+				execCounter.count(loop.getPC(i), (int) iterations);
+			}
+		}
+	}
+
 	public void stop() {
 		isStopping = true;
 	}
@@ -327,15 +405,19 @@ public class MSP430 extends MSP430Core {
 	}
 	public int getExecCount(int address) {
 		if (execCounter != null) {
-			return execCounter[address];
+			return execCounter.getCount(address);
 		}
 		return 0;
 	}
 
+	public ExecutionCounter getExecutionCounter() {
+		return execCounter;
+	}
+
 	public void setMonitorExec(boolean mon) {
 		if (mon) {
 			if (execCounter == null) {
-				execCounter = new int[MAX_MEM];
+				execCounter = new ExecutionCounter(MAX_MEM);
 			}
 		} else {
 			execCounter = null;
@@ -363,6 +445,90 @@ public class MSP430 extends MSP430Core {
 		return trace == null ? 0 : trace.length;
 	}
 
+	/**
+	 * Streams the executed instructions, and optionally all memory
+	 * accesses, to the specified recorder. When the CPU is running the
+	 * change is made by the execution thread and this method returns
+	 * when it is done, after which the previous recorder receives no
+	 * more records and can be closed.
+	 */
+	public void setTraceRecorder(TraceRecorder recorder, boolean memoryAccess) {
+		synchronized (traceLock) {
+			/* let any earlier change complete first */
+			awaitTraceChange();
+			pendingRecorder = recorder;
+			pendingMemoryAccess = memoryAccess;
+			traceChangePending = true;
+			awaitTraceChange();
+		}
+	}
+
+	/* Called with the trace lock held */
+	private void awaitTraceChange() {
+		boolean interrupted = false;
+		while (traceChangePending) {
+			if (!running || Thread.currentThread() == executionThread) {
+				changeTraceRecorder();
+			} else {
+				try {
+					traceLock.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* Called by the execution thread or when the CPU is not running */
+	private void changeTraceRecorder() {
+		synchronized (traceLock) {
+			if (!traceChangePending) {
+				return;
+			}
+			TraceRecorder old = traceRecorder;
+			if (old != null) {
+				removeGlobalMonitor(old);
+				old.flush();
+			}
+			traceRecorder = pendingRecorder;
+			if (pendingRecorder != null && pendingMemoryAccess) {
+				addGlobalMonitor(pendingRecorder);
+			}
+			pendingRecorder = null;
+			traceChangePending = false;
+			traceLock.notifyAll();
+		}
+	}
+
+	public TraceRecorder getTraceRecorder() {
+		return traceRecorder;
+	}
+
+
+	/* Wait until real time has caught up with the emulated time */
+	private void pace() {
+		long now = System.nanoTime();
+		if (paceReset) {
+			/* start pacing from now after fast-forward */
+			paceReset = false;
+			paceTime = now;
+			paceCycles = cycles;
+			return;
+		}
+		paceTime += (long) ((cycles - paceCycles) * 1000000000.0 / (dcoFrq * rate));
+		paceCycles = cycles;
+		if (now - paceTime > MAX_PACE_LAG) {
+			/* Too slow - do not try to catch up later */
+			paceTime = now;
+		}
+		while (paceTime - now > 0 && !isStopping) {
+			LockSupport.parkNanos(paceTime - now);
+			now = System.nanoTime();
+		}
+	}
 
 	private void printCPUSpeed(int pc) {
 		// Passed time
@@ -417,7 +583,14 @@ public class MSP430 extends MSP430Core {
 
 	private void setRunning(boolean running) {
 		if (this.running != running) {
-			this.running = running;
+			synchronized (traceLock) {
+				this.running = running;
+				executionThread = running ? Thread.currentThread() : null;
+				if (!running) {
+					/* a change requested while stopping */
+					changeTraceRecorder();
+				}
+			}
 			if (running) {
 				isStopping = false;
 				isBreaking = false;
@@ -437,6 +610,22 @@ public class MSP430 extends MSP430Core {
 		return running;
 	}
 
+	public boolean isBusyWaitSkipping() {
+		return busyWaitSkipping;
+	}
+
+	/**
+	 * Selects if busy-wait loops that only poll registers which can not
+	 * change before the next event should be skipped up to the next event.
+	 * The cycle count and execution counters are advanced exactly as when
+	 * executing the loop. Not used when stepping a number of instructions,
+	 * while debugging or when recording a trace since the skipped
+	 * instructions are never executed.
+	 */
+	public void setBusyWaitSkipping(boolean busyWaitSkipping) {
+		this.busyWaitSkipping = busyWaitSkipping;
+	}
+
 	public double getExecutionRate() {
 		return rate;
 	}
@@ -445,6 +634,42 @@ public class MSP430 extends MSP430Core {
 		this.rate = rate;
 	}
 
+	public boolean isFastForward() {
+		return fastForward;
+	}
+
+	/**
+	 * Selects if the CPU should run as fast as possible without pacing
+	 * to the execution rate and without printing the CPU speed.
+	 */
+	public void setFastForward(boolean fastForward) {
+		if (!fastForward) {
+			/* the CPU thread starts pacing from now */
+			paceReset = true;
+		}
+		this.fastForward = fastForward;
+	}
+
+	/**
+	 * Returns the achieved number of emulated cycles per second of real
+	 * time for the current run or the last run if the CPU is stopped.
+	 */
+	public double getCyclesPerSecond() {
+		long elapsed;
+		long cycleCount;
+		if (isRunning()) {
+			elapsed = System.nanoTime() - runStartTime;
+			cycleCount = cycles - runStartCycles;
+		} else {
+			elapsed = runStopTime - runStartTime;
+			cycleCount = runStopCycles - runStartCycles;
+		}
+		if (elapsed <= 0) {
+			return 0.0;
+		}
+		return cycleCount * 1000000000.0 / elapsed;
+	}
+
 	public synchronized void addSimEventListener(SimEventListener l) {
 		simEventListeners = ArrayUtils.add(SimEventListener.class, simEventListeners, l);
 	}
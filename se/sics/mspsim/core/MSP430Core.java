@@ -36,8 +36,17 @@
  */
 
 package se.sics.mspsim.core;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.core.Memory.AccessMode;
@@ -68,11 +77,13 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
   private final RegisterMonitor[] regWriteMonitors = new RegisterMonitor[16];
   private final RegisterMonitor[] regReadMonitors = new RegisterMonitor[16];
+  private boolean hasRegisterMonitors = false;
 
   // true => breakpoints can occur!
   boolean breakpointActive = true;
 
-  public final int memory[];
+  /* One byte per address - use the memory segments for word and 20 bit access */
+  public final byte memory[];
   private final Flash flash;
   boolean isFlashBusy;
   boolean isStopping = false;
@@ -80,6 +91,22 @@ public class MSP430Core extends Chip implements MSP430Constants {
   private final Memory memorySegments[];
   Memory currentSegment;
 
+  /* Decoded instructions - only used for plain RAM and flash segments */
+  final InstructionCache instructionCache;
+  private boolean useInstructionCache = true;
+  private final Memory ramSegment;
+  private final Memory flashSegment;
+
+  /* The busy-wait loop last skipped by skipBusyWait */
+  BusyWaitLoop lastLoop;
+  /* The last iteration of a busy-wait loop */
+  private int loopJump = -1;
+  private long loopCycles;
+  private long loopEvents;
+  private long executedEvents;
+  private final int[] loopRegs = new int[16];
+  private long skippedCycles;
+
   public long cycles = 0;
   public long cpuCycles = 0;
   MapTable map;
@@ -130,6 +157,9 @@ public class MSP430Core extends Chip implements MSP430Constants {
   
   private ArrayList<Chip> chips = new ArrayList<Chip>();
 
+  private static final int SNAPSHOT_MAGIC = 0x4d535053; /* MSPS */
+  private static final int SNAPSHOT_VERSION = 4;
+
   final ComponentRegistry registry;
   Profiler profiler;
 
@@ -147,8 +177,9 @@ public class MSP430Core extends Chip implements MSP430Constants {
     MAX_MEM = config.maxMem;
     MSP430XArch = config.MSP430XArch;
 
-    memory = new int[MAX_MEM];
+    memory = new byte[MAX_MEM];
     memorySegments = new Memory[MAX_MEM >> 8];
+    instructionCache = new InstructionCache(MAX_MEM);
 
     flash = new Flash(this, memory,
             new FlashRange(config.mainFlashStart, config.mainFlashStart + config.mainFlashSize, 512, 64),
@@ -193,19 +224,23 @@ public class MSP430Core extends Chip implements MSP430Constants {
         public void interruptServiced(int vector) {
         }
         public void write(int address, int value, boolean word, long cycles) {
-            cpu.logw(WarningType.VOID_IO_WRITE, "*** IOUnit write to non-existent IO at $" + Utils.hex(address, 4));
+            if (logger.isEnabled(WarningType.VOID_IO_WRITE)) {
+                cpu.logw(WarningType.VOID_IO_WRITE, "*** IOUnit write to non-existent IO at $" + Utils.hex(address, 4));
+            }
         }
         public int read(int address, boolean word, long cycles) {
-            cpu.logw(WarningType.VOID_IO_READ, "*** IOUnit read from non-existent IO at $" + Utils.hex(address, 4));
+            if (logger.isEnabled(WarningType.VOID_IO_READ)) {
+                cpu.logw(WarningType.VOID_IO_READ, "*** IOUnit read from non-existent IO at $" + Utils.hex(address, 4));
+            }
             return 0;
         }
     };
 
     /* setup memory segments */
     int maxSeg = MAX_MEM >> 8;
-    Memory ramSegment = new RAMSegment(this);
+    ramSegment = new RAMSegment(this);
     RAMOffsetSegment ramMirrorSegment = null;
-    Memory flashSegment = new FlashSegment(this, flash);
+    flashSegment = new FlashSegment(this, flash);
     IOSegment ioSegment = new IOSegment(this, MAX_MEM_IO, voidIO);
     Memory noMemorySegment = new NoMemSegment(this);
     for (int i = 0; i < maxSeg; i++) {
@@ -307,6 +342,8 @@ public class MSP430Core extends Chip implements MSP430Constants {
           gwm = (GlobalWatchedMemory)currentSegment;
       } else {
           currentSegment = gwm = new GlobalWatchedMemory(currentSegment);
+          /* global monitors need to see all instruction fetches */
+          updateInstructionCache();
       }
       gwm.addGlobalMonitor(mon);
   }
@@ -318,10 +355,25 @@ public class MSP430Core extends Chip implements MSP430Constants {
           if (!gwm.hasGlobalMonitor()) {
               // No more monitors - switch back to normal memory
               currentSegment = gwm.getWatchedMemory();
+              updateInstructionCache();
           }
       }
   }
 
+  /**
+   * Invalidates all decoded instructions. Needs to be called if the
+   * memory is modified directly without going through the memory
+   * segments, for example when loading new firmware.
+   */
+  public void invalidateInstructionCache() {
+      instructionCache.clear();
+  }
+
+  private void updateInstructionCache() {
+      instructionCache.clear();
+      useInstructionCache = !(currentSegment instanceof GlobalWatchedMemory);
+  }
+
   public ComponentRegistry getRegistry() {
     return registry;
   }
@@ -413,6 +465,8 @@ public class MSP430Core extends Chip implements MSP430Constants {
       } else {
           wm = new WatchedMemory(address & 0xfff00, memorySegments[seg]);
           memorySegments[seg] = wm;
+          /* instruction fetches in this segment must be seen by the monitors */
+          instructionCache.invalidatePage(seg);
       }
       wm.addWatchPoint(address, mon);
   }
@@ -436,18 +490,33 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
   public synchronized void addRegisterWriteMonitor(int r, RegisterMonitor mon) {
       regWriteMonitors[r] = RegisterMonitor.Proxy.INSTANCE.add(regWriteMonitors[r], mon);
+      updateRegisterMonitors();
   }
 
   public synchronized void removeRegisterWriteMonitor(int r, RegisterMonitor mon) {
       regWriteMonitors[r] = RegisterMonitor.Proxy.INSTANCE.remove(regWriteMonitors[r], mon);
+      updateRegisterMonitors();
   }
 
   public synchronized void addRegisterReadMonitor(int r, RegisterMonitor mon) {
       regReadMonitors[r] = RegisterMonitor.Proxy.INSTANCE.add(regReadMonitors[r], mon);
+      updateRegisterMonitors();
   }
 
   public synchronized void removeRegisterReadMonitor(int r, RegisterMonitor mon) {
       regReadMonitors[r] = RegisterMonitor.Proxy.INSTANCE.remove(regReadMonitors[r], mon);
+      updateRegisterMonitors();
+  }
+
+  private void updateRegisterMonitors() {
+      boolean monitors = false;
+      for (int i = 0; i < 16; i++) {
+          if (regWriteMonitors[i] != null || regReadMonitors[i] != null) {
+              monitors = true;
+              break;
+          }
+      }
+      hasRegisterMonitors = monitors;
   }
 
   public void writeRegister(int r, int value) {
@@ -481,6 +550,12 @@ public class MSP430Core extends Chip implements MSP430Constants {
     } else {
         reg[r] = value;
     }
+    if (r == SR && !cpuOff && (value & CPUOFF) == 0
+        && interruptsEnabled == ((value & GIE) == GIE)
+        && getMode() == MODE_ACTIVE && !debugInterrupts) {
+      /* only the status flags changed - the common case */
+      return;
+    }
     if (r == SR) {
       boolean oldCpuOff = cpuOff;
       if (debugInterrupts) {
@@ -635,6 +710,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 //          System.out.println("VTimeEvent got delayed by: " + (now - te.time) + " at " +
 //              cycles + " target Time: " + te.time + " class: " + te.getClass().getName());
 //        }
+        executedEvents++;
         te.execute(now);
         if (vTimeEventQueue.eventCount > 0) {
           nextVTimeEventCycles = convertVTime(vTimeEventQueue.nextTime);
@@ -649,6 +725,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
         nextCycleEventCycles = cycles + 10000;
       } else {
         TimeEvent te = cycleEventQueue.popFirst();
+        executedEvents++;
         te.execute(cycles);
         if (cycleEventQueue.eventCount > 0) {
           nextCycleEventCycles = cycleEventQueue.nextTime;
@@ -725,6 +802,244 @@ public class MSP430Core extends Chip implements MSP430Constants {
       vTimeEventQueue.print(out);
   }
  
+  int getEventType(TimeEvent event) {
+    if (event.scheduledIn == cycleEventQueue) {
+      return SnapshotOutput.CYCLE_EVENT;
+    }
+    if (event.scheduledIn == vTimeEventQueue) {
+      return SnapshotOutput.TIME_EVENT;
+    }
+    return SnapshotOutput.NOT_SCHEDULED;
+  }
+
+  void restoreEvent(TimeEvent event, int type, long time, long order) {
+    if (type == SnapshotOutput.CYCLE_EVENT) {
+      cycleEventQueue.addEvent(event, time, order);
+    } else {
+      vTimeEventQueue.addEvent(event, time, order);
+    }
+  }
+
+  /* All IO units and chips in creation order, used to identify them in snapshots */
+  private ArrayList<Object> getSnapshotComponents() {
+    ArrayList<Object> components = new ArrayList<Object>(ioUnits);
+    /* the multipliers are only mapped into the IO memory */
+    ((IOSegment) memorySegments[0]).addIOUnits(components);
+    components.add(flash);
+    for (Chip chip : chips) {
+      if (chip != this) {
+        components.add(chip);
+      }
+    }
+    return components;
+  }
+
+  /**
+   * Saves the state of the CPU and all IO units and chips. The CPU must
+   * not be running while the snapshot is saved. Nodes with an IO unit or
+   * chip that does not implement Snapshotable are refused.
+   */
+  public void saveSnapshot(OutputStream output) throws IOException {
+    saveSnapshot(output, true);
+  }
+
+  /**
+   * Saves a snapshot that is optionally compressed. An uncompressed
+   * snapshot is faster to restore and meant to be kept in memory, for
+   * example when forking a node.
+   */
+  public void saveSnapshot(OutputStream output, boolean compress) throws IOException {
+    GZIPOutputStream zip = compress ? new GZIPOutputStream(output) : null;
+    SnapshotOutput out = new SnapshotOutput(this, zip != null ? zip : output);
+    ArrayList<Object> components = getSnapshotComponents();
+    for (Object component : components) {
+      if (!(component instanceof Snapshotable)) {
+        throw new IOException("can not save the state of " + component.getClass().getName());
+      }
+    }
+    out.writeInt(SNAPSHOT_MAGIC);
+    out.writeInt(SNAPSHOT_VERSION);
+    out.writeUTF(config.getClass().getName());
+    out.writeInt(MAX_MEM);
+    saveCoreState(out, components);
+
+    for (Object component : components) {
+      if (component instanceof Snapshotable) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        SnapshotOutput componentOut = new SnapshotOutput(this, data);
+        ((Snapshotable) component).saveState(componentOut);
+        componentOut.flush();
+        out.writeUTF(component.getClass().getName());
+        out.writeByteArray(data.toByteArray());
+      }
+    }
+    out.flush();
+    if (zip != null) {
+      zip.finish();
+    }
+  }
+
+  /**
+   * Restores a snapshot saved by a node of the same type that was set up
+   * in the same way. The CPU must not be running while the snapshot is
+   * restored. Events that are not owned by a restored component, such as
+   * host side timers, are kept at the same distance from the current time.
+   */
+  public void loadSnapshot(InputStream input) throws IOException {
+    loadSnapshot(input, true);
+  }
+
+  /**
+   * Restores a snapshot saved with the same compression.
+   */
+  public void loadSnapshot(InputStream input, boolean compressed) throws IOException {
+    SnapshotInput in = new SnapshotInput(compressed ? new GZIPInputStream(input) : input);
+    if (in.readInt() != SNAPSHOT_MAGIC) {
+      throw new IOException("not a snapshot");
+    }
+    if (in.readInt() != SNAPSHOT_VERSION) {
+      throw new IOException("unsupported snapshot version");
+    }
+    String configName = in.readUTF();
+    if (!configName.equals(config.getClass().getName()) || in.readInt() != MAX_MEM) {
+      throw new IOException("snapshot is for another MCU: " + configName);
+    }
+    ArrayList<Object> components = getSnapshotComponents();
+    TimeEvent[] cycleEvents = cycleEventQueue.getEvents();
+    TimeEvent[] timeEvents = vTimeEventQueue.getEvents();
+    long[] cycleDelays = getEventDelays(cycleEvents, cycles);
+    long[] timeDelays = getEventDelays(timeEvents, getTime());
+    HashSet<TimeEvent> restored = new HashSet<TimeEvent>();
+    loadCoreState(in, components);
+
+    for (Object component : components) {
+      if (component instanceof Snapshotable) {
+        String name = in.readUTF();
+        if (!name.equals(component.getClass().getName())) {
+          throw new IOException("snapshot does not match node: expected "
+              + component.getClass().getName() + " but got " + name);
+        }
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        SnapshotInput componentIn = new SnapshotInput(new ByteArrayInputStream(data));
+        ((Snapshotable) component).loadState(componentIn);
+        componentIn.scheduleEvents(this, restored);
+      }
+    }
+
+    /* reschedule the events that were not restored by their owners */
+    for (int i = 0; i < cycleEvents.length; i++) {
+      if (!restored.contains(cycleEvents[i])) {
+        cycleEventQueue.addEvent(cycleEvents[i], cycles + cycleDelays[i]);
+      }
+    }
+    long now = getTime();
+    for (int i = 0; i < timeEvents.length; i++) {
+      if (!restored.contains(timeEvents[i])) {
+        vTimeEventQueue.addEvent(timeEvents[i], now + Math.max(timeDelays[i], 0));
+      }
+    }
+    if (cycleEventQueue.eventCount > 0 && cycleEventQueue.nextTime < nextCycleEventCycles) {
+      nextCycleEventCycles = cycleEventQueue.nextTime;
+    }
+    if (vTimeEventQueue.eventCount > 0) {
+      nextVTimeEventCycles = Math.min(nextVTimeEventCycles,
+          Math.max(convertVTime(vTimeEventQueue.nextTime), cycles));
+    }
+    nextEventCycles = Math.min(nextCycleEventCycles, nextVTimeEventCycles);
+  }
+
+  private static long[] getEventDelays(TimeEvent[] events, long now) {
+    long[] delays = new long[events.length];
+    for (int i = 0; i < events.length; i++) {
+      delays[i] = events[i].time - now;
+    }
+    return delays;
+  }
+
+  void saveCoreState(SnapshotOutput out, ArrayList<Object> components) throws IOException {
+    out.writeInts(reg);
+    out.writeByteArray(memory);
+    out.writeLong(cycles);
+    out.writeLong(cpuCycles);
+    out.writeInt(op);
+    out.writeInt(instruction);
+    out.writeInt(extWord);
+    out.writeInt(interruptMax);
+    out.writeInt(servicedInterrupt);
+    out.writeBoolean(interruptsEnabled);
+    out.writeBoolean(cpuOff);
+    out.writeBoolean(isFlashBusy);
+    out.writeInt(dcoFrq);
+    out.writeInt(aclkFrq);
+    out.writeInt(smclkFrq);
+    out.writeLong(lastCyclesTime);
+    out.writeLong(lastVTime);
+    out.writeLong(currentTime);
+    out.writeLong(lastMicrosDelta);
+    out.writeDouble(currentDCOFactor);
+    out.writeLong(nextEventCycles);
+    out.writeLong(nextVTimeEventCycles);
+    out.writeLong(nextCycleEventCycles);
+    out.writeLong(cycleEventQueue.getAddCount());
+    out.writeLong(vTimeEventQueue.getAddCount());
+    out.writeInt(interruptSource.length);
+    for (InterruptHandler source : interruptSource) {
+      /* other interrupt handlers are restored by their owners */
+      out.writeInt(source == null ? -1 : components.indexOf(source));
+    }
+    saveChipState(out);
+  }
+
+  void loadCoreState(SnapshotInput in, ArrayList<Object> components) throws IOException {
+    cycleEventQueue.removeAll();
+    vTimeEventQueue.removeAll();
+    instructionCache.clear();
+    lastLoop = null;
+    loopJump = -1;
+
+    in.readInts(reg);
+    in.readByteArray(memory);
+    cycles = in.readLong();
+    cpuCycles = in.readLong();
+    op = in.readInt();
+    instruction = in.readInt();
+    extWord = in.readInt();
+    interruptMax = in.readInt();
+    servicedInterrupt = in.readInt();
+    servicedInterruptUnit = null;
+    interruptsEnabled = in.readBoolean();
+    cpuOff = in.readBoolean();
+    isFlashBusy = in.readBoolean();
+    dcoFrq = in.readInt();
+    aclkFrq = in.readInt();
+    smclkFrq = in.readInt();
+    lastCyclesTime = in.readLong();
+    lastVTime = in.readLong();
+    currentTime = in.readLong();
+    lastMicrosDelta = in.readLong();
+    currentDCOFactor = in.readDouble();
+    nextEventCycles = in.readLong();
+    nextVTimeEventCycles = in.readLong();
+    nextCycleEventCycles = in.readLong();
+    cycleEventQueue.setAddCount(in.readLong());
+    vTimeEventQueue.setAddCount(in.readLong());
+    int sources = in.readInt();
+    if (sources != interruptSource.length) {
+      throw new IOException("snapshot does not match node: interrupt vectors differ");
+    }
+    for (int i = 0; i < sources; i++) {
+      int index = in.readInt();
+      interruptSource[i] = index >= 0 && index < components.size()
+          && components.get(index) instanceof InterruptHandler
+          ? (InterruptHandler) components.get(index) : null;
+    }
+    loadChipState(in);
+    if (profiler != null) {
+      profiler.resetProfile();
+    }
+  }
+
   public Object[] getIOUnits(){
     return ioUnits.toArray();
   }
@@ -778,6 +1093,8 @@ public class MSP430Core extends Chip implements MSP430Constants {
     cycleEventQueue.removeAll();
     vTimeEventQueue.removeAll();
 
+    instructionCache.clear();
+
     for (Chip chip : chips) {
       chip.notifyReset();
     }
@@ -859,12 +1176,19 @@ public class MSP430Core extends Chip implements MSP430Constants {
   void profileCall(int dst, int pc) {
       MapEntry function = map.getEntry(dst);
       if (function == null) {
-          function = getFunction(map, dst);
+          /* calls to a local label are counted for the containing function */
+          function = map.getContainingEntry(dst);
+          if (function == null || function.getType() != MapEntry.TYPE.function) {
+              function = getFunction(map, dst);
+          }
       }
       profiler.profileCall(function, cpuCycles, pc);
   }
   
   void printWarning(EmulationLogger.WarningType type, int address) throws EmulationException {
+      if (!logger.isEnabled(type)) {
+          return;
+      }
       String message;
       switch(type) {
       case MISALIGNED_READ:
@@ -1008,24 +1332,55 @@ public class MSP430Core extends Chip implements MSP430Constants {
     }
 
     int pcBefore = pc;
-    instruction = currentSegment.read(pc, AccessMode.WORD, AccessType.EXECUTE);
-    
-    if (isStopping) {
-        // Signaled to stop the execution before performing the instruction
-        return -2;
-    }
     int ext3_0 = 0;
     int ext10_7 = 0;
     int extSrc = 0;
     int extDst = 0;
     boolean repeatsInDstReg = false;
     boolean wordx20 = false;
+    int info;
+
+    int cached = -1;
+    if (useInstructionCache && !isFlashBusy && pc < MAX_MEM) {
+        cached = instructionCache.getInstruction(pc);
+    }
+    if (cached >= 0) {
+        instruction = cached & 0xffff;
+        extWord = cached >>> 16;
+        info = instructionCache.getInfo(pc);
+    } else {
+        instruction = currentSegment.read(pc, AccessMode.WORD, AccessType.EXECUTE);
+        if (isStopping) {
+            // Signaled to stop the execution before performing the instruction
+            return -2;
+        }
+        /* check for extension words */
+        if ((instruction & 0xf800) == 0x1800) {
+            extWord = instruction;
+            instruction = currentSegment.read(pc + 2, AccessMode.WORD, AccessType.EXECUTE);
+            /*System.out.println("*** Extension word!!! " + Utils.hex16(extWord) +
+                "  read the instruction too: " + Utils.hex16(instruction) + " at " + Utils.hex16(pc - 2));*/
+        } else {
+            extWord = 0;
+        }
+        info = InstructionCache.decode(instruction, extWord);
+        if (useInstructionCache && pc < MAX_MEM) {
+            Memory segment = memorySegments[pc >> 8];
+            if ((segment == ramSegment || segment == flashSegment)
+                    && (extWord == 0 || (pc & 0xff) != 0xfe)) {
+                instructionCache.put(pc, instruction, extWord);
+            }
+        }
+    }
 
-    /* check for extension words */
-    if ((instruction & 0xf800) == 0x1800) {
-        extWord = instruction;
-        ext3_0 = instruction & 0xf; /* bit 3 - 0 - either repeat count or dest 19-16 */
-        ext10_7 = (instruction >> 7) & 0xf; /* bit 10 - 7 - src 19-16 */
+    if (isStopping) {
+        // Signaled to stop the execution before performing the instruction
+        return -2;
+    }
+
+    if (extWord != 0) {
+        ext3_0 = extWord & 0xf; /* bit 3 - 0 - either repeat count or dest 19-16 */
+        ext10_7 = (extWord >> 7) & 0xf; /* bit 10 - 7 - src 19-16 */
         extSrc = ext10_7 << 16;
         extDst = ext3_0 << 16;
         pc += 2;
@@ -1035,22 +1390,15 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	// the bit is 0, ext3_0 contains the number of repeats. If the
 	// bit is 1, ext3_0 contains the register number that holds
 	// the number of repeats.
-	if ((instruction & 0x80) == 0x80) {
-	    repeatsInDstReg = true;
-	}
+	repeatsInDstReg = (info & InstructionCache.INFO_REPEAT_REG) != 0;
+
 	// Bit 6 indicates whether or not the data length mode should
 	// be 20 bits. A one means traditional MSP430 mode; a zero
 	// indicates 20 bit mode. (XXX: there is a reserved data
 	// length mode if this bit is zero and the MSP430 instruction
 	// that follows the extension word also has a zero bit data
 	// length mode.)
-	wordx20 = (instruction & 0x40) == 0;
-
-	instruction = currentSegment.read(pc, AccessMode.WORD, AccessType.EXECUTE);
-        /*System.out.println("*** Extension word!!! " + Utils.hex16(extWord) +
-                "  read the instruction too: " + Utils.hex16(instruction) + " at " + Utils.hex16(pc - 2));*/
-    } else {
-        extWord = 0;
+	wordx20 = (info & InstructionCache.INFO_WORDX20) != 0;
     }
     
     op = instruction >> 12;
@@ -1062,7 +1410,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
     boolean word = (instruction & 0x40) == 0;
 
     /* NOTE: there is a mode when wordx20 = true & word = true that is resereved */
-    AccessMode mode = wordx20 ? AccessMode.WORD20 : (word ? AccessMode.WORD : AccessMode.BYTE);
+    AccessMode mode = InstructionCache.getMode(info);
     
     //if (mode == AccessMode.WORD20) System.out.println("WORD20 not really supported...");
 
@@ -2194,6 +2542,95 @@ public class MSP430Core extends Chip implements MSP430Constants {
     return pcBefore;
   }
   
+  /**
+   * Skips ahead in a busy-wait loop. Called after the instruction at the
+   * specified address has been executed. When it was a backward jump that
+   * closes a loop that only polls memory (see BusyWaitLoop) and the last
+   * two iterations left the registers unchanged, the following iterations
+   * are identical as long as no event is executed. The cycles of all
+   * whole iterations before the next event (or maxCycles) are then added
+   * without executing them so that the event is executed at exactly the
+   * same cycle count as when executing the loop.
+   *
+   * @param pc the address of the last executed instruction
+   * @param maxCycles the maximal cycle count or -1 for no limit
+   * @return the number of skipped iterations of the loop
+   */
+  public long skipBusyWait(int pc, long maxCycles) {
+    final int instruction = this.instruction;
+    if ((instruction & 0xe200) != 0x2200 || extWord != 0) {
+      /* not a backward jump */
+      return 0;
+    }
+    int target = pc + 2 - 2 * (0x200 - (instruction & 0x1ff));
+    if (reg[PC] != target || pc - target >= BusyWaitLoop.MAX_SIZE || pc >= MAX_MEM
+        || !useInstructionCache || hasRegisterMonitors || isFlashBusy || isStopping
+        || (interruptsEnabled && (servicedInterrupt == -1) && (interruptMax >= 0))) {
+      loopJump = -1;
+      return 0;
+    }
+    BusyWaitLoop loop = instructionCache.getLoop(pc);
+    if (loop == null || loop.start != target) {
+      Memory segment = memorySegments[pc >> 8];
+      loop = segment == ramSegment || segment == flashSegment
+          ? BusyWaitLoop.analyze(memory, target, pc) : BusyWaitLoop.NONE;
+      instructionCache.putLoop(pc, loop);
+    }
+    if (loop == BusyWaitLoop.NONE) {
+      loopJump = -1;
+      return 0;
+    }
+    if (loopJump != pc || loopEvents != executedEvents || !Arrays.equals(reg, loopRegs)) {
+      /* first iteration or something might have changed during the iteration */
+      loopJump = pc;
+      loopCycles = cycles;
+      loopEvents = executedEvents;
+      System.arraycopy(reg, 0, loopRegs, 0, reg.length);
+      return 0;
+    }
+    long iteration = cycles - loopCycles;
+    loopCycles = cycles;
+    if (iteration <= 0 || !isReadStable(loop.reads)) {
+      return 0;
+    }
+    long limit = nextEventCycles;
+    if (maxCycles >= 0 && maxCycles < limit) {
+      limit = maxCycles;
+    }
+    long skip = ((limit - 1 - cycles) / iteration) * iteration;
+    if (skip <= 0) {
+      return 0;
+    }
+    cycles += skip;
+    cpuCycles += skip;
+    loopCycles = cycles;
+    skippedCycles += skip;
+    lastLoop = loop;
+    return skip / iteration;
+  }
+
+  /* Checks that the addresses can not change before the next event */
+  private boolean isReadStable(int[] reads) {
+    for (int address : reads) {
+      if (address >= MAX_MEM) {
+        return false;
+      }
+      Memory segment = memorySegments[address >> 8];
+      if (segment != ramSegment && segment != flashSegment
+          && !(segment instanceof IOSegment && ((IOSegment) segment).isReadStable(address))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of cycles skipped in busy-wait loops.
+   */
+  public long getSkippedCycles() {
+    return skippedCycles;
+  }
+
   private static int convertTwoComplement16(int index) {
 	  if(index > 0x8000) {
 		  return -(0x10000 - index);
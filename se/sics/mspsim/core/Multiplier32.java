@@ -36,10 +36,12 @@
  */
 
 package se.sics.mspsim.core;
+import java.io.IOException;
+
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.util.Utils;
 
-public class Multiplier32 extends IOUnit {
+public class Multiplier32 extends IOUnit implements Snapshotable {
 
     public static final int MPY = 0x00;
     public static final int MPYS = 0x02;
@@ -102,7 +104,7 @@ public class Multiplier32 extends IOUnit {
      * Creates a new <code>Multiplier32</code> instance.
      *
      */
-    public Multiplier32(MSP430Core cpu, int memory[], int offset) {
+    public Multiplier32(MSP430Core cpu, byte memory[], int offset) {
         super("Multiplier32", "Hardware Multiplier 32", cpu, memory, offset);
     }
 
@@ -334,6 +336,68 @@ public class Multiplier32 extends IOUnit {
         }
     }
 
+    public void saveState(SnapshotOutput out) throws IOException {
+        saveIOState(out);
+        out.writeInt(mpy);
+        out.writeInt(mpys);
+        out.writeInt(op2);
+        out.writeInt(resLo);
+        out.writeInt(resHi);
+        out.writeInt(mac);
+        out.writeInt(macs);
+        out.writeInt(sumext);
+        out.writeInt(op1);
+        out.writeInt(mpy32L);
+        out.writeInt(mpy32H);
+        out.writeInt(mpys32L);
+        out.writeInt(mpys32H);
+        out.writeInt(mac32L);
+        out.writeInt(mac32H);
+        out.writeInt(macs32L);
+        out.writeInt(macs32H);
+        out.writeInt(op2L);
+        out.writeInt(op2H);
+        out.writeInt(res0);
+        out.writeInt(res1);
+        out.writeInt(res2);
+        out.writeInt(res3);
+        out.writeInt(mpy32ctl0);
+        out.writeLong(res64);
+        out.writeBoolean(signed);
+        out.writeBoolean(accumulating);
+    }
+
+    public void loadState(SnapshotInput in) throws IOException {
+        loadIOState(in);
+        mpy = in.readInt();
+        mpys = in.readInt();
+        op2 = in.readInt();
+        resLo = in.readInt();
+        resHi = in.readInt();
+        mac = in.readInt();
+        macs = in.readInt();
+        sumext = in.readInt();
+        op1 = in.readInt();
+        mpy32L = in.readInt();
+        mpy32H = in.readInt();
+        mpys32L = in.readInt();
+        mpys32H = in.readInt();
+        mac32L = in.readInt();
+        mac32H = in.readInt();
+        macs32L = in.readInt();
+        macs32H = in.readInt();
+        op2L = in.readInt();
+        op2H = in.readInt();
+        res0 = in.readInt();
+        res1 = in.readInt();
+        res2 = in.readInt();
+        res3 = in.readInt();
+        mpy32ctl0 = in.readInt();
+        res64 = in.readLong();
+        signed = in.readBoolean();
+        accumulating = in.readBoolean();
+    }
+
     @Override
     public void interruptServiced(int vector) {
     }
@@ -29,7 +29,9 @@
 
 package se.sics.mspsim.core;
 
-public class PMM extends IOUnit {
+import java.io.IOException;
+
+public class PMM extends IOUnit implements Snapshotable {
     public static int SIZE = 32;
 
     /*
@@ -39,7 +41,7 @@ public class PMM extends IOUnit {
 
     private int baseAddress;
 
-    public PMM(MSP430Core cpu, int[] memory, int address) {
+    public PMM(MSP430Core cpu, byte[] memory, int address) {
         super("PMM", "PMM", cpu, memory, address);
         baseAddress = address;
         reset(0);
@@ -47,13 +49,29 @@ public class PMM extends IOUnit {
 
     public void reset(int type) {
         /* Initial values */
-        memory[baseAddress + 0x0] = 0x9600; /* PMMCTL0 */
-        memory[baseAddress + 0x2] = 0x0000; /* PMMCTL1 */
-        memory[baseAddress + 0x4] = 0x4400; /* SVSMHCTL */
-        memory[baseAddress + 0x6] = 0x4400; /* SVSMLCTL */
-        memory[baseAddress + 0x8] = 0x0020; /* SVSMIO */
-        memory[baseAddress + 0xc] = 0x0000; /* PMMIFG */
-        memory[baseAddress + 0xe] = 0x1100; /* PMMRIE */
+        setRegister(baseAddress + 0x0, 0x9600, true); /* PMMCTL0 */
+        setRegister(baseAddress + 0x2, 0x0000, true); /* PMMCTL1 */
+        setRegister(baseAddress + 0x4, 0x4400, true); /* SVSMHCTL */
+        setRegister(baseAddress + 0x6, 0x4400, true); /* SVSMLCTL */
+        setRegister(baseAddress + 0x8, 0x0020, true); /* SVSMIO */
+        setRegister(baseAddress + 0xc, 0x0000, true); /* PMMIFG */
+        setRegister(baseAddress + 0xe, 0x1100, true); /* PMMRIE */
+    }
+
+    /* The registers are kept little endian in the memory */
+    private void setRegister(int address, int value, boolean word) {
+        memory[address] = (byte) value;
+        if (word) {
+            memory[address + 1] = (byte) (value >> 8);
+        }
+    }
+
+    private int getRegister(int address, boolean word) {
+        int value = memory[address] & 0xff;
+        if (word) {
+            value |= (memory[address + 1] & 0xff) << 8;
+        }
+        return value;
     }
 
     public void write(int address, int value, boolean word, long cycles) {
@@ -61,7 +79,7 @@ public class PMM extends IOUnit {
             log(this.getName() + ": Write to: "
                     + String.format("0x%05x = 0x%05x", address, value));
 
-        memory[address] = value;
+        setRegister(address, value, word);
     }
 
     public int read(int address, boolean word, long cycles) {
@@ -76,10 +94,10 @@ public class PMM extends IOUnit {
         if (DEBUG) {
             log(this.getName()
                     + ": Read from: "
-                    + String.format("0x%05x = 0x%05x", address, memory[address]));
+                    + String.format("0x%05x = 0x%05x", address, getRegister(address, word)));
         }
 
-        return memory[address];
+        return getRegister(address, word);
     }
 
     public void interruptServiced(int vector) {
@@ -87,4 +105,13 @@ public class PMM extends IOUnit {
             log(this.getName() + ": Interrupt services vector: " + vector);
         }
     }
+
+    /* The registers are kept in the memory which is restored by the CPU */
+    public void saveState(SnapshotOutput out) throws IOException {
+        saveIOState(out);
+    }
+
+    public void loadState(SnapshotInput in) throws IOException {
+        loadIOState(in);
+    }
 }
@@ -32,6 +32,7 @@
  */
 package se.sics.mspsim.core;
 
+import java.io.IOException;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 
@@ -45,7 +46,7 @@ import se.sics.mspsim.core.EmulationLogger.WarningType;
  * 
  * @author Víctor Ariño <victor.arino@tado.com>
  */
-public class RTC extends IOUnit {
+public class RTC extends IOUnit implements Snapshotable {
 
 	/**
 	 * Address and size for IO configuration
@@ -126,6 +127,62 @@ public class RTC extends IOUnit {
 		eventInterruptFlag = false;
 		alarmInterruptFlag = false;
 		readyInterruptFlag = false;
+		scheduleEvent();
+	}
+
+	public void saveState(SnapshotOutput out) throws IOException {
+		saveIOState(out);
+		out.writeBooleans(new boolean[] { oscFaultInterruptEnable,
+				eventInterruptEnable, alarmInterruptEnable, readyInterruptEnable,
+				oscFaultInterruptFlag, eventInterruptFlag, alarmInterruptFlag,
+				readyInterruptFlag, formatBCD, rtcHold, modeCalendar, rtcReady,
+				preScaler0Hold, preScaler1Hold });
+		out.writeInt(clockSource);
+		out.writeInt(rtcEvent);
+		out.writeLong(rtcCount);
+		out.writeDouble(period);
+		out.writeInt(preScaler0Src);
+		out.writeInt(preScaler0Div);
+		out.writeInt(preScaler1Src);
+		out.writeInt(preScaler1Div);
+		out.writeLong(cal.getTimeInMillis());
+		out.writeDouble(startMillis);
+		out.writeLong(countedTicks);
+		out.writeLong(eventTicks);
+		out.writeEvent(rtcTimer);
+	}
+
+	public void loadState(SnapshotInput in) throws IOException {
+		loadIOState(in);
+		boolean[] flags = new boolean[14];
+		in.readBooleans(flags);
+		oscFaultInterruptEnable = flags[0];
+		eventInterruptEnable = flags[1];
+		alarmInterruptEnable = flags[2];
+		readyInterruptEnable = flags[3];
+		oscFaultInterruptFlag = flags[4];
+		eventInterruptFlag = flags[5];
+		alarmInterruptFlag = flags[6];
+		readyInterruptFlag = flags[7];
+		formatBCD = flags[8];
+		rtcHold = flags[9];
+		modeCalendar = flags[10];
+		rtcReady = flags[11];
+		preScaler0Hold = flags[12];
+		preScaler1Hold = flags[13];
+		clockSource = in.readInt();
+		rtcEvent = in.readInt();
+		rtcCount = in.readLong();
+		period = in.readDouble();
+		preScaler0Src = in.readInt();
+		preScaler0Div = in.readInt();
+		preScaler1Src = in.readInt();
+		preScaler1Div = in.readInt();
+		cal.setTimeInMillis(in.readLong());
+		startMillis = in.readDouble();
+		countedTicks = in.readLong();
+		eventTicks = in.readLong();
+		in.readEvent(rtcTimer);
 	}
 
 	/* RTCCTL0 */
@@ -243,83 +300,123 @@ public class RTC extends IOUnit {
 	private GregorianCalendar cal = new GregorianCalendar(0, 1, 1, 0, 0, 0);
 
 	/**
-	 * Timer to generate the interrupts and handle the calendar
+	 * The counter and the calendar are not updated by a periodic event but
+	 * computed from the elapsed time when the registers are accessed. The
+	 * timer is only scheduled for the next tick that sets an enabled
+	 * interrupt flag.
+	 */
+	private double startMillis = 0;
+	private long countedTicks = 0;
+	private long eventTicks = -1;
+
+	/**
+	 * Timer to generate the interrupts
 	 */
 	private TimeEvent rtcTimer = new TimeEvent(0) {
 
 		public void execute(long t) {
-			if (!rtcHold) {
-				updateCounters();
-				reSchedule();
-			}
-			if (getIV() > 0) {
-
+			/* the event time is rounded down so make sure the tick is counted */
+			updateCounters(eventTicks);
+			scheduleEvent();
+			if (isInterruptPending()) {
 				cpu.flagInterrupt(rtcIntVector, RTC.this, true);
 			}
 		}
+	};
 
-		/**
-		 * Re-Schedule the timer event
-		 */
-		private void reSchedule() {
-			// cpu.scheduleTimeEventMillis(this, period);
-			rtcInit();
+	/**
+	 * Update the counters or the calendar, depending on the mode, with the
+	 * ticks elapsed since they were last updated
+	 */
+	private void updateCounters() {
+		updateCounters(-1);
+	}
+
+	private void updateCounters(long minTicks) {
+		if (rtcHold) {
+			return;
 		}
+		long ticks = (long) ((cpu.getTimeMillis() - startMillis) / period + 1e-9);
+		if (ticks < minTicks) {
+			ticks = minTicks;
+		}
+		long n = ticks - countedTicks;
+		if (n <= 0) {
+			return;
+		}
+		countedTicks = ticks;
 
-		/**
-		 * Update the counters or the calendar, depending on the mode
-		 */
-		private void updateCounters() {
-			if (modeCalendar) {
-				/* In calendar mode it is updated every second */
-				cal.add(Calendar.SECOND, 1);
-
-				/* Track the changes */
-				int sec = cal.get(Calendar.SECOND);
-				int min = cal.get(Calendar.MINUTE);
-				int hour = cal.get(Calendar.HOUR_OF_DAY);
-
-				if (sec == 0) {
-					if (rtcEvent == 0) { // minute
-						generateInterrupt();
-					} else if (rtcEvent == 1 && min == 0) { // hour
-						generateInterrupt();
-					} else if (rtcEvent == 2 && hour == 0 && min == 0) { // day
-						generateInterrupt();
-					} else if (rtcEvent == 3 && hour == 12 && min == 0) { // day
-						generateInterrupt();
-					}
-				}
+		if (modeCalendar) {
+			/* In calendar mode it is updated every second */
+			if (n >= getTicksToEvent()) {
+				eventInterruptFlag = true;
+			}
+			cal.add(Calendar.SECOND, (int) n);
 
-				/*
-				 * Generate interrupts when time successfully increased and there's
-				 * no other interrupt
-				 */
-				if (readyInterruptEnable && modeCalendar) {
-					readyInterruptFlag = true;
-				}
+			/* Time successfully increased */
+			if (readyInterruptEnable) {
+				readyInterruptFlag = true;
+			}
+		} else {
+			if (n >= getTicksToEvent()) {
+				eventInterruptFlag = true;
+			}
+			rtcCount = (rtcCount + n) & 0xffffffffL;
+		}
+	}
 
-			} else {
-				rtcCount += 1;
-				long overflow = ((1L << ((rtcEvent + 1) * 8)));
-				overflow -= 1;
-				if ((rtcCount & overflow) == 0) {
-					generateInterrupt();
-				}
-				if (rtcCount >= (1L << 32)) {
-					rtcCount = 0;
-				}
+	/**
+	 * Get the number of ticks until the next event: an overflow of the
+	 * selected counter byte in counter mode or a minute, hour, midnight or
+	 * noon change in calendar mode
+	 */
+	private long getTicksToEvent() {
+		if (modeCalendar) {
+			int secs = cal.get(Calendar.HOUR_OF_DAY) * 3600
+					+ cal.get(Calendar.MINUTE) * 60 + cal.get(Calendar.SECOND);
+			switch (rtcEvent) {
+			case 0: // minute
+				return 60 - secs % 60;
+			case 1: // hour
+				return 3600 - secs % 3600;
+			case 2: // midnight
+				return 86400 - secs;
+			default: // noon
+				return secs < 43200 ? 43200 - secs : 129600 - secs;
 			}
 		}
+		int bits = (rtcEvent + 1) * 8;
+		return (((rtcCount >> bits) + 1) << bits) - rtcCount;
+	}
 
-		/**
-		 * Trigger a microprocessor interrupt
-		 */
-		private void generateInterrupt() {
-			eventInterruptFlag = true;
+	/**
+	 * Schedule the timer for the next tick that generates an interrupt, if
+	 * any. Must be called with the counters updated.
+	 */
+	private void scheduleEvent() {
+		long ticks = 0;
+		if (!rtcHold) {
+			if (modeCalendar && readyInterruptEnable) {
+				ticks = 1;
+			} else if (eventInterruptEnable) {
+				ticks = getTicksToEvent();
+			}
+		}
+		if (ticks == 0) {
+			eventTicks = -1;
+			rtcTimer.remove();
+			return;
 		}
+		eventTicks = countedTicks + ticks;
+		double delay = startMillis + eventTicks * period - cpu.getTimeMillis();
+		cpu.scheduleTimeEventMillis(rtcTimer, delay > 0 ? delay : 0);
+	}
 
-	};
+	private boolean isInterruptPending() {
+		return (readyInterruptFlag && readyInterruptEnable)
+				|| (eventInterruptFlag && eventInterruptEnable)
+				|| (alarmInterruptFlag && alarmInterruptEnable);
+	}
 
 	private double getPreScalerFreq() {
 		double freqSrc = 0;
@@ -344,6 +441,7 @@ public class RTC extends IOUnit {
 
 	/**
 	 * Initialize the RTC clock. This is called when the hold bit is released
+	 * and restarts the counting from the current time.
 	 */
 	private void rtcInit() {
 		double freqSrc = 1f;
@@ -370,7 +468,8 @@ public class RTC extends IOUnit {
 			}
 		}
 		period = 1000f / freqSrc;
-		cpu.scheduleTimeEventMillis(rtcTimer, period);
+		startMillis = cpu.getTimeMillis();
+		countedTicks = 0;
 	}
 
 	/**
@@ -468,7 +567,7 @@ public class RTC extends IOUnit {
 			alarmInterruptFlag = false;
 		}
 
-		if (getIV() > 0) {
+		if (isInterruptPending()) {
 			cpu.flagInterrupt(rtcIntVector, this, true);
 		}
 	}
@@ -487,6 +586,9 @@ public class RTC extends IOUnit {
 		int lo = (value) & 0xff; // low byte
 		int hi = (value >> 8) & 0xff; // high byte
 
+		/* Bring the counters up to date before anything is changed */
+		updateCounters();
+
 		switch (address - offset) {
 		case RTCCTL01:
 			oscFaultInterruptEnable = ((value & RTCOFIE) == RTCOFIE);
@@ -570,7 +672,7 @@ public class RTC extends IOUnit {
 				parseCalReg(Calendar.DAY_OF_WEEK, hi);
 			} else {
 				rtcCount &= 0x0000ffff;
-				rtcCount |= (long) (value << 16);
+				rtcCount |= ((long) value) << 16;
 			}
 			break;
 
@@ -600,6 +702,9 @@ public class RTC extends IOUnit {
 		default:
 			logNotImplemented("register: " + address);
 		}
+
+		/* The next event might have changed */
+		scheduleEvent();
 	}
 
 	/**
@@ -611,6 +716,8 @@ public class RTC extends IOUnit {
 			logw(WarningType.MISALIGNED_READ, "byte access not implemented");
 		}
 
+		updateCounters();
+
 		switch (address - offset) {
 		case RTCCTL01:
 			if (word) {
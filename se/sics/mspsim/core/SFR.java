@@ -41,10 +41,12 @@
 
 package se.sics.mspsim.core;
 
+import java.io.IOException;
+
 /**
  * SFR - emulation of special function registers
  */
-public class SFR extends IOUnit {
+public class SFR extends IOUnit implements Snapshotable {
 
   public static final int IE1 = 0;
   public static final int IE2 = 1;
@@ -67,7 +69,7 @@ public class SFR extends IOUnit {
   private boolean[] autoclear = new boolean[64];
   private int[] irqTriggeredPos = new int[64];
 
-  public SFR(MSP430Core cpu, int[] memory,int offset) {
+  public SFR(MSP430Core cpu, byte[] memory,int offset) {
     super("SFR", "Special Function Register", cpu, memory, offset);
     reset(0);
   }
@@ -86,6 +88,32 @@ public class SFR extends IOUnit {
     }
   }
 
+  public void saveState(SnapshotOutput out) throws IOException {
+    saveIOState(out);
+    out.writeInt(ie1);
+    out.writeInt(ie2);
+    out.writeInt(ifg1);
+    out.writeInt(ifg2);
+    out.writeInt(me1);
+    out.writeInt(me2);
+    out.writeBooleans(irqTriggered);
+    out.writeBooleans(autoclear);
+    out.writeInts(irqTriggeredPos);
+  }
+
+  public void loadState(SnapshotInput in) throws IOException {
+    loadIOState(in);
+    ie1 = in.readInt();
+    ie2 = in.readInt();
+    ifg1 = in.readInt();
+    ifg2 = in.readInt();
+    me1 = in.readInt();
+    me2 = in.readInt();
+    in.readBooleans(irqTriggered);
+    in.readBooleans(autoclear);
+    in.readInts(irqTriggeredPos);
+  }
+
   /* reg = 0/1
    * bit = 0-7 (LSB-MSB)
    * module = the module that will be "called"
@@ -115,7 +143,7 @@ public class SFR extends IOUnit {
     case ME2:
       updateME(addressRel - ME1, value);
     }
-    memory[addressRel] = value;
+    memory[addressRel] = (byte) value;
   }
 
   // read
@@ -137,10 +165,15 @@ public class SFR extends IOUnit {
     case ME2:
       return me2;
     default:
-      return memory[addressRel];
+      return memory[addressRel] & 0xff;
     }
   }
 
+  @Override
+  public boolean isReadStable(int address) {
+    return true;
+  }
+
   private void updateIE(int pos, int value) {
     int oldVal = pos == 0 ? ie1 : ie2;
     int change = oldVal ^ value;
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2007-2012, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * -----------------------------------------------------------------
+ *
+ * SnapshotInput
+ *
+ * Data input used when restoring a node snapshot.
+ */
+
+package se.sics.mspsim.core;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Set;
+
+public class SnapshotInput extends DataInputStream {
+
+    private final ArrayList<TimeEvent> events = new ArrayList<TimeEvent>();
+    private final ArrayList<long[]> eventTimes = new ArrayList<long[]>();
+
+    SnapshotInput(InputStream in) {
+        super(in);
+    }
+
+    private int readLength(int expected) throws IOException {
+        int len = readInt();
+        if (len != expected) {
+            throw new IOException("snapshot does not match node: expected "
+                    + expected + " elements but got " + len);
+        }
+        return len;
+    }
+
+    public void readInts(int[] data) throws IOException {
+        for (int i = 0, n = readLength(data.length); i < n; i++) {
+            data[i] = readInt();
+        }
+    }
+
+    public void readLongs(long[] data) throws IOException {
+        for (int i = 0, n = readLength(data.length); i < n; i++) {
+            data[i] = readLong();
+        }
+    }
+
+    public void readBooleans(boolean[] data) throws IOException {
+        for (int i = 0, n = readLength(data.length); i < n; i++) {
+            data[i] = readBoolean();
+        }
+    }
+
+    public void readByteArray(byte[] data) throws IOException {
+        readFully(data, 0, readLength(data.length));
+    }
+
+    /**
+     * Reads the schedule of the event. The event is rescheduled when the
+     * whole node has been restored.
+     */
+    public void readEvent(TimeEvent event) throws IOException {
+        int type = readByte();
+        long time = 0;
+        long order = 0;
+        if (type != SnapshotOutput.NOT_SCHEDULED) {
+            time = readLong();
+            order = readLong();
+        }
+        events.add(event);
+        eventTimes.add(new long[] { type, time, order });
+    }
+
+    /* Reschedules the read events and adds them to the restored events */
+    void scheduleEvents(MSP430Core cpu, Set<TimeEvent> restored) {
+        for (int i = 0, n = events.size(); i < n; i++) {
+            long[] t = eventTimes.get(i);
+            TimeEvent event = events.get(i);
+            restored.add(event);
+            if (t[0] != SnapshotOutput.NOT_SCHEDULED) {
+                cpu.restoreEvent(event, (int) t[0], t[1], t[2]);
+            }
+        }
+        events.clear();
+        eventTimes.clear();
+    }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2007-2012, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * -----------------------------------------------------------------
+ *
+ * SnapshotOutput
+ *
+ * Data output used when saving a node snapshot.
+ */
+
+package se.sics.mspsim.core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class SnapshotOutput extends DataOutputStream {
+
+    static final int NOT_SCHEDULED = 0;
+    static final int CYCLE_EVENT = 1;
+    static final int TIME_EVENT = 2;
+
+    private final MSP430Core cpu;
+
+    SnapshotOutput(MSP430Core cpu, OutputStream out) {
+        super(out);
+        this.cpu = cpu;
+    }
+
+    public void writeInts(int[] data) throws IOException {
+        writeInt(data.length);
+        for (int i = 0; i < data.length; i++) {
+            writeInt(data[i]);
+        }
+    }
+
+    public void writeLongs(long[] data) throws IOException {
+        writeInt(data.length);
+        for (int i = 0; i < data.length; i++) {
+            writeLong(data[i]);
+        }
+    }
+
+    public void writeBooleans(boolean[] data) throws IOException {
+        writeInt(data.length);
+        for (int i = 0; i < data.length; i++) {
+            writeBoolean(data[i]);
+        }
+    }
+
+    public void writeByteArray(byte[] data) throws IOException {
+        writeInt(data.length);
+        write(data);
+    }
+
+    /**
+     * Writes the schedule of the event. The event is rescheduled at the
+     * same time and in the same order relative to other events when the
+     * snapshot is restored.
+     */
+    public void writeEvent(TimeEvent event) throws IOException {
+        int type = cpu.getEventType(event);
+        writeByte(type);
+        if (type != NOT_SCHEDULED) {
+            writeLong(event.time);
+            writeLong(event.queueOrder);
+        }
+    }
+
+}
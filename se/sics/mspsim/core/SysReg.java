@@ -29,7 +29,9 @@
 
 package se.sics.mspsim.core;
 
-public class SysReg extends IOUnit {
+import java.io.IOException;
+
+public class SysReg extends IOUnit implements Snapshotable {
 	public static int ADDRESS = 0x180;
 	public static int SIZE = 0x1f;
 
@@ -50,7 +52,7 @@ System NMI vector generator SYSSNIV 1Ch
 Reset vector generator SYSRSTIV 1Eh
 	 */
 
-	public SysReg(MSP430Core cpu, int[] memory) {
+	public SysReg(MSP430Core cpu, byte[] memory) {
 		super("SysReg", "System registers", cpu, memory, SysReg.ADDRESS);
 		reset(0);
 	}
@@ -62,19 +64,40 @@ Reset vector generator SYSRSTIV 1Eh
 		if (DEBUG)
 			log(this.getName() + ": Write to: "
 					+ String.format("0x%05x = 0x%05x", address, value));
-		memory[address] = value;
+		memory[address] = (byte) value;
+		if (word) {
+			memory[address + 1] = (byte) (value >> 8);
+		}
 	}
 
 	public int read(int address, boolean word, long cycles) {
 		if (DEBUG)
 			log(this.getName()
 					+ ": Read from: "
-					+ String.format("0x%05x = 0x%05x", address, memory[address]));
-		return memory[address];
+					+ String.format("0x%05x = 0x%05x", address, getRegister(address, word)));
+		return getRegister(address, word);
+	}
+
+	/* The registers are kept little endian in the memory */
+	private int getRegister(int address, boolean word) {
+		int value = memory[address] & 0xff;
+		if (word) {
+			value |= (memory[address + 1] & 0xff) << 8;
+		}
+		return value;
 	}
 
 	public void interruptServiced(int vector) {
 		if (DEBUG)
 			log(this.getName() + ": Interrupt services vector: " + vector);
 	}
+
+	/* The registers are kept in the memory which is restored by the CPU */
+	public void saveState(SnapshotOutput out) throws IOException {
+		saveIOState(out);
+	}
+
+	public void loadState(SnapshotInput in) throws IOException {
+		loadIOState(in);
+	}
 }
@@ -42,9 +42,9 @@
 package se.sics.mspsim.core;
 
 public abstract class TimeEvent {
-  // For linking events...
-  TimeEvent nextEvent;
-  TimeEvent prevEvent;
+  // Position and insertion order in the event queue heap
+  int queueIndex = -1;
+  long queueOrder;
 
   // Keeps track of where this is scheduled
   EventQueue scheduledIn = null;
@@ -42,6 +42,7 @@ import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.core.MSP430Config.MUXConfig;
 import se.sics.mspsim.util.Utils;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -71,7 +72,7 @@ import javax.swing.tree.DefaultMutableTreeNode;
  * will be reading same value for a long time. Needs to "capture" reads to
  * Timers by some simple means...
  */
-public class Timer extends IOUnit {
+public class Timer extends IOUnit implements Snapshotable {
 
 	public static final int TBIV = 0x011e;
 	public static final int TAIV = 0x012e;
@@ -449,7 +450,38 @@ public class Timer extends IOUnit {
 			}
 		}
 
+		/*
+		 * The compare event is only needed when it triggers an interrupt or
+		 * changes an output pin. Otherwise the interrupt flag is updated
+		 * when the registers are accessed.
+		 */
+		boolean isEventNeeded() {
+			if (captureOn) {
+				return false;
+			}
+			if ((tcctl & CC_IE) != 0) {
+				return true;
+			}
+			if (index == 0) {
+				/* CCR0 also controls the outputs of the other registers */
+				for (int i = 0; i < noCompare; i++) {
+					if (ccr[i].outMode != 0 && ccr[i].PortCon.size() > 0) {
+						return true;
+					}
+				}
+				return false;
+			}
+			return outMode != 0 && PortCon.size() > 0;
+		}
+
 		public void update() {
+			if (expCaptureTime != -1 && !isEventNeeded()) {
+				if (remove()) {
+					/* make sure the event is scheduled again when needed */
+					time = -1;
+				}
+				return;
+			}
 			/* schedule this capture register for update */
 			if (expCaptureTime != -1 && expCaptureTime != time) {
 				if (DEBUG)
@@ -538,7 +570,8 @@ public class Timer extends IOUnit {
 				cpu.scheduleCycleEvent(this, nextTimerTrigger);
 
 			if (lastTIV == 0 && interruptEnable) {
-				lastTIV = memory[tiv] = timerOverflow;
+				memory[tiv] = (byte) timerOverflow;
+				lastTIV = timerOverflow;
 				cpu.flagInterrupt(ccr1Vector, Timer.this, true);
 			} else {
 				// System.out.println("*** Did not trigger interrupt: " +
@@ -560,7 +593,7 @@ public class Timer extends IOUnit {
 	 *
 	 */
 
-	public Timer(MSP430Core cpu, int[] memory, MSP430Config.TimerConfig config) {
+	public Timer(MSP430Core cpu, byte[] memory, MSP430Config.TimerConfig config) {
 		super(config.name, config.name, cpu, memory, config.offset);
 		this.srcMap = config.srcMap;
 		// noCompare = (srcMap.length / 4) - 1;
@@ -637,6 +670,82 @@ public class Timer extends IOUnit {
 		endValueIndex = 0;
 	}
 
+	public void saveState(SnapshotOutput out) throws IOException {
+		saveIOState(out);
+		out.writeLong(counterSaveValue);
+		out.writeLong(counterSaveCycle);
+		out.writeInt(counter);
+		out.writeInt(inputDivider1);
+		out.writeInt(inputDivider2);
+		out.writeInt(endValueIndex);
+		out.writeDouble(cyclesMultiplicator);
+		out.writeInt(clockSource);
+		out.writeInt(clockSpeed);
+		out.writeInt(mode);
+		out.writeInt(tctl);
+		out.writeBoolean(interruptEnable);
+		out.writeBoolean(interruptPending);
+		out.writeInt(currentdiff);
+		out.writeLong(nextTimerTrigger);
+		out.writeInt(lastTIV);
+		out.writeLong(triggerTime);
+		out.writeEvent(counterTrigger);
+		for (int i = 0; i < noCompare; i++) {
+			CCR reg = ccr[i];
+			out.writeInt(reg.tcctl);
+			out.writeInt(reg.tccr);
+			out.writeInt(reg.expCompare);
+			out.writeInt(reg.expCapInterval);
+			out.writeLong(reg.expCaptureTime);
+			out.writeInt(reg.capMode);
+			out.writeBoolean(reg.captureOn);
+			out.writeInt(reg.inputSel);
+			out.writeInt(reg.inputSrc);
+			out.writeLong(reg.cyclesLeft);
+			out.writeBoolean(reg.sync);
+			out.writeInt(reg.outMode);
+			out.writeEvent(reg);
+		}
+	}
+
+	public void loadState(SnapshotInput in) throws IOException {
+		loadIOState(in);
+		counterSaveValue = in.readLong();
+		counterSaveCycle = in.readLong();
+		counter = in.readInt();
+		inputDivider1 = in.readInt();
+		inputDivider2 = in.readInt();
+		endValueIndex = in.readInt();
+		cyclesMultiplicator = in.readDouble();
+		clockSource = in.readInt();
+		clockSpeed = in.readInt();
+		mode = in.readInt();
+		tctl = in.readInt();
+		interruptEnable = in.readBoolean();
+		interruptPending = in.readBoolean();
+		currentdiff = in.readInt();
+		nextTimerTrigger = in.readLong();
+		lastTIV = in.readInt();
+		triggerTime = in.readLong();
+		in.readEvent(counterTrigger);
+		for (int i = 0; i < noCompare; i++) {
+			CCR reg = ccr[i];
+			reg.tcctl = in.readInt();
+			reg.tccr = in.readInt();
+			reg.expCompare = in.readInt();
+			reg.expCapInterval = in.readInt();
+			reg.expCaptureTime = in.readLong();
+			reg.capMode = in.readInt();
+			reg.captureOn = in.readBoolean();
+			reg.inputSel = in.readInt();
+			reg.inputSrc = in.readInt();
+			reg.cyclesLeft = in.readLong();
+			reg.sync = in.readBoolean();
+			reg.outMode = in.readInt();
+			in.readEvent(reg);
+		}
+	}
+
 	public int WrapValue() {
 		return ((1 << EndValue[endValueIndex]) - 1);
 	}
@@ -664,6 +773,7 @@ public class Timer extends IOUnit {
 			// System.out.println(getName() + " TR read => " + val);
 			break;
 		case TCTL:
+			updateFlags(cycles);
 			val = tctl;
 			if (interruptPending) {
 				val |= 1;
@@ -684,6 +794,7 @@ public class Timer extends IOUnit {
 		case TCCTL5:
 		case TCCTL6:
 			int i = (index - TCCTL0) / 2;
+			updateFlags(cycles);
 			updateTCCTL(i, cycles);
 			val = ccr[i].tcctl;
 			break;
@@ -798,6 +909,9 @@ public class Timer extends IOUnit {
 
 		int iAddress = address - offset;
 
+		/* bring the flags up to date before anything is changed */
+		updateFlags(cycles);
+
 		if (DEBUG)
 			log("write to: $" + Utils.hex(address, 4) + " => " + iAddress + " = "
 					+ data);
@@ -922,6 +1036,10 @@ public class Timer extends IOUnit {
 			}
 
 			updateCCREvent(index, cycles);
+			if (index != 0) {
+				/* the output mode might require the CCR0 event */
+				ccr[0].update();
+			}
 			break;
 			// Write to compare register!
 		case TCCR0:
@@ -979,6 +1097,7 @@ public class Timer extends IOUnit {
 	}
 
 	void updateEvent(long cycles) {
+		updateFlags(cycles);
 		updateBigCount(cycles);
 		
 		updateCyclesMultiplicator();
@@ -990,8 +1109,9 @@ public class Timer extends IOUnit {
 		nextTimerTrigger=cycles + (long) ((calcPeriodeTime()  - counter) * cyclesMultiplicator);
 
 		if (calcPeriodeTime()  > 1){
-			if(mode == STOP){
-				cpu.scheduleCycleEvent(counterTrigger, -1);
+			if (mode == STOP || !interruptEnable) {
+				/* the overflow flag is updated when the registers are accessed */
+				counterTrigger.remove();
 			} else {
 				cpu.scheduleCycleEvent(counterTrigger, nextTimerTrigger);				
 			}
@@ -1003,6 +1123,32 @@ public class Timer extends IOUnit {
 
 	}
 
+	/*
+	 * Sets the overflow and compare flags that would have been set by events
+	 * that are not scheduled since no interrupt or output depends on them.
+	 */
+	private void updateFlags(long cycles) {
+		if (mode == STOP) {
+			return;
+		}
+		if (!counterTrigger.isScheduled() && calcPeriodeTime() > 1
+				&& cycles >= nextTimerTrigger) {
+			interruptPending = true;
+			double periode = cyclesMultiplicator * calcPeriodeTime();
+			long wraps = (long) ((cycles - nextTimerTrigger) / periode) + 1;
+			nextTimerTrigger = (long) (nextTimerTrigger + wraps * periode);
+		}
+		for (int i = 0; i < noCompare; i++) {
+			CCR reg = ccr[i];
+			if (!reg.isScheduled() && !reg.captureOn && reg.expCaptureTime != -1
+					&& cycles >= reg.expCaptureTime && reg.eventReachable()) {
+				reg.tcctl |= CC_IFG;
+				updateCounter(cycles);
+				updateCCREvent(i, cycles);
+			}
+		}
+	}
+
 	private long cycleLeakofBigCount(long cycles) {
 		return cycles-counterSaveCycle;
 	}
@@ -1158,6 +1304,7 @@ public class Timer extends IOUnit {
 
 	@Override
 	public String info() {
+		updateFlags(cpu.cycles);
 		StringBuilder sb = new StringBuilder();
 		sb.append("  Source: " + getSourceName(clockSource) + "  Speed: "
 				+ clockSpeed + " Hz  inDiv: " + inputDivider1 + " " + inputDivider2
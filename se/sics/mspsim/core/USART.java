@@ -37,9 +37,11 @@
 
 package se.sics.mspsim.core;
 
+import java.io.IOException;
+
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 
-public class USART extends IOUnit implements SFRModule, DMATrigger, USARTSource {
+public class USART extends IOUnit implements SFRModule, DMATrigger, USARTSource, Snapshotable {
 
   // USART 0/1 register offset (0x70 / 0x78)
   public static final int UCTL = 0;
@@ -132,7 +134,7 @@ public class USART extends IOUnit implements SFRModule, DMATrigger, USARTSource
    * Creates a new <code>USART</code> instance.
    *
    */
-  public USART(MSP430Core cpu, int uartID, int[] memory, int offset) {
+  public USART(MSP430Core cpu, int uartID, byte[] memory, int offset) {
     super("USART" + uartID, "USART " + uartID, cpu, memory, offset);
     this.uartID = uartID;
     sfr = cpu.getSFR();
@@ -173,6 +175,58 @@ public class USART extends IOUnit implements SFRModule, DMATrigger, USARTSource
     rxEnabled = false;
   }
 
+  public void saveState(SnapshotOutput out) throws IOException {
+    saveIOState(out);
+    out.writeInt(clockSource);
+    out.writeInt(baudRate);
+    out.writeInt(tickPerByte);
+    out.writeLong(nextTXReady);
+    out.writeInt(nextTXByte);
+    out.writeInt(txShiftReg);
+    out.writeBoolean(transmitting);
+    out.writeInt(nextRXByte);
+    out.writeBoolean(receiving);
+    out.writeInt(uctl);
+    out.writeInt(utctl);
+    out.writeInt(urctl);
+    out.writeInt(umctl);
+    out.writeInt(ubr0);
+    out.writeInt(ubr1);
+    out.writeInt(urxbuf);
+    out.writeInt(utxbuf);
+    out.writeBoolean(txEnabled);
+    out.writeBoolean(rxEnabled);
+    out.writeBoolean(spiMode);
+    out.writeEvent(txTrigger);
+    out.writeEvent(rxTrigger);
+  }
+
+  public void loadState(SnapshotInput in) throws IOException {
+    loadIOState(in);
+    clockSource = in.readInt();
+    baudRate = in.readInt();
+    tickPerByte = in.readInt();
+    nextTXReady = in.readLong();
+    nextTXByte = in.readInt();
+    txShiftReg = in.readInt();
+    transmitting = in.readBoolean();
+    nextRXByte = in.readInt();
+    receiving = in.readBoolean();
+    uctl = in.readInt();
+    utctl = in.readInt();
+    urctl = in.readInt();
+    umctl = in.readInt();
+    ubr0 = in.readInt();
+    ubr1 = in.readInt();
+    urxbuf = in.readInt();
+    utxbuf = in.readInt();
+    txEnabled = in.readBoolean();
+    rxEnabled = in.readBoolean();
+    spiMode = in.readBoolean();
+    in.readEvent(txTrigger);
+    in.readEvent(rxTrigger);
+  }
+
   public void enableChanged(int reg, int bit, boolean enabled) {
     if (DEBUG) log("enableChanged: " + reg + " bit: " + bit +
         " enabled = " + enabled + " txBit: " + txbit);
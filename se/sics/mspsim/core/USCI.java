@@ -37,10 +37,12 @@
 
 package se.sics.mspsim.core;
 
+import java.io.IOException;
+
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 
 
-public class USCI extends IOUnit implements SFRModule, DMATrigger, USARTSource {
+public class USCI extends IOUnit implements SFRModule, DMATrigger, USARTSource, Snapshotable {
 
   // USART 0/1 register offset (0x60 / 0xD0)
   public static final int UAxCTL0 = 0;
@@ -137,7 +139,7 @@ public class USCI extends IOUnit implements SFRModule, DMATrigger, USARTSource {
    * Creates a new <code>USART</code> instance.
    *
    */
-  public USCI(MSP430Core cpu, int uartID, int[] memory, MSP430Config config) {
+  public USCI(MSP430Core cpu, int uartID, byte[] memory, MSP430Config config) {
     super(config.uartConfig[uartID].name, cpu, memory, config.uartConfig[uartID].offset);
     this.uartID = uartID;
     MSP430Config.UARTConfig uartConfig = config.uartConfig[uartID];
@@ -222,7 +224,7 @@ public class USCI extends IOUnit implements SFRModule, DMATrigger, USARTSource {
   private int getIFG() {
       if (sfr != null)
           return sfr.getIFG(sfrAddress);
-      return memory[ifgAddress];
+      return memory[ifgAddress] & 0xff;
   }
 
   private boolean isIEBitsSet(int bits) {
@@ -245,7 +247,7 @@ public class USCI extends IOUnit implements SFRModule, DMATrigger, USARTSource {
   // Only 8 bits / read!
   public void write(int address, int data, boolean word, long cycles) {
     if (address == ieAddress || address == ifgAddress) {
-        memory[address] = data;
+        memory[address] = (byte) data;
     }
     address = address - offset;
 
@@ -331,7 +333,7 @@ public class USCI extends IOUnit implements SFRModule, DMATrigger, USARTSource {
 
   public int read(int address, boolean word, long cycles) {
       if (address == ieAddress || address == ifgAddress) {
-          return memory[address];
+          return memory[address] & 0xff;
       }
     address = address - offset;
 //    System.out.println(">>>>> Read from " + getName() + " at " +
@@ -405,6 +407,52 @@ public class USCI extends IOUnit implements SFRModule, DMATrigger, USARTSource {
 
   // We should add "Interrupt serviced..." to indicate that its latest
   // Interrupt was serviced...
+  public void saveState(SnapshotOutput out) throws IOException {
+    saveIOState(out);
+    out.writeInt(clockSource);
+    out.writeInt(baudRate);
+    out.writeInt(tickPerByte);
+    out.writeLong(nextTXReady);
+    out.writeInt(nextTXByte);
+    out.writeInt(txShiftReg);
+    out.writeBoolean(transmitting);
+    out.writeInt(uctl0);
+    out.writeInt(uctl1);
+    out.writeInt(umctl);
+    out.writeInt(ubr0);
+    out.writeInt(ubr1);
+    out.writeInt(urxbuf);
+    out.writeInt(utxbuf);
+    out.writeInt(ustat);
+    out.writeBoolean(txEnabled);
+    out.writeBoolean(rxEnabled);
+    out.writeBoolean(spiMode);
+    out.writeEvent(txTrigger);
+  }
+
+  public void loadState(SnapshotInput in) throws IOException {
+    loadIOState(in);
+    clockSource = in.readInt();
+    baudRate = in.readInt();
+    tickPerByte = in.readInt();
+    nextTXReady = in.readLong();
+    nextTXByte = in.readInt();
+    txShiftReg = in.readInt();
+    transmitting = in.readBoolean();
+    uctl0 = in.readInt();
+    uctl1 = in.readInt();
+    umctl = in.readInt();
+    ubr0 = in.readInt();
+    ubr1 = in.readInt();
+    urxbuf = in.readInt();
+    utxbuf = in.readInt();
+    ustat = in.readInt();
+    txEnabled = in.readBoolean();
+    rxEnabled = in.readBoolean();
+    spiMode = in.readBoolean();
+    in.readEvent(txTrigger);
+  }
+
   public void interruptServiced(int vector) {
     /* NOTE: this is handled by SFR : clear IFG bit if interrupt is serviced */
 //      System.out.println(getName() + " SFR irq " + vector + " " + txShiftReg + " " + getIFG());
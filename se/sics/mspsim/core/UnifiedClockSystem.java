@@ -41,9 +41,11 @@
  */
 
 package se.sics.mspsim.core;
+import java.io.IOException;
+
 import se.sics.mspsim.util.Utils;
 
-public class UnifiedClockSystem extends ClockSystem {
+public class UnifiedClockSystem extends ClockSystem implements Snapshotable {
 
   private static final int UCSCTL0 = 0x0160;
   private static final int UCSCTL1 = 0x0162;
@@ -299,7 +301,7 @@ public class UnifiedClockSystem extends ClockSystem {
    * Creates a new <code>UnifiedClockSystem</code> instance.
    *
    */
-  public UnifiedClockSystem(MSP430Core cpu, int[] memory, int offset, Timer[] timers) {
+  public UnifiedClockSystem(MSP430Core cpu, byte[] memory, int offset, Timer[] timers) {
     super("UnifiedClockSystem", cpu, memory, offset);
     this.timers = timers;
   }
@@ -331,9 +333,9 @@ public class UnifiedClockSystem extends ClockSystem {
 
   // do nothing?
   public int read(int address, boolean word, long cycles) {
-    int val = memory[address];
+    int val = memory[address] & 0xff;
     if (word) {
-      val |= memory[(address + 1) & 0xffff] << 8;
+      val |= (memory[(address + 1) & 0xffff] & 0xff) << 8;
     }
     return val;
   }
@@ -343,8 +345,8 @@ public class UnifiedClockSystem extends ClockSystem {
     if (DEBUG) log("Write to UnifiedClockSystem: " +
 		       Utils.hex16(address) + " => " + Utils.hex16(data));
 
-    memory[address] = data & 0xff;
-    if (word) memory[address + 1] = (data >> 8) & 0xff;
+    memory[address] = (byte) data;
+    if (word) memory[address + 1] = (byte) (data >> 8);
 
     setConfiguration(cycles);
   }
@@ -352,6 +354,18 @@ public class UnifiedClockSystem extends ClockSystem {
   public void interruptServiced(int vector) {
   }
 
+  /* The registers are kept in the memory which is restored by the CPU */
+  public void saveState(SnapshotOutput out) throws IOException {
+    saveIOState(out);
+    out.writeInt(currentDcoFrequency);
+  }
+
+  /* The CPU clocks are restored by the CPU itself */
+  public void loadState(SnapshotInput in) throws IOException {
+    loadIOState(in);
+    currentDcoFrequency = in.readInt();
+  }
+
 
   private void setConfiguration(long cycles) {
     // Read a configuration from the UCSCTL* registers and compute the timer setup
@@ -40,6 +40,8 @@
  */
 package se.sics.mspsim.core;
 
+import java.io.IOException;
+
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.util.Utils;
 
@@ -47,7 +49,7 @@ import se.sics.mspsim.util.Utils;
  * @author joakim
  *
  */
-public class Watchdog extends IOUnit implements SFRModule {
+public class Watchdog extends IOUnit implements SFRModule, Snapshotable {
   
   private static final int WDTHOLD = 0x80;
   private static final int WDTCNTCL = 0x08;
@@ -116,6 +118,28 @@ public class Watchdog extends IOUnit implements SFRModule {
       scheduleTimer();
   }
 
+  public void saveState(SnapshotOutput out) throws IOException {
+      saveIOState(out);
+      out.writeInt(wdtctl);
+      out.writeBoolean(wdtOn);
+      out.writeBoolean(hold);
+      out.writeLong(delay);
+      out.writeBoolean(sourceACLK);
+      out.writeBoolean(timerMode);
+      out.writeEvent(wdtTrigger);
+  }
+
+  public void loadState(SnapshotInput in) throws IOException {
+      loadIOState(in);
+      wdtctl = in.readInt();
+      wdtOn = in.readBoolean();
+      hold = in.readBoolean();
+      delay = in.readLong();
+      sourceACLK = in.readBoolean();
+      timerMode = in.readBoolean();
+      in.readEvent(wdtTrigger);
+  }
+
   private void triggerWDT(long time) {
       // Here the WDT triggered!!!
       if (timerMode) {
@@ -1,10 +1,43 @@
 package se.sics.mspsim.core;
 
+import java.util.Arrays;
+
+/**
+ * Memory segment wrapper that notifies the monitors watching an address.
+ *
+ * The watch points are kept in an immutable table that is replaced when
+ * watch points are added or removed. The table has a bitmap with one bit
+ * per address so that accesses to unwatched addresses only cost one bit
+ * test, and the monitors for each address are stored as a chain of
+ * indices in primitive arrays so that dispatch never allocates.
+ */
 public class WatchedMemory implements Memory {
 
+    private static final class WatchTable {
+        /* one bit per address in the segment that has a monitor */
+        final long[] watched = new long[Memory.SEGMENT_SIZE / 64];
+        /* index of the first monitor per address or -1 */
+        final int[] first = new int[Memory.SEGMENT_SIZE];
+        /* index of the next monitor for the same address or -1 */
+        final int[] next;
+        final MemoryMonitor[] monitors;
+
+        WatchTable(int size) {
+            next = new int[size];
+            monitors = new MemoryMonitor[size];
+            Arrays.fill(first, -1);
+        }
+    }
+
     private final int start;
     private final Memory wrappedMemory;
-    private final MemoryMonitor watchPoints[] = new MemoryMonitor[Memory.SEGMENT_SIZE];
+
+    /* all watch points in the order they were added */
+    private int[] watchAddresses = new int[8];
+    private MemoryMonitor[] watchMonitors = new MemoryMonitor[8];
+    private int watchCount = 0;
+
+    private volatile WatchTable table = new WatchTable(0);
 
     WatchedMemory(int start, Memory wrapped) {
         this.start = start;
@@ -13,29 +46,37 @@ public class WatchedMemory implements Memory {
 
     @Override
     public int read(int address, AccessMode mode, AccessType type) throws EmulationException {
+        final WatchTable t = table;
         final int a = address - start;
-        int val;
-        MemoryMonitor mon = watchPoints[a];
-        if (mon != null) {
-            mon.notifyReadBefore(address, mode, type);
-            val = wrappedMemory.read(address, mode, type);
-            mon.notifyReadAfter(address, mode, type);
-        } else {
-            val = wrappedMemory.read(address, mode, type);
+        if ((t.watched[a >> 6] & (1L << a)) == 0) {
+            return wrappedMemory.read(address, mode, type);
+        }
+        final int first = t.first[a];
+        for (int i = first; i >= 0; i = t.next[i]) {
+            t.monitors[i].notifyReadBefore(address, mode, type);
+        }
+        int val = wrappedMemory.read(address, mode, type);
+        for (int i = first; i >= 0; i = t.next[i]) {
+            t.monitors[i].notifyReadAfter(address, mode, type);
         }
         return val;
     }
 
     @Override
     public void write(int dstAddress, int dst, AccessMode mode) throws EmulationException {
+        final WatchTable t = table;
         final int a = dstAddress - start;
-        final MemoryMonitor mon = watchPoints[a];
-        if (mon != null) {
-            mon.notifyWriteBefore(dstAddress, dst, mode);
-            wrappedMemory.write(dstAddress, dst, mode);
-            mon.notifyWriteAfter(dstAddress, dst, mode);
-        } else {
+        if ((t.watched[a >> 6] & (1L << a)) == 0) {
             wrappedMemory.write(dstAddress, dst, mode);
+            return;
+        }
+        final int first = t.first[a];
+        for (int i = first; i >= 0; i = t.next[i]) {
+            t.monitors[i].notifyWriteBefore(dstAddress, dst, mode);
+        }
+        wrappedMemory.write(dstAddress, dst, mode);
+        for (int i = first; i >= 0; i = t.next[i]) {
+            t.monitors[i].notifyWriteAfter(dstAddress, dst, mode);
         }
     }
 
@@ -50,18 +91,53 @@ public class WatchedMemory implements Memory {
     }
 
     public boolean hasWatchPoint(int address) {
-        MemoryMonitor mon = watchPoints[address - start];
-        return mon != null;
+        final int a = address - start;
+        return (table.watched[a >> 6] & (1L << a)) != 0;
     }
 
     public synchronized void addWatchPoint(int address, MemoryMonitor mon) {
-        final int a = address - start;
-        watchPoints[a] = MemoryMonitor.Proxy.INSTANCE.add(watchPoints[a], mon);
+        if (watchCount == watchAddresses.length) {
+            watchAddresses = Arrays.copyOf(watchAddresses, watchCount * 2);
+            watchMonitors = Arrays.copyOf(watchMonitors, watchCount * 2);
+        }
+        watchAddresses[watchCount] = address - start;
+        watchMonitors[watchCount] = mon;
+        watchCount++;
+        updateTable();
     }
 
     public synchronized void removeWatchPoint(int address, MemoryMonitor mon) {
         final int a = address - start;
-        watchPoints[a] = MemoryMonitor.Proxy.INSTANCE.remove(watchPoints[a], mon);
+        for (int i = 0; i < watchCount; i++) {
+            if (watchAddresses[i] == a && mon.equals(watchMonitors[i])) {
+                watchCount--;
+                System.arraycopy(watchAddresses, i + 1, watchAddresses, i, watchCount - i);
+                System.arraycopy(watchMonitors, i + 1, watchMonitors, i, watchCount - i);
+                watchMonitors[watchCount] = null;
+                updateTable();
+                return;
+            }
+        }
+    }
+
+    /* Monitors are notified in the order they were added */
+    private void updateTable() {
+        WatchTable t = new WatchTable(watchCount);
+        int[] last = new int[Memory.SEGMENT_SIZE];
+        Arrays.fill(last, -1);
+        for (int i = 0; i < watchCount; i++) {
+            int a = watchAddresses[i];
+            t.monitors[i] = watchMonitors[i];
+            t.next[i] = -1;
+            if (last[a] < 0) {
+                t.first[a] = i;
+                t.watched[a >> 6] |= 1L << a;
+            } else {
+                t.next[last[a]] = i;
+            }
+            last[a] = i;
+        }
+        table = t;
     }
 
 }
@@ -41,6 +41,9 @@ package se.sics.mspsim.debug;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 
 import se.sics.mspsim.util.DebugInfo;
 import se.sics.mspsim.util.ELF;
@@ -48,6 +51,14 @@ import se.sics.mspsim.util.ELFDebug;
 import se.sics.mspsim.util.ELFSection;
 import se.sics.mspsim.util.Utils;
 
+/**
+ * Reads the DWARF line number information. Only the headers of the line
+ * number programs are scanned when the ELF file is read. The program of
+ * a compilation unit is decoded into compact sorted arrays the first
+ * time an address in the unit is looked up. The unit is found using the
+ * address ranges in .debug_aranges, and the remaining units are only
+ * decoded when the address is not covered by any range.
+ */
 public class DwarfReader implements ELFDebug {
 
     public static final boolean DEBUG = false;
@@ -74,6 +85,35 @@ public class DwarfReader implements ELFDebug {
     public static final int    DW_LNE_define_file = 3;
     public static final int    DW_LNE_set_discriminator = 4; /* DWARF > 2.0 */
 
+    /* Attributes and forms needed to find the line program of a unit */
+    public static final int    DW_AT_stmt_list = 0x10;
+
+    public static final int    DW_FORM_addr = 0x01;
+    public static final int    DW_FORM_block2 = 0x03;
+    public static final int    DW_FORM_block4 = 0x04;
+    public static final int    DW_FORM_data2 = 0x05;
+    public static final int    DW_FORM_data4 = 0x06;
+    public static final int    DW_FORM_data8 = 0x07;
+    public static final int    DW_FORM_string = 0x08;
+    public static final int    DW_FORM_block = 0x09;
+    public static final int    DW_FORM_block1 = 0x0a;
+    public static final int    DW_FORM_data1 = 0x0b;
+    public static final int    DW_FORM_flag = 0x0c;
+    public static final int    DW_FORM_sdata = 0x0d;
+    public static final int    DW_FORM_strp = 0x0e;
+    public static final int    DW_FORM_udata = 0x0f;
+    public static final int    DW_FORM_ref_addr = 0x10;
+    public static final int    DW_FORM_ref1 = 0x11;
+    public static final int    DW_FORM_ref2 = 0x12;
+    public static final int    DW_FORM_ref4 = 0x13;
+    public static final int    DW_FORM_ref8 = 0x14;
+    public static final int    DW_FORM_ref_udata = 0x15;
+    public static final int    DW_FORM_indirect = 0x16;
+    public static final int    DW_FORM_sec_offset = 0x17;
+    public static final int    DW_FORM_exprloc = 0x18;
+    public static final int    DW_FORM_flag_present = 0x19;
+    public static final int    DW_FORM_ref_sig8 = 0x20;
+
     ELF elfFile;
 
     /* Address ranges */
@@ -85,24 +125,147 @@ public class DwarfReader implements ELFDebug {
         int segmentSize;
     }
 
-    class LineEntry {
-        int address;
-        int line;
-        int file;
-        LineEntry(int line, int adr, int file) {
-            this.line = line;
-            this.address = adr;
-            this.file = file;
-        }
-    }
-    /* Line number lookup data */
+    /* Line number lookup data for one compilation unit */
     class LineData {
         String[] includeDirs;
         String[] sourceFiles;
-        LineEntry[] lineEntries;
+
+        /* the rows of all sequences in the order they were generated */
+        int rowCount;
+        int[] addresses = new int[64];
+        int[] lines = new int[64];
+        int[] files = new int[64];
+
+        /* index of the first row in each sequence */
+        int sequenceCount;
+        int[] sequences = new int[8];
+
+        /* address ranges [start, end) of the rows sorted on start address */
+        int[] rangeStarts;
+        int[] rangeEnds;
+        int[] rangeRows;
+
+        void addRow(int line, int address, int file) {
+            if (rowCount == addresses.length) {
+                addresses = Arrays.copyOf(addresses, rowCount * 2);
+                lines = Arrays.copyOf(lines, rowCount * 2);
+                files = Arrays.copyOf(files, rowCount * 2);
+            }
+            addresses[rowCount] = address;
+            lines[rowCount] = line;
+            files[rowCount] = file;
+            rowCount++;
+        }
+
+        void startSequence() {
+            if (sequenceCount == sequences.length) {
+                sequences = Arrays.copyOf(sequences, sequenceCount * 2);
+            }
+            sequences[sequenceCount++] = rowCount;
+        }
+
+        int getSequenceEnd(int sequence) {
+            return sequence + 1 < sequenceCount ? sequences[sequence + 1] : rowCount;
+        }
+
+        String getFile(int row) {
+            int file = files[row] - 1;
+            return file >= 0 && file < sourceFiles.length ? sourceFiles[file] : null;
+        }
+
+        /* Each row covers the addresses up to the next row in the same sequence */
+        void createIndex() {
+            int[] starts = new int[rowCount];
+            int[] ends = new int[rowCount];
+            int[] rows = new int[rowCount];
+            int count = 0;
+            boolean sorted = true;
+            for (int s = 0; s < sequenceCount; s++) {
+                int first = sequences[s];
+                int last = getSequenceEnd(s);
+                /* XXX ignore all line entries starting on address 0 */
+                if (addresses[first] == 0) continue;
+                /* the last row only marks the end of the sequence */
+                for (int row = first; row < last - 1; row++) {
+                    if (addresses[row] < addresses[row + 1]) {
+                        if (count > 0 && addresses[row] < starts[count - 1]) {
+                            sorted = false;
+                        }
+                        starts[count] = addresses[row];
+                        ends[count] = addresses[row + 1];
+                        rows[count] = row;
+                        count++;
+                    }
+                }
+            }
+            if (!sorted) {
+                /* sequences out of address order - sort on start (stable) */
+                Integer[] order = new Integer[count];
+                for (int i = 0; i < count; i++) {
+                    order[i] = i;
+                }
+                final int[] keys = starts;
+                Arrays.sort(order, new Comparator<Integer>() {
+                    public int compare(Integer o1, Integer o2) {
+                        return keys[o1] < keys[o2] ? -1 : (keys[o1] == keys[o2] ? 0 : 1);
+                    }
+                });
+                int[] s2 = new int[count];
+                int[] e2 = new int[count];
+                int[] r2 = new int[count];
+                for (int i = 0; i < count; i++) {
+                    s2[i] = starts[order[i]];
+                    e2[i] = ends[order[i]];
+                    r2[i] = rows[order[i]];
+                }
+                starts = s2;
+                ends = e2;
+                rows = r2;
+            }
+            rangeStarts = Arrays.copyOf(starts, count);
+            rangeEnds = Arrays.copyOf(ends, count);
+            rangeRows = Arrays.copyOf(rows, count);
+        }
+
+        /* Returns the row covering the address or -1 */
+        int findRow(int address) {
+            int low = 0;
+            int high = rangeStarts.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (rangeStarts[mid] <= address) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (low > 0 && address < rangeEnds[low - 1]) {
+                return rangeRows[low - 1];
+            }
+            return -1;
+        }
     }
 
-    ArrayList<LineData> lineInfo = new ArrayList<LineData>();
+    /* offsets of the line number programs in .debug_line */
+    private int[] lineOffsets = new int[0];
+    /* the decoded line number programs or null if not yet decoded */
+    private LineData[] lineInfo = new LineData[0];
+
+    /* address ranges with the compilation unit (.debug_info offset) sorted on address */
+    private int[] arangeStarts = new int[0];
+    private int[] arangeEnds = new int[0];
+    private int[] arangeInfoOffsets = new int[0];
+    /* line program index per .debug_info offset, -1 if not found */
+    private HashMap<Integer,Integer> unitLineIndex = new HashMap<Integer,Integer>();
+    /* line programs whose addresses are all covered by the aranges */
+    private boolean[] coveredLines;
+
+    /* file name to addresses per line (+1), built on first use */
+    private HashMap<String,int[]> fileLines;
+
+    private ELFSection lineSection;
+    private ELFSection infoSection;
+    private ELFSection abbrevSection;
 
     /* some state for the line number handling */
     private int lineAddress;
@@ -127,278 +290,283 @@ public class DwarfReader implements ELFDebug {
             if (".debug_aranges".equals(name)) {
                 readAranges(sec);
             } else if (".debug_line".equals(name)) {
-                readLines(sec);
+                scanLines(sec);
+            } else if (".debug_info".equals(name)) {
+                infoSection = sec;
+            } else if (".debug_abbrev".equals(name)) {
+                abbrevSection = sec;
             }
         }
     }
 
-    private void readLines(ELFSection sec) {
+    /* Only finds the start of each line number program - they are decoded on demand */
+    private void scanLines(ELFSection sec) {
         if (DEBUG) {
             System.out.println("DWARF Line - ELF Section length: " + sec.getSize());
         }
+        lineSection = sec;
+        ArrayList<Integer> offsets = new ArrayList<Integer>();
+        int pos = 0;
+        while (pos < sec.getSize()) {
+            offsets.add(pos);
+            pos += 4 + sec.readElf32(pos);
+        }
+        lineOffsets = new int[offsets.size()];
+        for (int i = 0; i < lineOffsets.length; i++) {
+            lineOffsets[i] = offsets.get(i);
+        }
+        lineInfo = new LineData[lineOffsets.length];
+    }
 
-        sec.reset();
-        int endPos = 0;
-        ArrayList<LineEntry> lineData = new ArrayList<LineEntry>();
-        while (sec.getPosition() < sec.getSize()) {
-            if (DEBUG) System.out.println(" --- Reading debug info --- ");
-            /* here starts the reading of one file's (?) debug info */
-            int totLen = sec.readElf32();
-            int version = sec.readElf16();
-            int proLen = sec.readElf32();
-            int minOpLen = sec.readElf8();
+    private LineData getLineData(int index) {
+        LineData data = lineInfo[index];
+        if (data == null) {
+            data = readLines(lineSection, lineOffsets[index]);
+            data.createIndex();
+            lineInfo[index] = data;
+        }
+        return data;
+    }
 
-            int defaultIsStmt = sec.readElf8();
-            int lineBase = Integer.valueOf(sec.readElf8()).byteValue();
-            int lineRange = sec.readElf8();
-            int opcodeBase = sec.readElf8();
+    private LineData readLines(ELFSection sec, int offset) {
+        sec.setPosition(offset);
+        if (DEBUG) System.out.println(" --- Reading debug info --- ");
+        /* here starts the reading of one file's (?) debug info */
+        int totLen = sec.readElf32();
+        int version = sec.readElf16();
+        int proLen = sec.readElf32();
+        int minOpLen = sec.readElf8();
+
+        int defaultIsStmt = sec.readElf8();
+        int lineBase = Integer.valueOf(sec.readElf8()).byteValue();
+        int lineRange = sec.readElf8();
+        int opcodeBase = sec.readElf8();
+
+        int endPos = offset + 4 + totLen;
+        if (DEBUG) {
+            System.out.println("Line total length: " + totLen + " endPos: " + endPos);
+            System.out.println("Line pro length: " + proLen);
+            System.out.println("Line version: " + version);
+        }
 
-            endPos += 4 + totLen;
-            if (DEBUG) {
-                System.out.println("Line total length: " + totLen + " endPos: " + endPos);
-                System.out.println("Line pro length: " + proLen);
-                System.out.println("Line version: " + version);
-            }
+        if (DEBUG) {
+            System.out.println("Line base  : " + lineBase);
+            System.out.println("Line range : " + lineRange);
+            System.out.println("Line - Opcode base: " + opcodeBase);
+        }
 
-            if (DEBUG) {
-                System.out.println("Line base  : " + lineBase);
-                System.out.println("Line range : " + lineRange);
-                System.out.println("Line - Opcode base: " + opcodeBase);
-            }
+        /* first char of includes (skip opcode lens)... */
+        for (int i = 0; i < opcodeBase - 1; i++) {
+            sec.readElf8();
+        }
 
-            /* first char of includes (skip opcode lens)... */
-            for (int i = 0; i < opcodeBase - 1; i++) {
-                sec.readElf8();
+        if (DEBUG) System.out.println("Line --- include files ---");
+        ArrayList<String> directories = new ArrayList<String>();
+        directories.add("./");
+        ArrayList<String> files = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+
+        /* if first char is zero => no more include directories... */
+        int c;
+        while ((c = sec.readElf8()) != 0) {
+            sb.append((char)c);
+            while((c = sec.readElf8()) != 0) {
+              sb.append((char) c);
             }
 
-            //        pos = pos + 15 + opcodeBase - 1;
-            //        System.out.println("Line pos = " + pos + " sec-pos = " + sec.getPosition());
-            if (DEBUG) System.out.println("Line --- include files ---");
-            ArrayList<String> directories = new ArrayList<String>();
-            directories.add("./");
-            ArrayList<String> files = new ArrayList<String>();
-            StringBuilder sb = new StringBuilder();
-
-            /* if first char is zero => no more include directories... */
-            int c;
-            while ((c = sec.readElf8()) != 0) {
-                sb.append((char)c);
-                while((c = sec.readElf8()) != 0) {
-                  sb.append((char) c);
-                }
+            if (DEBUG) System.out.println("Line: include file: " + sb.toString());
+            directories.add(sb.toString());
+            sb.setLength(0);
+        }
 
-                if (DEBUG) System.out.println("Line: include file: " + sb.toString());
-                directories.add(sb.toString());
-                sb.setLength(0);
+        if (DEBUG) System.out.println("Line --- source files ---");
+        long dirIndex = 0;
+        long time = 0;
+        long size = 0;
+        while ((c = sec.readElf8()) != 0) {
+            sb.append((char)c);
+            while((c = sec.readElf8()) != 0) {
+              sb.append((char) c);
             }
 
-            if (DEBUG) System.out.println("Line --- source files ---");
-            long dirIndex = 0;
-            long time = 0;
-            long size = 0;
-            while ((c = sec.readElf8()) != 0) {
-                sb.append((char)c);
-                while((c = sec.readElf8()) != 0) {
-                  sb.append((char) c);
-                }
-
-                dirIndex = sec.readLEB128();
-                time = sec.readLEB128();
-                size = sec.readLEB128();
+            dirIndex = sec.readLEB128();
+            time = sec.readLEB128();
+            size = sec.readLEB128();
 
-                if (DEBUG) System.out.println("Line: source file: " + sb.toString() + "  dir: " + dirIndex + " size: " + size);
-                files.add(directories.get((int) dirIndex) + "/" + sb.toString());
-                sb.setLength(0);
-            }
+            if (DEBUG) System.out.println("Line: source file: " + sb.toString() + "  dir: " + dirIndex + " size: " + size);
+            files.add(directories.get((int) dirIndex) + "/" + sb.toString());
+            sb.setLength(0);
+        }
 
+        LineData lineTable = new LineData();
+        lineTable.includeDirs = directories.toArray(new String[0]);
+        lineTable.sourceFiles = files.toArray(new String[0]);
 
-            /* Now we should have entered the position of the "code" for generating the
-             * line <=> address table
-             */
-            if (DEBUG) {
-                System.out.println("Line: position: " + sec.getPosition() + " endPos: " + endPos);
-                System.out.println("Line: first bytes of the machine: ");
-                System.out.print("Line: ");
-            }
+        /* Now we should have entered the position of the "code" for generating the
+         * line <=> address table
+         */
+        if (DEBUG) {
+            System.out.println("Line: position: " + sec.getPosition() + " endPos: " + endPos);
+        }
 
-            while (sec.getPosition() < endPos) {
-                /* reset the "state" of the state machine (6.2.2 spec) */
-                lineAddress = 0;
-                lineFile = 1;
-                lineLine = 1;
-                lineColumn = 0;
-                endSequence = false;
-                isStatement = defaultIsStmt != 0;
-                isBasicBlock = false;
-
-                lineData.clear();
-
-                while(!endSequence) {
-                    int opCode = sec.readElf8();
-                    if (DEBUG) System.out.print("POS: " + sec.getPosition() + " INS: " + Utils.hex8(opCode) + " ");
-                    switch(opCode) {
-                    case DW_LNS_EXT:
-                        /* extended opcodes */
-                        int len = (int) sec.readLEB128();
-                        int extPos = sec.getPosition();
-                        int extIns = sec.readElf8();
-                        if (DEBUG) System.out.println("EXT: " + Utils.hex8(extIns) + " LEN: " + len);
-                        switch(extIns) {
-                        case DW_LNE_end_sequence:
-                            endSequence = true;
-                            lineData.add(new LineEntry(lineLine, lineAddress, lineFile));
-
-                            lineAddress = 0;
-                            lineFile = 1;
-                            lineLine = 1;
-                            lineColumn = 0;
-                            isStatement = defaultIsStmt != 0;
-                            isBasicBlock = false;
-
-                            if (DEBUG) System.out.println("Line: End sequence executed!!!");
-                            break;
-                        case DW_LNE_set_address:
-                            if (len == 3) {
-                                lineAddress = sec.readElf16();
-                            } else if (len == 5) {
-                                lineAddress = sec.readElf32();
-                            } else {
-                                throw new IllegalStateException("No support for " + (len - 1) + " bytes addresses");
-                            }
-                            if (DEBUG) System.out.println("Line: Set address to: " + Utils.hex16(lineAddress) +
-                                    " (len: " + len + ")");
-                            break;
-                        case DW_LNE_define_file: {
-                          /* XXX TODO Implement me */
-                          String filename = sec.readString();
-                          long directoryIndex = sec.readLEB128();
-                          long lastModified = sec.readLEB128();
-                          long fileSize = sec.readLEB128();
-                          if (DEBUG) System.out.println("Line: Should define the file '" + filename + "' dir "
-                                  + directoryIndex + " modified " + lastModified + " size " + fileSize);
-                          break;
-                        }
-                        case DW_LNE_set_discriminator: // DWARF 4.0?
-                            /* currently just read it but ignore it - TODO: use this info */
-                          /*reg_discriminator = */sec.readElf8();
-                          if (DEBUG) System.out.println("Line: Should support DW_LNE_set_discriminator");
-                          break;
-                        default:
-                          /* XXX TODO Implement me */
-                          if (DEBUG) System.out.println("Line: unhandled EXT instr: " + Utils.hex8(extIns));
-                        }
-                        if (sec.getPosition() != extPos + len) {
-                            throw new IllegalStateException("*** ERROR posistion is not as exepected!!!!" + (extPos + len) + " is " +
-                                    sec.getPosition());
-                        }
-                        break;
-                    case DW_LNS_copy:
-                        /* copy data to matrix... */
-                        if (DEBUG) System.out.println("Line: copy data (" + lineLine + "," +
-                                Utils.hex16(lineAddress) + ") to matrix...");
-                        lineData.add(new LineEntry(lineLine, lineAddress, lineFile));
+        while (sec.getPosition() < endPos) {
+            /* reset the "state" of the state machine (6.2.2 spec) */
+            lineAddress = 0;
+            lineFile = 1;
+            lineLine = 1;
+            lineColumn = 0;
+            endSequence = false;
+            isStatement = defaultIsStmt != 0;
+            isBasicBlock = false;
+
+            lineTable.startSequence();
+
+            while(!endSequence) {
+                int opCode = sec.readElf8();
+                if (DEBUG) System.out.print("POS: " + sec.getPosition() + " INS: " + Utils.hex8(opCode) + " ");
+                switch(opCode) {
+                case DW_LNS_EXT:
+                    /* extended opcodes */
+                    int len = (int) sec.readLEB128();
+                    int extPos = sec.getPosition();
+                    int extIns = sec.readElf8();
+                    if (DEBUG) System.out.println("EXT: " + Utils.hex8(extIns) + " LEN: " + len);
+                    switch(extIns) {
+                    case DW_LNE_end_sequence:
+                        endSequence = true;
+                        lineTable.addRow(lineLine, lineAddress, lineFile);
+
+                        lineAddress = 0;
+                        lineFile = 1;
+                        lineLine = 1;
+                        lineColumn = 0;
+                        isStatement = defaultIsStmt != 0;
                         isBasicBlock = false;
-                        break;
-                    case DW_LNS_advance_pc:
-                        long add = sec.readLEB128();
-                        lineAddress += minOpLen * add;
-                        if (DEBUG) System.out.println("Line: Increased address to: " + Utils.hex16(lineAddress));
-                        break;
-                    case DW_LNS_advance_line:
-                        long addLine = sec.readLEB128S();
-                        lineLine += addLine;
-                        if (DEBUG) System.out.println("Line: Increased line to: " + lineLine +
-                                " (incr: " + addLine + ")");
-                        break;
-                    case DW_LNS_set_file:
-                        lineFile = (int) sec.readLEB128();
-                        if (DEBUG) System.out.println("Line: Set file to: " + lineFile);
-                        break;
-                    case DW_LNS_set_column:
-                        lineColumn = (int) sec.readLEB128();
-                        if (DEBUG) System.out.println("Line: set column to: " + lineColumn);
-                        break;
-                    case DW_LNS_negate_stmt:
-                        isStatement = !isStatement;
-                        if (DEBUG) System.out.println("Line: Negated is statement");
-                        break;
-                    case DW_LNS_set_basic_block:
-                        isBasicBlock = true;
-                        if (DEBUG) System.out.println("Line: Set basic block to true");
-                        break;
-                    case DW_LNS_const_add_pc:
-                        if (DEBUG) System.out.println("Line: *** Should add const to PC - but how much - same as FF??");
-                        {
-                          int adjustedOpcode = 255 - opcodeBase;
-                          int operationAdvance = adjustedOpcode / lineRange;
-                          lineAddress += minOpLen * operationAdvance;
-                        }
 
+                        if (DEBUG) System.out.println("Line: End sequence executed!!!");
                         break;
-                    case DW_LNS_fixed_advance_pc:
-                        int incr = sec.readElf16();
-                        lineAddress += incr;
-                        if (DEBUG) System.out.println("Line: *** Increased address to: " + Utils.hex16(lineAddress));
+                    case DW_LNE_set_address:
+                        if (len == 3) {
+                            lineAddress = sec.readElf16();
+                        } else if (len == 5) {
+                            lineAddress = sec.readElf32();
+                        } else {
+                            throw new IllegalStateException("No support for " + (len - 1) + " bytes addresses");
+                        }
+                        if (DEBUG) System.out.println("Line: Set address to: " + Utils.hex16(lineAddress) +
+                                " (len: " + len + ")");
                         break;
-                    case DW_LNS_set_prologue_end:
-                      /*reg_prologue_end = true;*/
+                    case DW_LNE_define_file: {
+                      /* XXX TODO Implement me */
+                      String filename = sec.readString();
+                      long directoryIndex = sec.readLEB128();
+                      long lastModified = sec.readLEB128();
+                      long fileSize = sec.readLEB128();
+                      if (DEBUG) System.out.println("Line: Should define the file '" + filename + "' dir "
+                              + directoryIndex + " modified " + lastModified + " size " + fileSize);
                       break;
-                    case  DW_LNS_set_epilogue_begin:
-                      /*reg_epilogue_begin = true;*/
-                      break;
-                    case  DW_LNS_set_isa:
-                      /*reg_isa = (int) */ sec.readLEB128();
+                    }
+                    case DW_LNE_set_discriminator: // DWARF 4.0?
+                        /* currently just read it but ignore it - TODO: use this info */
+                      /*reg_discriminator = */sec.readElf8();
+                      if (DEBUG) System.out.println("Line: Should support DW_LNE_set_discriminator");
                       break;
                     default:
-                        if (DEBUG) {
-                            System.out.println("INS: " + Utils.hex8(opCode) + " AINS: " + Utils.hex8(opCode - opcodeBase)
-                                    + " lineRange: " + lineRange);
-                        }
+                      /* XXX TODO Implement me */
+                      if (DEBUG) System.out.println("Line: unhandled EXT instr: " + Utils.hex8(extIns));
+                    }
+                    if (sec.getPosition() != extPos + len) {
+                        throw new IllegalStateException("*** ERROR posistion is not as exepected!!!!" + (extPos + len) + " is " +
+                                sec.getPosition());
+                    }
+                    break;
+                case DW_LNS_copy:
+                    /* copy data to matrix... */
+                    if (DEBUG) System.out.println("Line: copy data (" + lineLine + "," +
+                            Utils.hex16(lineAddress) + ") to matrix...");
+                    lineTable.addRow(lineLine, lineAddress, lineFile);
+                    isBasicBlock = false;
+                    break;
+                case DW_LNS_advance_pc:
+                    long add = sec.readLEB128();
+                    lineAddress += minOpLen * add;
+                    if (DEBUG) System.out.println("Line: Increased address to: " + Utils.hex16(lineAddress));
+                    break;
+                case DW_LNS_advance_line:
+                    long addLine = sec.readLEB128S();
+                    lineLine += addLine;
+                    if (DEBUG) System.out.println("Line: Increased line to: " + lineLine +
+                            " (incr: " + addLine + ")");
+                    break;
+                case DW_LNS_set_file:
+                    lineFile = (int) sec.readLEB128();
+                    if (DEBUG) System.out.println("Line: Set file to: " + lineFile);
+                    break;
+                case DW_LNS_set_column:
+                    lineColumn = (int) sec.readLEB128();
+                    if (DEBUG) System.out.println("Line: set column to: " + lineColumn);
+                    break;
+                case DW_LNS_negate_stmt:
+                    isStatement = !isStatement;
+                    if (DEBUG) System.out.println("Line: Negated is statement");
+                    break;
+                case DW_LNS_set_basic_block:
+                    isBasicBlock = true;
+                    if (DEBUG) System.out.println("Line: Set basic block to true");
+                    break;
+                case DW_LNS_const_add_pc:
+                    if (DEBUG) System.out.println("Line: *** Should add const to PC - but how much - same as FF??");
+                    {
+                      int adjustedOpcode = 255 - opcodeBase;
+                      int operationAdvance = adjustedOpcode / lineRange;
+                      lineAddress += minOpLen * operationAdvance;
+                    }
 
-                        int adjustedOpcode = opCode - opcodeBase;
-                        int operationAdvance = adjustedOpcode / lineRange;
+                    break;
+                case DW_LNS_fixed_advance_pc:
+                    int incr = sec.readElf16();
+                    lineAddress += incr;
+                    if (DEBUG) System.out.println("Line: *** Increased address to: " + Utils.hex16(lineAddress));
+                    break;
+                case DW_LNS_set_prologue_end:
+                  /*reg_prologue_end = true;*/
+                  break;
+                case  DW_LNS_set_epilogue_begin:
+                  /*reg_epilogue_begin = true;*/
+                  break;
+                case  DW_LNS_set_isa:
+                  /*reg_isa = (int) */ sec.readLEB128();
+                  break;
+                default:
+                    if (DEBUG) {
+                        System.out.println("INS: " + Utils.hex8(opCode) + " AINS: " + Utils.hex8(opCode - opcodeBase)
+                                + " lineRange: " + lineRange);
+                    }
 
-                        int lineInc = lineBase + (adjustedOpcode % lineRange);
-                        lineLine += lineInc;
+                    int adjustedOpcode = opCode - opcodeBase;
+                    int operationAdvance = adjustedOpcode / lineRange;
 
-                        lineAddress += minOpLen * operationAdvance;
-                        lineData.add(new LineEntry(lineLine, lineAddress, lineFile));
-                        isBasicBlock = false;
+                    int lineInc = lineBase + (adjustedOpcode % lineRange);
+                    lineLine += lineInc;
 
-                        if (DEBUG) System.out.println("Line: *** Special operation => addr: " +
-                                Utils.hex16(lineAddress) + " Line: " + lineLine + " lineInc: " + lineInc);
-                    }
-                }
-                if (DEBUG) System.out.println("Line - Position " + sec.getPosition() + " totLen: " + totLen +
-                        " endPos: " + endPos);
-
-                if (lineData.size() > 0) {
-                    /* create a block of line-address data that can be used for lookup later.*/
-                    LineData lineTable = new LineData();
-                    lineTable.lineEntries = lineData.toArray(new LineEntry[0]);
-                    lineTable.includeDirs = directories.toArray(new String[0]);
-                    lineTable.sourceFiles = files.toArray(new String[0]);
-                    lineInfo.add(lineTable);
+                    lineAddress += minOpLen * operationAdvance;
+                    lineTable.addRow(lineLine, lineAddress, lineFile);
+                    isBasicBlock = false;
+
+                    if (DEBUG) System.out.println("Line: *** Special operation => addr: " +
+                            Utils.hex16(lineAddress) + " Line: " + lineLine + " lineInc: " + lineInc);
                 }
             }
+            if (DEBUG) System.out.println("Line - Position " + sec.getPosition() + " totLen: " + totLen +
+                    " endPos: " + endPos);
         }
 
-        /* Now we have some tables of data where it should be possible to sort out which
-         * addresses correspond to which lines!?
-         */
-
-
-        if (DEBUG) {
-            for (LineData data : lineInfo) {
-                System.out.println("Compiled file: " + data.sourceFiles[0]);
-                System.out.println("Start address: " +
-                        Utils.hex16(data.lineEntries[0].address));
-                System.out.println("End  address: " +
-                        Utils.hex16(data.lineEntries[data.lineEntries.length - 1].address));
-                System.out.println("Size: " +
-                        Utils.hex16(data.lineEntries[data.lineEntries.length - 1].address - data.lineEntries[0].address));
-            }
+        if (DEBUG && lineTable.rowCount > 0) {
+            System.out.println("Compiled file: " + lineTable.sourceFiles[0]);
+            System.out.println("Start address: " + Utils.hex16(lineTable.addresses[0]));
+            System.out.println("End  address: " + Utils.hex16(lineTable.addresses[lineTable.rowCount - 1]));
         }
+        return lineTable;
     }
 
     /* DWARF - address ranges information */
@@ -406,6 +574,7 @@ public class DwarfReader implements ELFDebug {
         if (DEBUG) System.out.println("DWARF Aranges - ELF Section length: " + sec.getSize());
         int pos = 0;
         int index = 0;
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
         do {
             Arange arange = new Arange();
             /* here we should read the address data */
@@ -421,91 +590,320 @@ public class DwarfReader implements ELFDebug {
                 System.out.println("DWARF: Offset: " + arange.offset);
                 System.out.println("DWARF: Address size: " + arange.addressSize);
             }
+            aranges.add(arange);
 
             index++;
-            pos += 12;
-            if (arange.addressSize == 2) {
-                /* these needs to be added too! */
-                int addr, len;
-                do {
-                    addr = sec.readElf16(pos);
-                    len = sec.readElf16(pos + 2);
-                    pos += 4;
+            int end = pos + 4 + arange.length;
+            if (arange.addressSize == 2 || arange.addressSize == 4) {
+                /* the address/length pairs are aligned to the size of a pair */
+                int tupleSize = 2 * arange.addressSize;
+                pos += ((12 + tupleSize - 1) / tupleSize) * tupleSize;
+                while (pos + tupleSize <= end) {
+                    int addr, len;
+                    if (arange.addressSize == 2) {
+                        addr = sec.readElf16(pos);
+                        len = sec.readElf16(pos + 2);
+                    } else {
+                        addr = sec.readElf32(pos);
+                        len = sec.readElf32(pos + 4);
+                    }
+                    pos += tupleSize;
                     if (DEBUG) System.out.println("DWARF: ($" + Utils.hex16(addr) + "," + len + ")");
-                } while (addr != 0 || len != 0);
+                    if (addr == 0 && len == 0) {
+                        break;
+                    }
+                    if (len > 0) {
+                        ranges.add(new int[] { addr, addr + len, arange.offset });
+                    }
+                }
             }
+            pos = end;
         } while (pos < sec.getSize());
+
+        int[][] sorted = ranges.toArray(new int[ranges.size()][]);
+        Arrays.sort(sorted, new Comparator<int[]>() {
+            public int compare(int[] o1, int[] o2) {
+                return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
+            }
+        });
+        arangeStarts = new int[sorted.length];
+        arangeEnds = new int[sorted.length];
+        arangeInfoOffsets = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            arangeStarts[i] = sorted[i][0];
+            arangeEnds[i] = sorted[i][1];
+            arangeInfoOffsets[i] = sorted[i][2];
+        }
+    }
+
+    /* Returns the index of the line program covering the address according to the aranges or -1 */
+    private int findLineIndex(int address) {
+        int low = 0;
+        int high = arangeStarts.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (arangeStarts[mid] <= address) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (low == 0 || address >= arangeEnds[low - 1]) {
+            return -1;
+        }
+        return getLineIndex(arangeInfoOffsets[low - 1]);
     }
 
-    public int getPC(String FileName,int line) {
-      for (int i = 0; i < lineInfo.size(); i++) {
-        LineData data = lineInfo.get(i);
-        int start = data.lineEntries[0].address;
-        /* XXX ignore all line entries starting on address 0 */
-        if (start == 0) continue;
-
-            for (int j = 0; j < data.lineEntries.length; j++) {
-              LineEntry lineEntry = data.lineEntries[j];
-              
-              if(lineEntry.line==line){
-                String FileName2=data.sourceFiles[lineEntry.file-1];
-                if(FileName2.equals(FileName)){
-                  return lineEntry.address;
+    private int getLineIndex(int infoOffset) {
+        Integer index = unitLineIndex.get(infoOffset);
+        if (index == null) {
+            int lineOffset = readStatementList(infoOffset);
+            index = lineOffset >= 0 ? Arrays.binarySearch(lineOffsets, lineOffset) : -1;
+            if (index < 0) {
+                index = -1;
+            }
+            unitLineIndex.put(infoOffset, index);
+        }
+        return index;
+    }
+
+    /*
+     * The compilers emit address ranges for all code in a compilation unit
+     * so an address outside all ranges can only be found in the units
+     * without ranges. If any unit can not be mapped to its line program all
+     * units are searched.
+     */
+    private boolean[] getCoveredLines() {
+        if (coveredLines == null) {
+            boolean[] covered = new boolean[lineInfo.length];
+            for (int i = 0; i < arangeInfoOffsets.length; i++) {
+                int index = getLineIndex(arangeInfoOffsets[i]);
+                if (index < 0) {
+                    covered = new boolean[lineInfo.length];
+                    break;
                 }
+                covered[index] = true;
             }
+            coveredLines = covered;
         }
+        return coveredLines;
     }
-    return -1;
-      
+
+    /*
+     * Reads the DW_AT_stmt_list attribute (offset into .debug_line) of the
+     * compilation unit at the specified offset in .debug_info. Returns -1
+     * if the attribute could not be found.
+     */
+    private int readStatementList(int infoOffset) {
+        ELFSection info = infoSection;
+        ELFSection abbrev = abbrevSection;
+        if (info == null || abbrev == null || infoOffset + 11 > info.getSize()) {
+            return -1;
+        }
+        int version = info.readElf16(infoOffset + 4);
+        int abbrevOffset = info.readElf32(infoOffset + 6);
+        int addressSize = info.readElf8(infoOffset + 10);
+        info.setPosition(infoOffset + 11);
+        long code = info.readLEB128();
+
+        /* find the abbreviation of the compile unit entry */
+        abbrev.setPosition(abbrevOffset);
+        while (abbrev.getPosition() < abbrev.getSize()) {
+            long abbrevCode = abbrev.readLEB128();
+            if (abbrevCode == 0) {
+                return -1;
+            }
+            abbrev.readLEB128(); /* tag */
+            abbrev.readElf8(); /* children */
+            boolean found = abbrevCode == code;
+            for (;;) {
+                int name = (int) abbrev.readLEB128();
+                int form = (int) abbrev.readLEB128();
+                if (name == 0 && form == 0) {
+                    break;
+                }
+                if (!found) {
+                    continue;
+                }
+                if (form == DW_FORM_indirect) {
+                    form = (int) info.readLEB128();
+                }
+                if (name == DW_AT_stmt_list) {
+                    switch (form) {
+                    case DW_FORM_data4:
+                    case DW_FORM_sec_offset:
+                        return info.readElf32();
+                    case DW_FORM_data2:
+                        return info.readElf16();
+                    default:
+                        return -1;
+                    }
+                }
+                if (!skipForm(info, form, addressSize, version)) {
+                    return -1;
+                }
+            }
+            if (found) {
+                return -1;
+            }
+        }
+        return -1;
     }
-    
+
+    private static boolean skipForm(ELFSection sec, int form, int addressSize, int version) {
+        int pos = sec.getPosition();
+        switch (form) {
+        case DW_FORM_flag_present:
+            break;
+        case DW_FORM_data1:
+        case DW_FORM_ref1:
+        case DW_FORM_flag:
+            pos += 1;
+            break;
+        case DW_FORM_data2:
+        case DW_FORM_ref2:
+            pos += 2;
+            break;
+        case DW_FORM_data4:
+        case DW_FORM_ref4:
+        case DW_FORM_strp:
+        case DW_FORM_sec_offset:
+            pos += 4;
+            break;
+        case DW_FORM_data8:
+        case DW_FORM_ref8:
+        case DW_FORM_ref_sig8:
+            pos += 8;
+            break;
+        case DW_FORM_addr:
+            pos += addressSize;
+            break;
+        case DW_FORM_ref_addr:
+            pos += version <= 2 ? addressSize : 4;
+            break;
+        case DW_FORM_string:
+            sec.readString();
+            return true;
+        case DW_FORM_sdata:
+        case DW_FORM_udata:
+        case DW_FORM_ref_udata:
+            sec.readLEB128();
+            return true;
+        case DW_FORM_block1:
+            pos += 1 + sec.readElf8(pos);
+            break;
+        case DW_FORM_block2:
+            pos += 2 + sec.readElf16(pos);
+            break;
+        case DW_FORM_block4:
+            pos += 4 + sec.readElf32(pos);
+            break;
+        case DW_FORM_block:
+        case DW_FORM_exprloc: {
+            int len = (int) sec.readLEB128();
+            pos = sec.getPosition() + len;
+            break;
+        }
+        default:
+            return false;
+        }
+        sec.setPosition(pos);
+        return true;
+    }
+
+    public synchronized int getPC(String FileName,int line) {
+      if (fileLines == null) {
+        fileLines = createFileLines();
+      }
+      int[] addresses = fileLines.get(FileName);
+      if (addresses == null || line < 0 || line >= addresses.length) {
+        return -1;
+      }
+      return addresses[line] - 1;
+    }
+
+    /* The first address of each line in each file, stored as address + 1 */
+    private HashMap<String,int[]> createFileLines() {
+      HashMap<String,int[]> table = new HashMap<String,int[]>();
+      for (int i = 0; i < lineInfo.length; i++) {
+        LineData data = getLineData(i);
+        for (int s = 0; s < data.sequenceCount; s++) {
+          int first = data.sequences[s];
+          /* XXX ignore all line entries starting on address 0 */
+          if (data.addresses[first] == 0) continue;
+          for (int row = first, end = data.getSequenceEnd(s); row < end; row++) {
+            String file = data.getFile(row);
+            int line = data.lines[row];
+            if (file == null || line < 0) continue;
+            int[] addresses = table.get(file);
+            if (addresses == null || addresses.length <= line) {
+              int[] tmp = new int[Math.max(line + 1, addresses == null ? 64 : addresses.length * 2)];
+              if (addresses != null) {
+                System.arraycopy(addresses, 0, tmp, 0, addresses.length);
+              }
+              addresses = tmp;
+              table.put(file, addresses);
+            }
+            if (addresses[line] == 0) {
+              addresses[line] = data.addresses[row] + 1;
+            }
+          }
+        }
+      }
+      return table;
+    }
+
     /* Access methods for data... */
-    public DebugInfo getDebugInfo(int address) {
-        for (int i = 0; i < lineInfo.size(); i++) {
-            LineData data = lineInfo.get(i);
-            int start = data.lineEntries[0].address;
-            int end = data.lineEntries[data.lineEntries.length - 1].address;
-            /* XXX ignore all line entries starting on address 0 */
-            if (start == 0) continue;
-
-            if (address <= end && address >= start) {
-                for (int j = 0; j < data.lineEntries.length; j++) {
-                  LineEntry lineEntry = data.lineEntries[j];
-                  int startEntry = lineEntry.address;
-                  int endEntry;
-                  if (j+1 < data.lineEntries.length) {
-                    endEntry = data.lineEntries[j+1].address-1;
-                  } else {
-                    /* do not match prologue entries */
-                    continue;
-                  }
-                  if (address >= startEntry &&
-                      address <= endEntry) {
-                    return new DebugInfo(lineEntry.line, null, data.sourceFiles[lineEntry.file-1], "* not available");
-                  }
+    public synchronized DebugInfo getDebugInfo(int address) {
+        int index = findLineIndex(address);
+        if (index >= 0) {
+            DebugInfo info = getDebugInfo(getLineData(index), address);
+            if (info != null) {
+                return info;
+            }
+        }
+        /* not covered by the address ranges - look in the other compilation units */
+        boolean[] covered = getCoveredLines();
+        for (int i = 0; i < lineInfo.length; i++) {
+            if (i != index && !covered[i]) {
+                DebugInfo info = getDebugInfo(getLineData(i), address);
+                if (info != null) {
+                    return info;
                 }
             }
         }
         return null;
     }
 
-    public ArrayList<Integer> getExecutableAddresses() {
+    private DebugInfo getDebugInfo(LineData data, int address) {
+        int row = data.findRow(address);
+        if (row < 0) {
+            return null;
+        }
+        return new DebugInfo(data.lines[row], null, data.getFile(row), "* not available");
+    }
+
+    public synchronized ArrayList<Integer> getExecutableAddresses() {
         ArrayList<Integer> executableAddresses = new ArrayList<Integer>();
-        for (LineData data: lineInfo) {
-            for (LineEntry entry: data.lineEntries) {
-                executableAddresses.add(entry.address);
+        for (int i = 0; i < lineInfo.length; i++) {
+            LineData data = getLineData(i);
+            for (int row = 0; row < data.rowCount; row++) {
+                executableAddresses.add(data.addresses[row]);
             }
         }
 	return executableAddresses;
     }
 
-    public String[] getSourceFiles() {
-        String[] sourceFilesArray = new String[lineInfo.size()];
-        for (int i = 0; i < lineInfo.size(); i++) {
-            sourceFilesArray[i] = lineInfo.get(i).sourceFiles[0];
+    public synchronized String[] getSourceFiles() {
+        ArrayList<String> sourceFiles = new ArrayList<String>();
+        for (int i = 0; i < lineInfo.length; i++) {
+            LineData data = getLineData(i);
+            /* one entry per sequence */
+            for (int s = 0; s < data.sequenceCount; s++) {
+                sourceFiles.add(data.sourceFiles[0]);
+            }
         }
-
-        return sourceFilesArray;
+        return sourceFiles.toArray(new String[sourceFiles.size()]);
     }
 
     public static void main(String[] args) throws Exception {
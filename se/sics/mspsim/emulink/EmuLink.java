@@ -46,7 +46,15 @@ import java.io.PrintWriter;
 import java.io.Reader;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import se.sics.json.JSONArray;
 import se.sics.json.JSONObject;
@@ -64,9 +72,39 @@ public class EmuLink {
     private boolean isConnected = false;
     private long globalEtime = 0L;
     private long globalLastTime = 0L;
+    private boolean isQuiet = false;
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    private ExecutorService executor;
 
     private final Hashtable<String, GenericNode> nodes = new Hashtable<String, GenericNode>();
 
+    public boolean isQuiet() {
+        return isQuiet;
+    }
+
+    /**
+     * Selects if one aggregated timing line should be printed per time
+     * step instead of one line per node.
+     */
+    public void setQuiet(boolean isQuiet) {
+        this.isQuiet = isQuiet;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Sets the number of worker threads used to step the nodes of a time
+     * step in parallel. Must be set before the first time step.
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("at least one thread is needed");
+        }
+        this.threadCount = threadCount;
+    }
+
     public boolean isConnected() {
         return !isConnected;
     }
@@ -178,33 +216,20 @@ public class EmuLink {
                 } else {
                     // Execute for specified time
                     globalEtime += etime;
+                    ArrayList<GenericNode> stepNodes = new ArrayList<GenericNode>();
                     if (nodes == null) {
-                        for (GenericNode node : this.nodes.values()) {
-                            long t0 = System.nanoTime(), t1;
-                            node.getCPU().stepMicros(globalLastTime, etime);
-                            t1 = System.nanoTime();
-                            System.out.println("EmuLink: node " + node.getID()
-                                    + " is now at $" + Utils.hex(node.getCPU().getRegister(MSP430Constants.PC), 4)
-                                    + " " + (long)(node.getCPU().getTimeMillis() + 0.5) + "/" + (globalEtime / 1000)
-                                    + " (elapsed " + (t1 - t0) + " ns)");
-                        }
-
+                        stepNodes.addAll(this.nodes.values());
                     } else {
                         for(String id : nodes) {
                             GenericNode node = this.nodes.get(id);
                             if (node != null) {
-                                long t0 = System.nanoTime(), t1;
-                                node.getCPU().stepMicros(globalLastTime, etime);
-                                t1 = System.nanoTime();
-                                System.out.println("EmuLink: node " + node.getID()
-                                        + " is now at $" + Utils.hex(node.getCPU().getRegister(MSP430Constants.PC), 4)
-                                        + " " + (long)(node.getCPU().getTimeMillis() + 0.5) + "/" + (globalEtime / 1000)
-                                        + " (elapsed " + (t1 - t0) + " ns)");
+                                stepNodes.add(node);
                             } else {
                                 System.err.println("EmuLink: could not find node '" + id + "'");
                             }
                         }
                     }
+                    stepNodes(stepNodes, globalLastTime, etime);
                     globalLastTime = etime;
                 }
             } else if ("stop".equals(command)) {
@@ -286,6 +311,97 @@ public class EmuLink {
         return true;
     }
 
+    /*
+     * Steps all nodes of one time step. The nodes only interact through
+     * the simulator between time steps so they are stepped concurrently
+     * and this method returns when all nodes are done.
+     */
+    private void stepNodes(List<GenericNode> stepNodes, final long jumpMicros, final long executeMicros) {
+        int count = stepNodes.size();
+        long[] elapsed = new long[count];
+        long t0 = System.nanoTime();
+        if (count == 1 || threadCount == 1) {
+            for (int i = 0; i < count; i++) {
+                elapsed[i] = stepNode(stepNodes.get(i), jumpMicros, executeMicros);
+            }
+        } else {
+            ArrayList<Callable<Long>> tasks = new ArrayList<Callable<Long>>(count);
+            for (final GenericNode node : stepNodes) {
+                tasks.add(new Callable<Long>() {
+                    public Long call() {
+                        return stepNode(node, jumpMicros, executeMicros);
+                    }
+                });
+            }
+            RuntimeException failure = null;
+            try {
+                /* invokeAll waits for all nodes to finish the time step */
+                List<Future<Long>> results = getExecutor().invokeAll(tasks);
+                for (int i = 0; i < count; i++) {
+                    try {
+                        elapsed[i] = results.get(i).get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Error) {
+                            throw (Error) cause;
+                        }
+                        /* report the first failure as a sequential step would */
+                        if (failure == null) {
+                            failure = (RuntimeException) cause;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("EmuLink: interrupted while stepping nodes");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        long t1 = System.nanoTime();
+
+        if (isQuiet) {
+            long total = 0, max = 0;
+            for (long e : elapsed) {
+                total += e;
+                if (e > max) {
+                    max = e;
+                }
+            }
+            System.out.println("EmuLink: stepped " + count + " nodes to " + (globalEtime / 1000)
+                    + " (elapsed " + (t1 - t0) + " ns, node total " + total + " ns, node max " + max + " ns)");
+        } else {
+            for (int i = 0; i < count; i++) {
+                GenericNode node = stepNodes.get(i);
+                System.out.println("EmuLink: node " + node.getID()
+                        + " is now at $" + Utils.hex(node.getCPU().getRegister(MSP430Constants.PC), 4)
+                        + " " + (long)(node.getCPU().getTimeMillis() + 0.5) + "/" + (globalEtime / 1000)
+                        + " (elapsed " + elapsed[i] + " ns)");
+            }
+        }
+    }
+
+    private long stepNode(GenericNode node, long jumpMicros, long executeMicros) {
+        long t0 = System.nanoTime();
+        node.getCPU().stepMicros(jumpMicros, executeMicros);
+        return System.nanoTime() - t0;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                private int nr = 0;
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "EmuLink worker " + (++nr));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
     protected void sendToSimulator(String message) {
         if (out != null) {
             out.write(message);
@@ -355,8 +471,26 @@ public class EmuLink {
         }
     }
 
+    private static boolean isThreadCount(String value) {
+        try {
+            return Integer.parseInt(value) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
     public static void main(String[] args) {
         EmuLink el = new EmuLink();
+        for (String arg : args) {
+            if ("-quiet".equals(arg)) {
+                el.setQuiet(true);
+            } else if (arg.startsWith("-threads=") && isThreadCount(arg.substring(9))) {
+                el.setThreadCount(Integer.parseInt(arg.substring(9)));
+            } else {
+                System.err.println("Usage: EmuLink [-quiet] [-threads=N]");
+                System.exit(1);
+            }
+        }
         el.run();
     }
 
@@ -34,14 +34,24 @@
  */
 
 package se.sics.mspsim.platform;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 import javax.swing.JFrame;
+import se.sics.mspsim.chip.CopyOnWriteStorage;
+import se.sics.mspsim.chip.ExternalFlash;
+import se.sics.mspsim.chip.Storage;
 import se.sics.mspsim.cli.CommandHandler;
 import se.sics.mspsim.cli.DebugCommands;
 import se.sics.mspsim.cli.FileCommands;
@@ -55,10 +65,15 @@ import se.sics.mspsim.core.EmulationException;
 import se.sics.mspsim.core.MSP430;
 import se.sics.mspsim.core.MSP430Config;
 import se.sics.mspsim.core.MSP430Constants;
+import se.sics.mspsim.core.SnapshotInput;
+import se.sics.mspsim.core.SnapshotOutput;
+import se.sics.mspsim.core.Snapshotable;
+import se.sics.mspsim.core.USARTSource;
 import se.sics.mspsim.extutil.highlight.HighlightSourceViewer;
 import se.sics.mspsim.ui.ConsoleUI;
 import se.sics.mspsim.ui.ControlUI;
 import se.sics.mspsim.ui.JFrameWindowManager;
+import se.sics.mspsim.ui.SerialMon;
 import se.sics.mspsim.ui.StackUI;
 import se.sics.mspsim.ui.WindowUtils;
 import se.sics.mspsim.util.ArgumentManager;
@@ -69,9 +84,10 @@ import se.sics.mspsim.util.IHexReader;
 import se.sics.mspsim.util.MapTable;
 import se.sics.mspsim.util.OperatingModeStatistics;
 import se.sics.mspsim.util.PluginRepository;
+import se.sics.mspsim.util.SerialFileOutput;
 import se.sics.mspsim.util.StatCommands;
 
-public abstract class GenericNode extends Chip implements Runnable {
+public abstract class GenericNode extends Chip implements Runnable, Snapshotable {
 
   private static final String PROMPT = "MSPSim>";
 
@@ -100,6 +116,23 @@ public abstract class GenericNode extends Chip implements Runnable {
 
   public abstract void setupNode();
 
+  /**
+   * Adds a serial monitor window for the specified serial port unless
+   * running without GUI. If the property "serialout" is set, the output
+   * from the port is also written to that file ("-" for standard output).
+   */
+  protected void setupSerialMon(USARTSource usart, String title) {
+    String serialOut = config.getProperty("serialout");
+    if (serialOut != null) {
+      SerialFileOutput output = new SerialFileOutput(usart, serialOut);
+      registry.registerComponent("serialout", output);
+      output.start();
+    }
+    if (!config.getPropertyAsBoolean("nogui", true)) {
+      registry.registerComponent("serialgui", new SerialMon(usart, title));
+    }
+  }
+
   public void setCommandHandler(CommandHandler handler) {
     registry.registerComponent("commandHandler", handler);
   }
@@ -138,9 +171,10 @@ public abstract class GenericNode extends Chip implements Runnable {
 
     if (firmwareFile.endsWith("ihex")) {
       // IHEX Reading
-      int[] memory = cpu.memory;
+      byte[] memory = cpu.memory;
       IHexReader reader = new IHexReader();
       reader.readFile(memory, firmwareFile);
+      cpu.invalidateInstructionCache();
     } else {
       loadFirmware(firmwareFile);
     }
@@ -296,11 +330,131 @@ public abstract class GenericNode extends Chip implements Runnable {
     }
   }
 
+  /**
+   * Saves the current state of the node to the specified file. The node
+   * must be stopped.
+   */
+  public void saveSnapshot(String fileName) throws IOException {
+    if (cpu.isRunning()) {
+      throw new IllegalStateException("can not save snapshot while the CPU is running");
+    }
+    OutputStream output = new BufferedOutputStream(new FileOutputStream(fileName));
+    try {
+      cpu.saveSnapshot(output);
+    } finally {
+      output.close();
+    }
+  }
+
+  /**
+   * Restores a state previously saved with saveSnapshot. The node must be
+   * stopped and have the same firmware and setup as the saved node.
+   */
+  public void loadSnapshot(String fileName) throws IOException {
+    if (cpu.isRunning()) {
+      throw new IllegalStateException("can not load snapshot while the CPU is running");
+    }
+    InputStream input = new BufferedInputStream(new FileInputStream(fileName));
+    try {
+      cpu.loadSnapshot(input);
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Creates the specified number of new nodes of the same type that
+   * continue from the current state of this node. The forked nodes share
+   * the loaded firmware and its debug information with this node, are
+   * set up without GUI and console, and are independent of each other
+   * once created so they can be run in separate threads. The state is
+   * taken from one uncompressed snapshot that is restored into every
+   * forked node. The forked nodes keep their flash, internal and
+   * external, in memory and do not write serial output files since
+   * those files belong to this node. The external flash is shared by
+   * the forked nodes and a page is copied when a node first writes it.
+   * RAM and the internal flash are part of the node memory and every
+   * forked node gets its own copy.
+   * The node must be stopped and have a public no-argument constructor.
+   */
+  public GenericNode[] fork(int count) throws IOException {
+    if (cpu.isRunning()) {
+      throw new IllegalStateException("can not fork while the CPU is running");
+    }
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    cpu.saveSnapshot(snapshot, false);
+    byte[] data = snapshot.toByteArray();
+    byte[] flashContents = getExternalFlashContents();
+
+    GenericNode[] nodes = new GenericNode[count];
+    for (int i = 0; i < count; i++) {
+      GenericNode node;
+      try {
+        node = getClass().getDeclaredConstructor().newInstance();
+      } catch (Exception e) {
+        throw new IllegalStateException("can not fork " + getClass().getName(), e);
+      }
+      if (elf != null) {
+        node.loadFirmware(elf);
+      }
+      ConfigManager nodeConfig = new ConfigManager(config) {
+        public String getProperty(String name, String defaultValue) {
+          if ("flashfile".equals(name) || "serialout".equals(name)) {
+            return defaultValue;
+          }
+          return super.getProperty(name, defaultValue);
+        }
+      };
+      nodeConfig.setProperty("nogui", "true");
+      node.setCommandHandler(new CommandHandler(System.out, System.err));
+      node.setup(nodeConfig);
+      node.cpu.setFlashFile("");
+      node.cpu.loadSnapshot(new ByteArrayInputStream(data), false);
+      if (flashContents != null) {
+        node.cpu.getChip(ExternalFlash.class).setStorage(new CopyOnWriteStorage(flashContents));
+      }
+      nodes[i] = node;
+    }
+    return nodes;
+  }
+
+  private byte[] getExternalFlashContents() throws IOException {
+    ExternalFlash flash = cpu.getChip(ExternalFlash.class);
+    if (flash == null) {
+      return null;
+    }
+    byte[] contents = new byte[flash.getSize()];
+    Storage storage = flash.getStorage();
+    for (int n = 0; n < contents.length; ) {
+      int len = storage.read(n, contents, n, contents.length - n);
+      if (len <= 0) {
+        /* not written yet */
+        break;
+      }
+      n += len;
+    }
+    return contents;
+  }
+
+  /**
+   * Releases the resources that are shared with other nodes, such as the
+   * printing of emulation warnings, and saves and releases the flash
+   * file. Call this when the node is dropped, for example a forked node
+   * that is no longer needed. The node must be stopped.
+   */
+  public void close() {
+    if (cpu.isRunning()) {
+      throw new IllegalStateException("can not close while the CPU is running");
+    }
+    cpu.getLogger().close();
+    cpu.setFlashFile("");
+  }
+
   public ELF loadFirmware(URL url) throws IOException {
       return loadFirmware(url, cpu.memory);
   }
 
-  @Deprecated public ELF loadFirmware(URL url, int[] memory) throws IOException {
+  @Deprecated public ELF loadFirmware(URL url, byte[] memory) throws IOException {
     DataInputStream inputStream = new DataInputStream(url.openStream());
     ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
     byte[] firmwareData = new byte[2048];
@@ -309,16 +463,14 @@ public abstract class GenericNode extends Chip implements Runnable {
       byteStream.write(firmwareData, 0, read);
     }
     inputStream.close();
-    ELF elf = new ELF(byteStream.toByteArray());
-    elf.readAll();
-    return loadFirmware(elf, memory);
+    return loadFirmware(ELF.readELF(byteStream.toByteArray()), memory);
   }
 
   public ELF loadFirmware(String name) throws IOException {
       return loadFirmware(name, cpu.memory);
   }
 
-  @Deprecated public ELF loadFirmware(String name, int[] memory) throws IOException {
+  @Deprecated public ELF loadFirmware(String name, byte[] memory) throws IOException {
     return loadFirmware(ELF.readELF(firmwareFile = name), memory);
   }
 
@@ -326,12 +478,13 @@ public abstract class GenericNode extends Chip implements Runnable {
       return loadFirmware(elf, cpu.memory);
   }
 
-  @Deprecated public ELF loadFirmware(ELF elf, int[] memory) {
+  @Deprecated public ELF loadFirmware(ELF elf, byte[] memory) {
     if (cpu.isRunning()) {
         stop();
     }
     this.elf = elf;
     elf.loadPrograms(memory);
+    cpu.invalidateInstructionCache();
     MapTable map = elf.getMap();
     cpu.getDisAsm().setMap(map);
     cpu.setMap(map);
@@ -343,4 +496,13 @@ public abstract class GenericNode extends Chip implements Runnable {
   public int getConfiguration(int param) {
       return 0;
   }
+
+  /* Nodes that keep more state than their mode override these */
+  public void saveState(SnapshotOutput out) throws IOException {
+    saveChipState(out);
+  }
+
+  public void loadState(SnapshotInput in) throws IOException {
+    loadChipState(in);
+  }
 }
@@ -42,11 +42,12 @@ import se.sics.mspsim.config.MSP430f5438Config;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.MSP430;
 import se.sics.mspsim.core.PortListener;
+import se.sics.mspsim.core.SnapshotInput;
+import se.sics.mspsim.core.SnapshotOutput;
 import se.sics.mspsim.core.USART;
 import se.sics.mspsim.extutil.jfreechart.DataChart;
 import se.sics.mspsim.extutil.jfreechart.DataSourceSampler;
 import se.sics.mspsim.platform.GenericNode;
-import se.sics.mspsim.ui.SerialMon;
 import se.sics.mspsim.util.ArgumentManager;
 import se.sics.mspsim.util.OperatingModeStatistics;
 import se.sics.mspsim.chip.HD66753;
@@ -134,15 +135,15 @@ public class Exp5438Node extends GenericNode implements PortListener,HD66753List
 			stats.addMonitor(this);
 			stats.addMonitor(cpu);
 		}
+		// Add some windows for listening to serial output
+		USART usart = cpu.getIOUnit(USART.class, "USART1");
+		if (usart != null) {
+			setupSerialMon(usart, "USART1 Port Output");
+		}
+
 		if (!config.getPropertyAsBoolean("nogui", true)) {
 			setupGUI();
 
-			// Add some windows for listening to serial output
-			USART usart = cpu.getIOUnit(USART.class, "USART1");
-			if (usart != null) {
-				SerialMon serial = new SerialMon(usart, "USART1 Port Output");
-				registry.registerComponent("serialgui", serial);
-			}
 			if (stats != null) {
 				DataChart dataChart = new DataChart(registry, "Duty Cycle","Duty Cycle");
 				registry.registerComponent("dutychart", dataChart);
@@ -159,6 +160,20 @@ public class Exp5438Node extends GenericNode implements PortListener,HD66753List
 		return MODE_MAX;
 	}
 
+	@Override
+	public void saveState(SnapshotOutput out) throws IOException {
+		super.saveState(out);
+		out.writeBoolean(LEDR);
+		out.writeBoolean(LEDO);
+	}
+
+	@Override
+	public void loadState(SnapshotInput in) throws IOException {
+		super.loadState(in);
+		LEDR = in.readBoolean();
+		LEDO = in.readBoolean();
+	}
+
 	public static void main(String[] args) throws IOException {
 		Exp5438Node node = new Exp5438Node();
 		ArgumentManager config = new ArgumentManager();
@@ -51,7 +51,6 @@ import se.sics.mspsim.core.USART;
 import se.sics.mspsim.extutil.jfreechart.DataChart;
 import se.sics.mspsim.extutil.jfreechart.DataSourceSampler;
 import se.sics.mspsim.platform.GenericNode;
-import se.sics.mspsim.ui.SerialMon;
 import se.sics.mspsim.util.ArgumentManager;
 import se.sics.mspsim.util.OperatingModeStatistics;
 
@@ -177,18 +176,17 @@ public class ESBNode extends GenericNode implements PortListener {
       stats.addMonitor(cpu);
     }
     
+    // Add some windows for listening to serial output
+    USART usart = cpu.getIOUnit(USART.class, "USART1");
+    if (usart != null) {
+      setupSerialMon(usart, "USART1 Port Output");
+    }
+
     if (!config.getPropertyAsBoolean("nogui", true)) {
       setupGUI();
 
       beeper.setSoundEnabled(true);
 
-      // Add some windows for listening to serial output
-      USART usart = cpu.getIOUnit(USART.class, "USART1");
-      if (usart != null) {
-          SerialMon serial = new SerialMon(usart, "USART1 Port Output");
-          registry.registerComponent("serialgui", serial);
-      }
-
       if (stats != null) {
         // A HACK for some "graphs"!!!
         DataChart dataChart =  new DataChart(registry, "Duty Cycle", "Duty Cycle");
@@ -41,10 +41,10 @@
 
 package se.sics.mspsim.platform.jcreate;
 import java.io.IOException;
-import se.sics.mspsim.chip.FileStorage;
 import se.sics.mspsim.chip.Leds;
 import se.sics.mspsim.chip.M25P80;
 import se.sics.mspsim.chip.MMA7260QT;
+import se.sics.mspsim.chip.MappedFileStorage;
 import se.sics.mspsim.core.ADC12;
 import se.sics.mspsim.core.ADCInput;
 import se.sics.mspsim.core.IOPort;
@@ -135,7 +135,7 @@ public class JCreateNode extends CC2420Node {
             setFlash(new M25P80(cpu));
         }
         if (flashFile != null) {
-            getFlash().setStorage(new FileStorage(flashFile));
+            getFlash().setStorage(new MappedFileStorage(flashFile));
         }
     }
 
@@ -12,7 +12,6 @@ import se.sics.mspsim.core.USARTSource;
 import se.sics.mspsim.extutil.jfreechart.DataChart;
 import se.sics.mspsim.extutil.jfreechart.DataSourceSampler;
 import se.sics.mspsim.platform.GenericNode;
-import se.sics.mspsim.ui.SerialMon;
 import se.sics.mspsim.util.ELF;
 import se.sics.mspsim.util.NetworkConnection;
 import se.sics.mspsim.util.OperatingModeStatistics;
@@ -124,15 +123,15 @@ public abstract class CC2420Node extends GenericNode implements PortListener, US
             stats.addMonitor(radio);
             stats.addMonitor(cpu);
         }
+        // Add some windows for listening to serial output
+        USART usart = cpu.getIOUnit(USART.class, "USART1");
+        if (usart != null) {
+            setupSerialMon(usart, "USART1 Port Output");
+        }
+
         if (!config.getPropertyAsBoolean("nogui", true)) {
             setupGUI();
 
-            // Add some windows for listening to serial output
-            USART usart = cpu.getIOUnit(USART.class, "USART1");
-            if (usart != null) {
-                SerialMon serial = new SerialMon(usart, "USART1 Port Output");
-                registry.registerComponent("serialgui", serial);
-            }
             if (stats != null) {
                 // A HACK for some "graphs"!!!
                 DataChart dataChart =  new DataChart(registry, "Duty Cycle", "Duty Cycle");
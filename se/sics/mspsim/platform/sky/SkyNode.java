@@ -41,8 +41,8 @@
 
 package se.sics.mspsim.platform.sky;
 import java.io.IOException;
-import se.sics.mspsim.chip.FileStorage;
 import se.sics.mspsim.chip.M25P80;
+import se.sics.mspsim.chip.MappedFileStorage;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.USARTSource;
 import se.sics.mspsim.util.ArgumentManager;
@@ -92,7 +92,7 @@ public class SkyNode extends MoteIVNode {
         setFlash(new M25P80(cpu));
     }
     if (flashFile != null) {
-        getFlash().setStorage(new FileStorage(flashFile));
+        getFlash().setStorage(new MappedFileStorage(flashFile));
     }
   }
 
@@ -10,7 +10,6 @@ import se.sics.mspsim.core.PortListener;
 import se.sics.mspsim.core.USARTListener;
 import se.sics.mspsim.core.USARTSource;
 import se.sics.mspsim.platform.GenericNode;
-import se.sics.mspsim.ui.SerialMon;
 import se.sics.mspsim.util.ArgumentManager;
 
 public class Exp5438Node extends GenericNode implements PortListener, USARTListener {
@@ -100,13 +99,10 @@ public class Exp5438Node extends GenericNode implements PortListener, USARTListe
     public void setupNode() {
         setupNodePorts();
 
-        if (!config.getPropertyAsBoolean("nogui", true)) {
-            // Add some windows for listening to serial output
-            IOUnit usart = cpu.getIOUnit("USCI A1");
-            if (usart instanceof USARTSource) {
-            	SerialMon serial = new SerialMon((USARTSource)usart, "USCI A1 Port Output");
-            	registry.registerComponent("serialgui", serial);
-            }
+        // Add some windows for listening to serial output
+        IOUnit usart = cpu.getIOUnit("USCI A1");
+        if (usart instanceof USARTSource) {
+            setupSerialMon((USARTSource)usart, "USCI A1 Port Output");
         }
     }
 
@@ -10,7 +10,6 @@ import se.sics.mspsim.core.PortListener;
 import se.sics.mspsim.core.USARTListener;
 import se.sics.mspsim.core.USARTSource;
 import se.sics.mspsim.platform.GenericNode;
-import se.sics.mspsim.ui.SerialMon;
 import se.sics.mspsim.util.ArgumentManager;
 
 public class TyndallNode extends GenericNode implements PortListener, USARTListener {
@@ -144,15 +143,14 @@ public class TyndallNode extends GenericNode implements PortListener, USARTListe
 
         setupNodePorts();
 
+        // Add some windows for listening to serial output
+        IOUnit usart = cpu.getIOUnit("USCI A0");
+        if (usart instanceof USARTSource) {
+            setupSerialMon((USARTSource)usart, "USCI A0 Port Output");
+        }
+
         if (!config.getPropertyAsBoolean("nogui", true)) {
             setupGUI();
-
-            // Add some windows for listening to serial output
-            IOUnit usart = cpu.getIOUnit("USCI A0");
-            if (usart instanceof USARTSource) {
-                SerialMon serial = new SerialMon((USARTSource)usart, "USCI A0 Port Output");
-                registry.registerComponent("serialgui", serial);
-            }
         }
     }
 
@@ -48,7 +48,6 @@ import se.sics.mspsim.core.PortListener;
 import se.sics.mspsim.core.USARTListener;
 import se.sics.mspsim.core.USARTSource;
 import se.sics.mspsim.platform.GenericNode;
-import se.sics.mspsim.ui.SerialMon;
 import se.sics.mspsim.util.ArgumentManager;
 
 public class WismoteNode extends GenericNode implements PortListener, USARTListener {
@@ -210,15 +209,14 @@ public class WismoteNode extends GenericNode implements PortListener, USARTListe
 
         setupNodePorts();
 
+        // Add some windows for listening to serial output
+        IOUnit usart = cpu.getIOUnit("USCI A1");
+        if (usart instanceof USARTSource) {
+            setupSerialMon((USARTSource)usart, "USCI A1 Port Output");
+        }
+
         if (!config.getPropertyAsBoolean("nogui", true)) {
             setupGUI();
-
-            // Add some windows for listening to serial output
-            IOUnit usart = cpu.getIOUnit("USCI A1");
-            if (usart instanceof USARTSource) {
-                SerialMon serial = new SerialMon((USARTSource)usart, "USCI A1 Port Output");
-                registry.registerComponent("serialgui", serial);
-            }
         }
     }
 
@@ -3,19 +3,20 @@ package se.sics.mspsim.platform.z1;
 import java.io.IOException;
 import se.sics.mspsim.chip.Button;
 import se.sics.mspsim.chip.CC2420;
-import se.sics.mspsim.chip.FileStorage;
 import se.sics.mspsim.chip.Leds;
 import se.sics.mspsim.chip.M25P80;
+import se.sics.mspsim.chip.MappedFileStorage;
 import se.sics.mspsim.config.MSP430f2617Config;
 import se.sics.mspsim.core.EmulationException;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.IOUnit;
 import se.sics.mspsim.core.PortListener;
+import se.sics.mspsim.core.SnapshotInput;
+import se.sics.mspsim.core.SnapshotOutput;
 import se.sics.mspsim.core.USARTListener;
 import se.sics.mspsim.core.USARTSource;
 import se.sics.mspsim.core.USCI;
 import se.sics.mspsim.platform.GenericNode;
-import se.sics.mspsim.ui.SerialMon;
 import se.sics.mspsim.util.ArgumentManager;
 
 public class Z1Node extends GenericNode implements PortListener, USARTListener {
@@ -183,7 +184,7 @@ public class Z1Node extends GenericNode implements PortListener, USARTListener {
             setFlash(new M25P80(cpu));
         }
         if (flashFile != null) {
-            getFlash().setStorage(new FileStorage(flashFile));
+            getFlash().setStorage(new MappedFileStorage(flashFile));
         }
     }
 
@@ -207,15 +208,14 @@ public class Z1Node extends GenericNode implements PortListener, USARTListener {
 
         setupNodePorts();
 
+        // Add some windows for listening to serial output
+        IOUnit usart = cpu.getIOUnit("USCI A0");
+        if (usart instanceof USARTSource) {
+            setupSerialMon((USARTSource)usart, "USCI A0 Port Output");
+        }
+
         if (!config.getPropertyAsBoolean("nogui", true)) {
             setupGUI();
-
-            // Add some windows for listening to serial output
-            IOUnit usart = cpu.getIOUnit("USCI A0");
-            if (usart instanceof USARTSource) {
-                SerialMon serial = new SerialMon((USARTSource)usart, "USCI A0 Port Output");
-                registry.registerComponent("serialgui", serial);
-            }
         }
 
 
@@ -232,6 +232,24 @@ public class Z1Node extends GenericNode implements PortListener, USARTListener {
         return MODE_MAX;
     }
 
+    @Override
+    public void saveState(SnapshotOutput out) throws IOException {
+        super.saveState(out);
+        out.writeBoolean(redLed);
+        out.writeBoolean(blueLed);
+        out.writeBoolean(greenLed);
+        out.writeInt(lastPort5);
+    }
+
+    @Override
+    public void loadState(SnapshotInput in) throws IOException {
+        super.loadState(in);
+        redLed = in.readBoolean();
+        blueLed = in.readBoolean();
+        greenLed = in.readBoolean();
+        lastPort5 = in.readInt();
+    }
+
     public static void main(String[] args) throws IOException {
         Z1Node node = new Z1Node();
         ArgumentManager config = new ArgumentManager();
@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) 2012, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * -----------------------------------------------------------------
+ *
+ * CoverageReport
+ *
+ * Summarizes the execution counters per function using the map table
+ * and writes line coverage in lcov format using the debug line info of
+ * the firmware. The counters are copied when the report is created so
+ * that the emulation can keep running while the report is written.
+ */
+
+package se.sics.mspsim.profiler;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import se.sics.mspsim.core.ExecutionCounter;
+import se.sics.mspsim.util.DebugInfo;
+import se.sics.mspsim.util.ELF;
+import se.sics.mspsim.util.MapEntry;
+import se.sics.mspsim.util.MapTable;
+
+public class CoverageReport {
+
+  private final ExecutionCounter counter;
+  private final ELF elf;
+
+  /* per function statistics sorted by address */
+  private final MapEntry[] functions;
+  private final int[] ends;
+  private final int[] entryCounts;
+  private final long[] instructionCounts;
+
+  public CoverageReport(ExecutionCounter counter, MapTable map, ELF elf) {
+    this.counter = counter.copy();
+    this.elf = elf;
+
+    ArrayList<MapEntry> list = new ArrayList<MapEntry>();
+    for (MapEntry entry : map.getAllEntries()) {
+      if (entry.getType() == MapEntry.TYPE.function && entry.getAddress() > 0) {
+        list.add(entry);
+      }
+    }
+    functions = list.toArray(new MapEntry[list.size()]);
+    Arrays.sort(functions, new Comparator<MapEntry>() {
+      public int compare(MapEntry o1, MapEntry o2) {
+        return o1.getAddress() < o2.getAddress() ? -1 : (o1.getAddress() == o2.getAddress() ? 0 : 1);
+      }
+    });
+
+    ends = new int[functions.length];
+    entryCounts = new int[functions.length];
+    instructionCounts = new long[functions.length];
+    for (int i = 0; i < functions.length; i++) {
+      int start = functions[i].getAddress();
+      /* the function covers the addresses that the map attributes to it
+         or to an alias starting at the same address */
+      int end = start + 2;
+      for (MapEntry owner = map.getContainingEntry(end);
+           owner != null && owner.getAddress() == start
+           && owner.getType() == MapEntry.TYPE.function;
+           owner = map.getContainingEntry(end)) {
+        end += 2;
+      }
+      ends[i] = end;
+      entryCounts[i] = this.counter.getCount(start);
+      long count = 0;
+      for (int a = start; a < ends[i]; a += 2) {
+        count += this.counter.getCount(a);
+      }
+      instructionCounts[i] = count;
+    }
+  }
+
+  /**
+   * Prints the number of times each executed function has been entered
+   * and the number of instructions executed in it, hottest first.
+   */
+  public void printFunctions(PrintStream out) {
+    Integer[] order = new Integer[functions.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer o1, Integer o2) {
+        long c1 = instructionCounts[o1];
+        long c2 = instructionCounts[o2];
+        return c1 > c2 ? -1 : (c1 == c2 ? 0 : 1);
+      }
+    });
+    int executed = 0;
+    out.printf("%-40s %10s %14s\n", "Function", "Entries", "Instructions");
+    for (int i : order) {
+      if (instructionCounts[i] > 0) {
+        out.printf("%-40s %10d %14d\n", functions[i].getName(), entryCounts[i], instructionCounts[i]);
+        executed++;
+      }
+    }
+    out.println("Executed " + executed + " of " + functions.length + " functions");
+  }
+
+  private static class SourceFile {
+    /* highest count of the instructions on each line */
+    final TreeMap<Integer,Long> lines = new TreeMap<Integer,Long>();
+    final ArrayList<String> functionNames = new ArrayList<String>();
+    final ArrayList<Integer> functionLines = new ArrayList<Integer>();
+    final ArrayList<Integer> functionCounts = new ArrayList<Integer>();
+  }
+
+  private static String getSourceName(DebugInfo info) {
+    String path = info.getPath();
+    String file = info.getFile();
+    if (path == null || file.startsWith("/")) {
+      return file;
+    }
+    return new File(path, file).getPath();
+  }
+
+  /**
+   * Writes the line and function coverage of all functions in lcov
+   * tracefile format. Requires debug line info in the firmware.
+   */
+  public void writeLcov(PrintStream out, String testName) {
+    Map<String,SourceFile> files = new TreeMap<String,SourceFile>();
+    for (int i = 0; i < functions.length; i++) {
+      boolean first = true;
+      for (int a = functions[i].getAddress(); a < ends[i]; a += 2) {
+        DebugInfo info = elf == null ? null : elf.getDebugInfo(a);
+        if (info == null || info.getLine() <= 0 || info.getFile() == null) {
+          continue;
+        }
+        String name = getSourceName(info);
+        SourceFile sf = files.get(name);
+        if (sf == null) {
+          sf = new SourceFile();
+          files.put(name, sf);
+        }
+        if (first) {
+          /* the function starts at its first line */
+          first = false;
+          sf.functionNames.add(functions[i].getName());
+          sf.functionLines.add(info.getLine());
+          sf.functionCounts.add(entryCounts[i]);
+        }
+        long count = counter.getCount(a);
+        Long old = sf.lines.get(info.getLine());
+        if (old == null || old < count) {
+          sf.lines.put(info.getLine(), count);
+        }
+      }
+    }
+
+    for (Map.Entry<String,SourceFile> e : files.entrySet()) {
+      SourceFile sf = e.getValue();
+      out.println("TN:" + (testName == null ? "" : testName));
+      out.println("SF:" + e.getKey());
+      int hit = 0;
+      for (int i = 0; i < sf.functionNames.size(); i++) {
+        out.println("FN:" + sf.functionLines.get(i) + ',' + sf.functionNames.get(i));
+      }
+      for (int i = 0; i < sf.functionNames.size(); i++) {
+        out.println("FNDA:" + sf.functionCounts.get(i) + ',' + sf.functionNames.get(i));
+        if (sf.functionCounts.get(i) > 0) {
+          hit++;
+        }
+      }
+      out.println("FNF:" + sf.functionNames.size());
+      out.println("FNH:" + hit);
+      hit = 0;
+      for (Map.Entry<Integer,Long> line : sf.lines.entrySet()) {
+        out.println("DA:" + line.getKey() + ',' + line.getValue());
+        if (line.getValue() > 0) {
+          hit++;
+        }
+      }
+      out.println("LF:" + sf.lines.size());
+      out.println("LH:" + hit);
+      out.println("end_of_record");
+    }
+  }
+
+}
@@ -44,8 +44,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
-import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.regex.Pattern;
 
@@ -55,7 +53,6 @@ import se.sics.mspsim.core.EventSource;
 import se.sics.mspsim.core.MSP430Core;
 import se.sics.mspsim.core.Profiler;
 import se.sics.mspsim.profiler.CallEntry;
-import se.sics.mspsim.profiler.CallEntry.CallCounter;
 import se.sics.mspsim.util.ArrayUtils;
 import se.sics.mspsim.util.MapEntry;
 import se.sics.mspsim.util.StackMonitor;
@@ -63,7 +60,17 @@ import se.sics.mspsim.util.Utils;
 
 public class SimpleProfiler implements Profiler, EventListener {
  
-  private HashMap<MapEntry,CallEntry> profileData;
+  /* statistics per function indexed by the map entry id */
+  private MapEntry[] functions = new MapEntry[0];
+  private long[] functionCycles = new long[0];
+  private long[] functionExclusiveCycles = new long[0];
+  private int[] functionCalls = new int[0];
+
+  /* open addressed map from (callee id << 32 | caller id) to number of calls */
+  private long[] callerKeys;
+  private int[] callerCounts;
+  private int callerCount;
+
   private HashMap<String, TagEntry> tagProfiles;
   private HashMap<String, TagEntry> startTags;
   private HashMap<String, TagEntry> endTags;
@@ -88,7 +95,9 @@ public class SimpleProfiler implements Profiler, EventListener {
   private StackMonitor stackMonitor;
   
   public SimpleProfiler() {
-    profileData = new HashMap<MapEntry, CallEntry>();
+    callerKeys = new long[64];
+    Arrays.fill(callerKeys, -1);
+    callerCounts = new int[64];
     tagProfiles = new HashMap<String, TagEntry>();
     startTags = new HashMap<String, TagEntry>();
     endTags = new HashMap<String, TagEntry>();
@@ -143,6 +152,7 @@ public class SimpleProfiler implements Profiler, EventListener {
 
     CallEntry ce = callStack[cSP++];
     ce.function = entry;
+    ce.functionId = getFunctionId(entry);
     ce.calls = 0;
     ce.cycles = cycles;
     ce.exclusiveCycles = cycles;
@@ -192,21 +202,15 @@ public class SimpleProfiler implements Profiler, EventListener {
     int maxUsage = 0;
     
     if (cspEntry.calls >= 0) {
-      CallEntry ce = profileData.get(fkn);
-      if (ce == null) {
-        profileData.put(fkn, ce = new CallEntry());
-        ce.function = fkn;
+      int id = cspEntry.functionId;
+      if (id >= 0) {
+        functionCycles[id] += elapsed;
+        functionExclusiveCycles[id] += exElapsed;
+        functionCalls[id]++;
       }
-      ce.cycles += elapsed;
-      ce.exclusiveCycles += exElapsed;
-      ce.calls++;
       
       if (stackMonitor != null) {
           maxUsage = stackMonitor.getProfStackMax() - cspEntry.stackStart;
-          ce.stackStart = cspEntry.stackStart;
-          if (maxUsage > ce.currentStackMax) {
-              ce.currentStackMax = maxUsage;
-          }
           if (cSP != 0) {
               /* put the max for previous function back into the max profiler */ 
               stackMonitor.setProfStackMax(callStack[cSP-1].currentStackMax);
@@ -215,15 +219,11 @@ public class SimpleProfiler implements Profiler, EventListener {
 
       
       
-      if (cSP != 0) {
-        MapEntry caller = callStack[cSP-1].function;
-        HashMap<MapEntry,CallCounter> callers = ce.callers;
-        CallCounter numCalls = callers.get(caller);
-        if (numCalls == null) {
-          numCalls = new CallCounter();
-          callers.put(caller, numCalls);
+      if (cSP != 0 && id >= 0) {
+        int callerId = callStack[cSP-1].functionId;
+        if (callerId >= 0) {
+          callerCounts[getCallerSlot(((long) id << 32) | callerId)]++;
         }
-        numCalls.count++;
       }
 
       PrintStream logger = this.logger;
@@ -231,7 +231,7 @@ public class SimpleProfiler implements Profiler, EventListener {
         if ((cspEntry.hide <= 1) && (!hideIRQ || servicedInterrupt == -1)) {
           if (servicedInterrupt >= 0) logger.printf("[%2d] ",servicedInterrupt);
           printSpace(logger, (cSP - interruptLevel) * 2);
-          logger.println("return from " + ce.function.getInfo() + " elapsed: " + elapsed + " maxStackUsage: " + maxUsage);
+          logger.println("return from " + fkn.getInfo() + " elapsed: " + elapsed + " maxStackUsage: " + maxUsage);
         }
       }
 
@@ -245,6 +245,74 @@ public class SimpleProfiler implements Profiler, EventListener {
     newIRQ = false;
   }
 
+  /* Returns the statistics index for the function or -1 if it has none */
+  private int getFunctionId(MapEntry entry) {
+    int id = entry.getId();
+    if (id < 0) {
+      return -1;
+    }
+    if (id >= functions.length) {
+      int size = Math.max(id + 1, Math.max(64, functions.length * 2));
+      functions = Arrays.copyOf(functions, size);
+      functionCycles = Arrays.copyOf(functionCycles, size);
+      functionExclusiveCycles = Arrays.copyOf(functionExclusiveCycles, size);
+      functionCalls = Arrays.copyOf(functionCalls, size);
+    }
+    if (functions[id] != entry) {
+      if (functions[id] != null) {
+        /* the id belongs to another map table (new firmware) - restart its statistics */
+        clearFunction(id);
+      }
+      functions[id] = entry;
+    }
+    return id;
+  }
+
+  private void clearFunction(int id) {
+    functionCycles[id] = 0;
+    functionExclusiveCycles[id] = 0;
+    functionCalls[id] = 0;
+    for (int i = 0, n = callerKeys.length; i < n; i++) {
+      long key = callerKeys[i];
+      if (key != -1 && ((int) (key >> 32) == id || (int) key == id)) {
+        callerCounts[i] = 0;
+      }
+    }
+  }
+
+  private int getCallerSlot(long key) {
+    final long[] keys = callerKeys;
+    final int mask = keys.length - 1;
+    int i = (int) ((key * 0x9e3779b97f4a7c15L) >>> 32) & mask;
+    while (keys[i] != key) {
+      if (keys[i] == -1) {
+        if ((callerCount + 1) * 2 > keys.length) {
+          rehashCallers();
+          return getCallerSlot(key);
+        }
+        keys[i] = key;
+        callerCount++;
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private void rehashCallers() {
+    long[] oldKeys = callerKeys;
+    int[] oldCounts = callerCounts;
+    callerKeys = new long[oldKeys.length * 2];
+    Arrays.fill(callerKeys, -1);
+    callerCounts = new int[oldKeys.length * 2];
+    callerCount = 0;
+    for (int i = 0, n = oldKeys.length; i < n; i++) {
+      if (oldKeys[i] != -1) {
+        callerCounts[getCallerSlot(oldKeys[i])] = oldCounts[i];
+      }
+    }
+  }
+
   public void profileInterrupt(int vector, long cycles) {
     servicedInterrupt = vector;
     interruptFrom = cpu.getPC(); 
@@ -283,18 +351,14 @@ public class SimpleProfiler implements Profiler, EventListener {
   }
 
   public void clearProfile() {
-    if (profileData != null) {
-      CallEntry[] entries =
-        profileData.values().toArray(new CallEntry[profileData.size()]);
-      for (int i = 0, n = entries.length; i < n; i++) {
-        entries[i].cycles = 0;
-        entries[i].calls = 0;
-      }
-      for (int i = 0, n = callStack.length; i < n; i++) {
-        CallEntry e = callStack[i];
-        if (e != null) {
-          e.calls = -1;
-        }
+    Arrays.fill(functionCycles, 0);
+    Arrays.fill(functionExclusiveCycles, 0);
+    Arrays.fill(functionCalls, 0);
+    Arrays.fill(callerCounts, 0);
+    for (int i = 0, n = callStack.length; i < n; i++) {
+      CallEntry e = callStack[i];
+      if (e != null) {
+        e.calls = -1;
       }
     }
   }  
@@ -308,7 +372,19 @@ public class SimpleProfiler implements Profiler, EventListener {
     String profSort = parameters.getProperty(PARAM_SORT_MODE);
     boolean profCallers = parameters.getProperty(PARAM_PROFILE_CALLERS) != null;
     Pattern pattern = null;
-    CallEntry[] entries = profileData.values().toArray(new CallEntry[profileData.size()]);
+    ArrayList<CallEntry> list = new ArrayList<CallEntry>();
+    for (int id = 0, n = functions.length; id < n; id++) {
+      if (functions[id] != null && functionCalls[id] > 0) {
+        CallEntry ce = new CallEntry();
+        ce.function = functions[id];
+        ce.functionId = id;
+        ce.cycles = functionCycles[id];
+        ce.exclusiveCycles = functionExclusiveCycles[id];
+        ce.calls = functionCalls[id];
+        list.add(ce);
+      }
+    }
+    CallEntry[] entries = list.toArray(new CallEntry[list.size()]);
 
     Arrays.sort(entries, new CallEntryComparator(profSort));
     
@@ -357,16 +433,22 @@ public class SimpleProfiler implements Profiler, EventListener {
   }
 
   private void printCallers(CallEntry callEntry, PrintStream out) {
-    HashMap<MapEntry,CallCounter> callers = callEntry.callers;
-    List<Entry<MapEntry,CallCounter>> list = new ArrayList<Entry<MapEntry,CallCounter>>(callers.entrySet());
-    Collections.sort(list, new Comparator<Entry<MapEntry,CallCounter>>() {
-        public int compare(Entry<MapEntry,CallCounter> o1, Entry<MapEntry,CallCounter> o2) {
-          return o2.getValue().compareTo(o1.getValue());
+    /* caller id and number of calls */
+    ArrayList<int[]> list = new ArrayList<int[]>();
+    for (int i = 0, n = callerKeys.length; i < n; i++) {
+      long key = callerKeys[i];
+      if (key != -1 && callerCounts[i] > 0 && (int) (key >> 32) == callEntry.functionId) {
+        list.add(new int[] { (int) key, callerCounts[i] });
+      }
+    }
+    Collections.sort(list, new Comparator<int[]>() {
+        public int compare(int[] o1, int[] o2) {
+          return (o2[1] < o1[1] ? -1 : (o2[1] == o1[1] ? 0 : 1));
         }
     });
-    for (Entry<MapEntry,CallCounter> entry : list) {
-      String functionName = entry.getKey().getName();
-      String callS = "" + entry.getValue().count;
+    for (int[] entry : list) {
+      String functionName = functions[entry[0]].getName();
+      String callS = "" + entry[1];
       printSpace(out, 12 - callS.length());
       out.print(callS);
       printSpace(out, 2);
@@ -245,8 +245,11 @@ public class DebugUI extends JPanel {
 	   } else {
 	     s = "   " + s;
 	   }
-           if (instruction.getFunction() != null) {
-               s += ";   " + instruction.getFunction();
+           /* only name the function where it changes from the row above */
+           String function = instruction.getFunction();
+           DbgInstruction previous = index > 0 ? list.getModel().getElementAt(index - 1) : null;
+           if (function != null && (previous == null || !function.equals(previous.getFunction()))) {
+               s += ";   " + function;
            }
        }
        s=String.format("%1$-" + 60 + "s", s);
@@ -50,6 +50,7 @@ import javax.swing.JPopupMenu;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.Timer;
 
 import se.sics.mspsim.core.StateChangeListener;
 import se.sics.mspsim.core.USARTListener;
@@ -60,6 +61,9 @@ import se.sics.mspsim.util.ServiceComponent;
 public class SerialMon implements USARTListener, StateChangeListener, ServiceComponent {
 
   private static final int MAX_LINES = 200;
+  private static final int MAX_CHARS = 32 * 1024;
+  /* Update the text area at most 25 times per second */
+  private static final int UPDATE_INTERVAL = 40;
 
   private String name;
   private ServiceComponent.Status status = Status.STOPPED;
@@ -73,17 +77,19 @@ public class SerialMon implements USARTListener, StateChangeListener, ServiceCom
   private String[] history = new String[50];
   private int historyPos = 0;
   private int historyCount = 0;
-  private String text = "*** Serial mon for MSPsim ***\n";
+  private final TextRingBuffer text = new TextRingBuffer(MAX_LINES, MAX_CHARS);
+  /* buffer positions of the text shown in the text area */
+  private long shownStart;
+  private long shownEnd;
+  private Timer updateTimer;
 
   private ArrayDeque<String> sendQueue = new ArrayDeque<String>(8);
   private int sendIndex;
 
-  private int lines = 1;
-  private boolean isUpdatePending = false;
-
   public SerialMon(USARTSource usart, String title) {
     this.usart = usart;
     this.title = title;
+    text.append("*** Serial mon for MSPsim ***\n");
   }
 
   public Status getStatus() {
@@ -105,16 +111,19 @@ public class SerialMon implements USARTListener, StateChangeListener, ServiceCom
 			       JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
 			       JScrollPane.HORIZONTAL_SCROLLBAR_NEVER),
 	       BorderLayout.CENTER);
-    textArea.setText(text);
     textArea.setEditable(false);
+    updateText();
 
     JPopupMenu popupMenu = new JPopupMenu();
     JMenuItem clearItem = new JMenuItem("Clear");
     clearItem.addActionListener(new ActionListener() {
 
       public void actionPerformed(ActionEvent e) {
+        synchronized (text) {
+          text.clear();
+          shownStart = shownEnd = text.getEnd();
+        }
         textArea.setText("");
-        lines = 0;
       }
 
     });
@@ -188,6 +197,46 @@ public class SerialMon implements USARTListener, StateChangeListener, ServiceCom
     String key = "usart." + name;
     WindowUtils.restoreWindowBounds(key, window);
     WindowUtils.addSaveOnShutdown(key, window);
+
+    updateTimer = new Timer(UPDATE_INTERVAL, new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        updateText();
+      }
+    });
+  }
+
+  /* Called in the event dispatch thread to show new text */
+  private void updateText() {
+    String newText;
+    int trim;
+    long start, end;
+    synchronized (text) {
+      start = text.getStart();
+      end = text.getEnd();
+      if (end == shownEnd) {
+        /* text is only trimmed when new text is appended */
+        return;
+      }
+      if (start > shownEnd) {
+        /* everything shown has been trimmed */
+        newText = text.toString();
+        trim = -1;
+      } else {
+        newText = text.getText(shownEnd, end);
+        trim = (int) (start - shownStart);
+      }
+    }
+    if (trim < 0) {
+      textArea.setText(newText);
+    } else {
+      if (trim > 0) {
+        textArea.replaceRange(null, 0, trim);
+      }
+      textArea.append(newText);
+    }
+    shownStart = start;
+    shownEnd = end;
+    textArea.setCaretPosition(textArea.getDocument().getLength());
   }
 
   public void start() {
@@ -197,12 +246,14 @@ public class SerialMon implements USARTListener, StateChangeListener, ServiceCom
       usart.addStateChangeListener(this);
     }
     window.setVisible(true);
+    updateTimer.start();
     status = Status.STARTED;
   }
 
   public final void stop() {
     status = Status.STOPPED;
     if (window != null) {
+      updateTimer.stop();
       window.setVisible(false);
     }
     usart.removeUSARTListener(this);
@@ -210,29 +261,9 @@ public class SerialMon implements USARTListener, StateChangeListener, ServiceCom
   }
 
   public void dataReceived(USARTSource source, int data) {
-    if (data == '\n') {
-      if (lines >= MAX_LINES) {
-	int index = text.indexOf('\n');
-	text = text.substring(index + 1);
-      } else {
-	lines++;
-      }
-    }
-    text += (char)data;
-
-    // Collapse several immediate updates
-    if (!isUpdatePending) {
-      isUpdatePending = true;
-      EventQueue.invokeLater(new Runnable() {
-	  public void run() {
-	    isUpdatePending = false;
-
-	    final String newText = text;
-	    textArea.setText(newText);
-	    textArea.setCaretPosition(newText.length());
-	    textArea.repaint();
-	  }
-	});
+    /* the text area is updated by the update timer */
+    synchronized (text) {
+      text.append((char) data);
     }
   }
 
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * -----------------------------------------------------------------
+ *
+ * TextRingBuffer
+ *
+ * Bounded text buffer that keeps the last lines of a character stream.
+ * Characters are appended to a ring and the oldest lines are dropped
+ * when there are too many lines or characters, so appending is
+ * constant time per character. Positions are counted from the first
+ * character ever appended which lets a view find out what has been
+ * appended and trimmed since it was last updated.
+ */
+
+package se.sics.mspsim.ui;
+
+public class TextRingBuffer {
+
+  private final char[] data;
+  private final int maxLines;
+
+  /* ring index of the first character */
+  private int head;
+  private int size;
+  private int lines;
+  /* position of the first character */
+  private long start;
+
+  public TextRingBuffer(int maxLines, int maxChars) {
+    this.maxLines = maxLines;
+    this.data = new char[maxChars];
+  }
+
+  public void append(char c) {
+    if (size == data.length) {
+      removeFirst();
+    }
+    data[(head + size) % data.length] = c;
+    size++;
+    if (c == '\n' && ++lines > maxLines) {
+      /* drop the oldest line including its newline */
+      while (size > 0 && removeFirst() != '\n');
+    }
+  }
+
+  public void append(CharSequence text) {
+    for (int i = 0, n = text.length(); i < n; i++) {
+      append(text.charAt(i));
+    }
+  }
+
+  private char removeFirst() {
+    char c = data[head];
+    head = (head + 1) % data.length;
+    size--;
+    start++;
+    if (c == '\n') {
+      lines--;
+    }
+    return c;
+  }
+
+  /**
+   * Returns the position of the first character in the buffer.
+   */
+  public long getStart() {
+    return start;
+  }
+
+  /**
+   * Returns the position after the last character in the buffer.
+   */
+  public long getEnd() {
+    return start + size;
+  }
+
+  public int length() {
+    return size;
+  }
+
+  /**
+   * Returns the text between the specified positions which must be
+   * within the buffer.
+   */
+  public String getText(long from, long to) {
+    if (from < start || to > start + size || from > to) {
+      throw new IndexOutOfBoundsException("text " + from + '-' + to
+          + " not in " + start + '-' + (start + size));
+    }
+    int len = (int) (to - from);
+    int pos = (head + (int) (from - start)) % data.length;
+    int first = Math.min(len, data.length - pos);
+    StringBuilder sb = new StringBuilder(len);
+    sb.append(data, pos, first);
+    sb.append(data, 0, len - first);
+    return sb.toString();
+  }
+
+  public void clear() {
+    start += size;
+    head = 0;
+    size = 0;
+    lines = 0;
+  }
+
+  public String toString() {
+    return getText(start, start + size);
+  }
+
+}
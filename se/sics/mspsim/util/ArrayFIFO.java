@@ -1,5 +1,9 @@
 package se.sics.mspsim.util;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import se.sics.mspsim.core.EmulationException;
 
 public class ArrayFIFO {
@@ -117,6 +121,21 @@ public class ArrayFIFO {
     }
 
 
+    /* the data itself is kept in the owner's memory */
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(readPos);
+        out.writeInt(writePos);
+        out.writeInt(len);
+        out.writeInt(markWritePos);
+    }
+
+    public void loadState(DataInput in) throws IOException {
+        readPos = in.readInt();
+        writePos = in.readInt();
+        len = in.readInt();
+        markWritePos = in.readInt();
+    }
+
     public String stateToString() {
         return name + " len: " + len + " rpos: " + readPos + " wpos: " + writePos;
     }
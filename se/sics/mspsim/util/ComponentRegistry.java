@@ -34,15 +34,24 @@
  */
 package se.sics.mspsim.util;
 import java.io.PrintStream;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * The registry is kept as an immutable snapshot that is replaced when
+ * components are added or removed so that lookups never need to lock.
+ * Components are indexed by name when the snapshot is created and by
+ * type the first time a type is asked for.
+ */
 public class ComponentRegistry {
 
-    private ArrayList<ComponentEntry> components = new ArrayList<ComponentEntry>();
+    private volatile Snapshot snapshot = new Snapshot(new ComponentEntry[0]);
     private boolean running = false;
 
-    private synchronized ComponentEntry[] getAllEntries() {
-        return components.toArray(new ComponentEntry[components.size()]);
+    private ComponentEntry[] getAllEntries() {
+        return snapshot.entries;
     }
 
     public void registerComponent(String name, Object component) {
@@ -50,7 +59,11 @@ public class ComponentRegistry {
             throw new NullPointerException();
         }
         synchronized (this) {
-            components.add(new ComponentEntry(name, component));
+            ComponentEntry[] entries = snapshot.entries;
+            ComponentEntry[] tmp = new ComponentEntry[entries.length + 1];
+            System.arraycopy(entries, 0, tmp, 0, entries.length);
+            tmp[entries.length] = new ComponentEntry(name, component);
+            snapshot = new Snapshot(tmp);
         }
         if (component instanceof ActiveComponent) {
             ((ActiveComponent)component).init(name, this);
@@ -62,78 +75,71 @@ public class ComponentRegistry {
         }
     }
 
-    public synchronized Object getComponent(String name) {
-        for (ComponentEntry entry : components) {
-            if (name.equals(entry.name)) {
-                return entry.component;
-            }
-        }
-        return null;
+    public Object getComponent(String name) {
+        ComponentEntry[] named = snapshot.names.get(name);
+        return named == null ? null : named[0].component;
     }
 
     public synchronized boolean removeComponent(String name) {
-      ComponentEntry rem = null;
-        for (ComponentEntry entry : components) {
-            if (name.equals(entry.name)) {
-              rem = entry;
-              break;
+        ComponentEntry[] entries = snapshot.entries;
+        for (int i = 0; i < entries.length; i++) {
+            if (name.equals(entries[i].name)) {
+                ComponentEntry[] tmp = new ComponentEntry[entries.length - 1];
+                System.arraycopy(entries, 0, tmp, 0, i);
+                System.arraycopy(entries, i + 1, tmp, i, tmp.length - i);
+                snapshot = new Snapshot(tmp);
+                return true;
             }
         }
-        if (rem == null) {
-          return false;
-        }
-        components.remove(rem);
-        return true;
+        return false;
     }
 
-    public synchronized Object[] getAllComponents(String name) {
-        ArrayList<Object> list = new ArrayList<Object>();
-        for (ComponentEntry entry : components) {
-            if (name.equals(entry.name)) {
-                list.add(entry.component);
-            }
+    public Object[] getAllComponents(String name) {
+        ComponentEntry[] named = snapshot.names.get(name);
+        if (named == null) {
+            return new Object[0];
+        }
+        Object[] list = new Object[named.length];
+        for (int i = 0; i < named.length; i++) {
+            list[i] = named[i].component;
         }
-        return list.toArray();
+        return list;
     }
 
-    public synchronized <T> T getComponent(Class<T> type, String name) {
-        for (ComponentEntry entry : components) {
-            if (type.isInstance(entry.component) && name.equals(entry.name)) {
-                return type.cast(entry.component);
+    public <T> T getComponent(Class<T> type, String name) {
+        ComponentEntry[] named = snapshot.names.get(name);
+        if (named != null) {
+            for (ComponentEntry entry : named) {
+                if (type.isInstance(entry.component)) {
+                    return type.cast(entry.component);
+                }
             }
         }
         return null;
     }
 
     @SuppressWarnings("unchecked")
-    public synchronized <T> T[] getAllComponents(Class<T> type, String name) {
+    public <T> T[] getAllComponents(Class<T> type, String name) {
         ArrayList<T> list = new ArrayList<T>();
-        for (ComponentEntry entry : components) {
-            if (type.isInstance(entry.component) && name.equals(entry.name)) {
-                list.add(type.cast(entry.component));
+        ComponentEntry[] named = snapshot.names.get(name);
+        if (named != null) {
+            for (ComponentEntry entry : named) {
+                if (type.isInstance(entry.component)) {
+                    list.add(type.cast(entry.component));
+                }
             }
         }
-        return list.toArray((T[]) java.lang.reflect.Array.newInstance(type, list.size()));
+        return list.toArray((T[]) Array.newInstance(type, list.size()));
     }
 
-    public synchronized <T> T getComponent(Class<T> type) {
-        for (ComponentEntry entry : components) {
-            if (type.isInstance(entry.component)) {
-                return type.cast(entry.component);
-            }
-        }
-        return null;
+    public <T> T getComponent(Class<T> type) {
+        Object[] typed = snapshot.getComponents(type);
+        return typed.length == 0 ? null : type.cast(typed[0]);
     }
 
     @SuppressWarnings("unchecked")
-    public synchronized <T> T[] getAllComponents(Class<T> type) {
-        ArrayList<T> list = new ArrayList<T>();
-        for (ComponentEntry entry : components) {
-            if (type.isInstance(entry.component)) {
-                list.add(type.cast(entry.component));
-            }
-        }
-        return list.toArray((T[]) java.lang.reflect.Array.newInstance(type, list.size()));
+    public <T> T[] getAllComponents(Class<T> type) {
+        return (T[]) snapshot.getComponents(type).clone();
     }
 
     public void start() {
@@ -169,4 +175,47 @@ public class ComponentRegistry {
         }
     }
 
+    private static class Snapshot {
+        /* All components in registration order */
+        final ComponentEntry[] entries;
+        /* Components with the same name in registration order */
+        final HashMap<String,ComponentEntry[]> names = new HashMap<String,ComponentEntry[]>();
+        /* Arrays of the component type with all components of that type */
+        final ConcurrentHashMap<Class<?>,Object[]> types = new ConcurrentHashMap<Class<?>,Object[]>();
+
+        Snapshot(ComponentEntry[] entries) {
+            this.entries = entries;
+            for (ComponentEntry entry : entries) {
+                ComponentEntry[] named = names.get(entry.name);
+                if (named == null) {
+                    named = new ComponentEntry[] { entry };
+                } else {
+                    ComponentEntry[] tmp = new ComponentEntry[named.length + 1];
+                    System.arraycopy(named, 0, tmp, 0, named.length);
+                    tmp[named.length] = entry;
+                    named = tmp;
+                }
+                names.put(entry.name, named);
+            }
+        }
+
+        Object[] getComponents(Class<?> type) {
+            Object[] typed = types.get(type);
+            if (typed == null) {
+                ArrayList<Object> list = new ArrayList<Object>();
+                for (ComponentEntry entry : entries) {
+                    if (type.isInstance(entry.component)) {
+                        list.add(entry.component);
+                    }
+                }
+                typed = list.toArray((Object[]) Array.newInstance(type, list.size()));
+                Object[] old = types.putIfAbsent(type, typed);
+                if (old != null) {
+                    typed = old;
+                }
+            }
+            return typed;
+        }
+    }
+
 }
@@ -1,6 +1,10 @@
 package se.sics.mspsim.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import se.sics.mspsim.core.EmulationException;
 import se.sics.mspsim.core.EmulationLogger;
@@ -8,14 +12,53 @@ import se.sics.mspsim.core.LogListener;
 import se.sics.mspsim.core.Loggable;
 import se.sics.mspsim.core.MSP430Core;
 
+/**
+ * Emulation logger that prints warnings from a background thread.
+ *
+ * Warnings are recorded with the PC and cycle count at the time of the
+ * warning in a preallocated ring buffer that the emulation threads add
+ * to without locking, and one printing thread shared by all loggers
+ * formats and prints them in order. If the printing can not keep up,
+ * new warnings are dropped and the number of dropped warnings is printed
+ * instead. Log listeners are still called directly by the thread logging
+ * the warning. The printing thread stops when all loggers with warnings
+ * have been closed.
+ */
 public class DefaultEmulationLogger implements EmulationLogger {
 
+  /* Number of warnings that can wait to be printed, a power of two */
+  private static final int QUEUE_SIZE = 1024;
+  /* Maximal time in milliseconds to wait for printing to finish */
+  private static final long MAX_FLUSH_WAIT = 1000;
+
+  /* loggers that have queued warnings and are not closed */
+  private static volatile DefaultEmulationLogger[] printLoggers;
+  private static volatile Thread printThread;
+  private static Thread shutdownHook;
+
   private final MSP430Core cpu;
   private final WarningMode[] warningModes = new WarningMode[WarningType.values().length];
   private WarningMode defaultMode = WarningMode.PRINT;
   private PrintStream out;
   private LogListener[] logListeners;
-  
+
+  /* queued warnings, written before the sequence number is published */
+  private final Loggable[] sources = new Loggable[QUEUE_SIZE];
+  private final WarningType[] types = new WarningType[QUEUE_SIZE];
+  private final String[] messages = new String[QUEUE_SIZE];
+  private final String[] traces = new String[QUEUE_SIZE];
+  private final int[] pcs = new int[QUEUE_SIZE];
+  private final long[] cycles = new long[QUEUE_SIZE];
+  /* sequence number + 1 of the warning in each slot when published */
+  private final AtomicLongArray published = new AtomicLongArray(QUEUE_SIZE);
+  private final AtomicLong writeSequence = new AtomicLong();
+  private final AtomicLong readSequence = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean isRegistered;
+
+  private final ByteArrayOutputStream traceBuffer = new ByteArrayOutputStream();
+  private final PrintStream traceOut = new PrintStream(traceBuffer);
+
   public DefaultEmulationLogger(MSP430Core cpu, PrintStream out) {
     this.cpu = cpu;
     this.out = out;
@@ -29,6 +72,11 @@ public class DefaultEmulationLogger implements EmulationLogger {
       return mode;
   }
 
+  @Override
+  public boolean isEnabled(WarningType type) {
+      return getMode(type) != WarningMode.SILENT || logListeners != null;
+  }
+
   @Override
   public void log(Loggable source, String message) {
 //      out.println(source.getID() + ": " + message);
@@ -47,12 +95,11 @@ public class DefaultEmulationLogger implements EmulationLogger {
       case SILENT:
           break;
       case PRINT:
-          out.println(source.getID() + ": " + message);
-          cpu.generateTrace(out);
+          queue(source, type, message);
           break;
       case EXCEPTION:
-          out.println(source.getID() + ": " + message);
-          cpu.generateTrace(out);
+          queue(source, type, message);
+          flush();
           throw new EmulationException(message);
       }
 
@@ -64,6 +111,176 @@ public class DefaultEmulationLogger implements EmulationLogger {
       }
   }
 
+  private void queue(Loggable source, WarningType type, String message) {
+      long seq;
+      do {
+          seq = writeSequence.get();
+          if (seq - readSequence.get() >= QUEUE_SIZE) {
+              dropped.incrementAndGet();
+              return;
+          }
+      } while (!writeSequence.compareAndSet(seq, seq + 1));
+
+      int slot = (int) seq & (QUEUE_SIZE - 1);
+      sources[slot] = source;
+      types[slot] = type;
+      messages[slot] = message;
+      pcs[slot] = cpu.getPC();
+      cycles[slot] = cpu.cycles;
+      traces[slot] = getTrace();
+      published.lazySet(slot, seq + 1);
+
+      if (!isRegistered) {
+          register(this);
+      } else {
+          Thread thread = printThread;
+          if (thread != null) {
+              LockSupport.unpark(thread);
+          }
+      }
+  }
+
+  /* The stack trace must be generated while the CPU is in the same state */
+  private String getTrace() {
+      if (cpu.getProfiler() == null) {
+          return null;
+      }
+      synchronized (traceBuffer) {
+          traceBuffer.reset();
+          cpu.generateTrace(traceOut);
+          traceOut.flush();
+          return traceBuffer.size() > 0 ? traceBuffer.toString() : null;
+      }
+  }
+
+  private static synchronized void register(DefaultEmulationLogger logger) {
+      if (!logger.isRegistered) {
+          printLoggers = ArrayUtils.add(DefaultEmulationLogger.class, printLoggers, logger);
+          logger.isRegistered = true;
+      }
+      if (printThread == null) {
+          Thread thread = new Thread(new Runnable() {
+              public void run() {
+                  printLoop();
+              }
+          }, "EmulationLogger");
+          thread.setDaemon(true);
+          printThread = thread;
+          thread.start();
+      } else {
+          LockSupport.unpark(printThread);
+      }
+      if (shutdownHook == null) {
+          shutdownHook = new Thread(new Runnable() {
+              public void run() {
+                  DefaultEmulationLogger[] loggers = printLoggers;
+                  if (loggers != null) {
+                      for (DefaultEmulationLogger l : loggers) {
+                          l.flush();
+                      }
+                  }
+              }
+          });
+          Runtime.getRuntime().addShutdownHook(shutdownHook);
+      }
+  }
+
+  private static synchronized void unregister(DefaultEmulationLogger logger) {
+      if (logger.isRegistered) {
+          logger.isRegistered = false;
+          printLoggers = ArrayUtils.remove(printLoggers, logger);
+          if (printLoggers == null) {
+              if (shutdownHook != null) {
+                  try {
+                      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                  } catch (IllegalStateException e) {
+                      // Already shutting down
+                  }
+                  shutdownHook = null;
+              }
+              /* let the printing thread see that there is nothing left */
+              LockSupport.unpark(printThread);
+          }
+      }
+  }
+
+  private static void printLoop() {
+      while (true) {
+          DefaultEmulationLogger[] loggers = printLoggers;
+          if (loggers == null) {
+              synchronized (DefaultEmulationLogger.class) {
+                  if (printLoggers == null) {
+                      printThread = null;
+                      return;
+                  }
+              }
+              continue;
+          }
+          boolean printed = false;
+          for (DefaultEmulationLogger l : loggers) {
+              printed |= l.printQueued();
+          }
+          if (!printed) {
+              /* woken up by the next warning */
+              LockSupport.park();
+          }
+      }
+  }
+
+  /* Prints all published warnings and returns false if there were none */
+  private synchronized boolean printQueued() {
+      long seq = readSequence.get();
+      int slot = (int) seq & (QUEUE_SIZE - 1);
+      if (published.get(slot) != seq + 1) {
+          return false;
+      }
+      do {
+          out.println(sources[slot].getID() + ": " + messages[slot]
+                  + " (" + types[slot] + " at $" + cpu.getAddressAsString(pcs[slot])
+                  + ", cycle " + cycles[slot] + ")");
+          if (traces[slot] != null) {
+              out.print(traces[slot]);
+          }
+          sources[slot] = null;
+          messages[slot] = null;
+          traces[slot] = null;
+          seq++;
+          readSequence.lazySet(seq);
+          slot = (int) seq & (QUEUE_SIZE - 1);
+      } while (published.get(slot) == seq + 1);
+
+      long count = dropped.getAndSet(0);
+      if (count > 0) {
+          out.println("*** " + count + " warnings dropped");
+      }
+      out.flush();
+      return true;
+  }
+
+  /**
+   * Waits until all warnings logged so far have been printed.
+   */
+  public void flush() {
+      long end = writeSequence.get();
+      long timeout = System.currentTimeMillis() + MAX_FLUSH_WAIT;
+      while (readSequence.get() < end && System.currentTimeMillis() < timeout) {
+          if (!printQueued()) {
+              /* a warning is being written by another thread */
+              Thread.yield();
+          }
+      }
+  }
+
+  /**
+   * Prints the remaining warnings and stops printing from the shared
+   * thread. Called when the node is no longer used.
+   */
+  @Override
+  public void close() {
+      flush();
+      unregister(this);
+  }
+
   @Override
   public WarningMode getDefaultWarningMode() {
       return defaultMode;
@@ -37,13 +37,18 @@
 
 package se.sics.mspsim.util;
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import se.sics.mspsim.debug.DwarfReader;
 import se.sics.mspsim.debug.StabDebug;
@@ -55,6 +60,11 @@ public class ELF {
   private static final int[] MAGIC = new int[] {0x7f, 'E', 'L', 'F'};
   
   public static final boolean DEBUG = false;
+
+  /* Parsed ELF files by content hash - shared by all nodes loading the same firmware */
+  private static final HashMap<String,CacheReference> cache =
+      new HashMap<String,CacheReference>();
+  private static final ReferenceQueue<ELF> clearedCache = new ReferenceQueue<ELF>();
   
   
   boolean encMSB = true;
@@ -72,7 +82,7 @@ public class ELF {
   int shnum;
   int shstrndx;
 
-  byte[] elfData;
+  final ByteBuffer elfData;
   private int pos = 0;
 
   private ELFSection sections[];
@@ -84,9 +94,15 @@ public class ELF {
   ELFSection dbgStab;
   public ELFSection dbgStabStr;
 
-  ELFDebug debug;
+  /* the debug information is read on first use */
+  private ELFDebug debug;
+  private boolean debugRead;
 
   public ELF(byte[] data) {
+    this(ByteBuffer.wrap(data));
+  }
+
+  public ELF(ByteBuffer data) {
     elfData = data;
     setPos(0);
   }
@@ -111,17 +127,17 @@ public class ELF {
 
   private void readHeader() throws ELFException {
     for (int i = 0; i < MAGIC.length; i++) {
-      if (elfData[i] != (byte) (MAGIC[i] & 0xff)) {
+      if (elfData.get(i) != (byte) (MAGIC[i] & 0xff)) {
         throw new ELFException("Not an elf file");
       }
     }
     
-    if (elfData[EI_ENCODING] == 2) {
+    if (elfData.get(EI_ENCODING) == 2) {
       encMSB = true;
-    } else if (elfData[EI_ENCODING] == 1) {
+    } else if (elfData.get(EI_ENCODING) == 1) {
       encMSB = false;
     } else {
-      throw new ELFException("Illegal encoding: " + elfData[EI_ENCODING]);
+      throw new ELFException("Illegal encoding: " + elfData.get(EI_ENCODING));
     }
     
     setPos(getPos() + 16);
@@ -219,15 +235,15 @@ public class ELF {
   int readElf32(int pos) {
     int b = 0;
     if (encMSB) {
-      b = (elfData[pos++] & 0xff) << 24 |
-	((elfData[pos++] & 0xff) << 16) |
-	((elfData[pos++] & 0xff) << 8) |
-	(elfData[pos++] & 0xff);
+      b = (elfData.get(pos++) & 0xff) << 24 |
+	((elfData.get(pos++) & 0xff) << 16) |
+	((elfData.get(pos++) & 0xff) << 8) |
+	(elfData.get(pos++) & 0xff);
     } else {
-      b = (elfData[pos++] & 0xff) |
-	((elfData[pos++] & 0xff) << 8) |
-	((elfData[pos++] & 0xff) << 16) |
-	((elfData[pos++] & 0xff) << 24);
+      b = (elfData.get(pos++) & 0xff) |
+	((elfData.get(pos++) & 0xff) << 8) |
+	((elfData.get(pos++) & 0xff) << 16) |
+	((elfData.get(pos++) & 0xff) << 24);
     }
     return b;
   }
@@ -235,17 +251,17 @@ public class ELF {
   int readElf16(int pos) {
     int b = 0;
     if (encMSB) {
-      b = ((elfData[pos++] & 0xff) << 8) |
-	(elfData[pos++] & 0xff);
+      b = ((elfData.get(pos++) & 0xff) << 8) |
+	(elfData.get(pos++) & 0xff);
     } else {
-      b = (elfData[pos++] & 0xff) |
-	((elfData[pos++] & 0xff) << 8);
+      b = (elfData.get(pos++) & 0xff) |
+	((elfData.get(pos++) & 0xff) << 8);
     }
     return b;
   }
 
   int readElf8(int pos) {
-    return elfData[pos++] & 0xff;
+    return elfData.get(pos) & 0xff;
   }
 
   public static void printBytes(String name, byte[] data) {
@@ -270,7 +286,6 @@ public class ELF {
       }
     }
 
-    boolean readDwarf = false;
     /* Find sections */
     for (int i = 0, n = shnum; i < n; i++) {
         String name = sections[i].getSectionName();
@@ -283,17 +298,25 @@ public class ELF {
       if (".stab".equals(name)) {
 	dbgStab = sections[i];
       }
+    }
+  }
+
+  private void readDebug() {
+    boolean readDwarf = false;
+    for (int i = 0, n = shnum; i < n; i++) {
+      String name = sections[i].getSectionName();
       if (".debug_aranges".equals(name) || 
           ".debug_line".equals(name)) {
           readDwarf = true;
       }
     }
-    if (readDwarf) {
+    if (dbgStab != null) {
+      debug = new StabDebug(this, dbgStab, dbgStabStr);
+    } else if (readDwarf) {
         DwarfReader dwarf = new DwarfReader(this);
         dwarf.read();
         debug = dwarf;
     }
-
   }
 
   private void readPrograms() {
@@ -307,16 +330,17 @@ public class ELF {
     }
   }
 
-  public void readAll() throws ELFException {
+  /**
+   * Reads the ELF header and the program and section headers. The debug
+   * sections are read on first use.
+   */
+  public synchronized void readAll() throws ELFException {
     readHeader();
     readPrograms();
     readSections();
-    if (dbgStab != null) {
-      debug = new StabDebug(this, dbgStab, dbgStabStr);
-    }
   }
 
-  public void loadPrograms(int[] memory) {
+  public void loadPrograms(byte[] memory) {
     for (int i = 0, n = phnum; i < n; i++) {
       // paddr or vaddr???
       loadBytes(memory, programs[i].offset, programs[i].paddr,
@@ -324,16 +348,15 @@ public class ELF {
     }
   }
 
-  private void loadBytes(int[] memory, int offset, int addr, int len,
+  private void loadBytes(byte[] memory, int offset, int addr, int len,
 			 int fill) {
     if (DEBUG) {
       System.out.println("Loading " + len + " bytes into " +
              Integer.toString(addr, 16) + " fill " + fill);
     }
-      for (int i = 0, n = len; i < n; i++) {
-          //System.out.print( Integer.toHexString(0x100 |(elfData[offset] & 0xff)).substring(1));
-          memory[addr++] = elfData[offset++] & 0xff;
-    }
+    ByteBuffer data = elfData.duplicate();
+    data.position(offset);
+    data.get(memory, addr, len);
 // Flash is overridden but I want to define the values in the flash class
 //    if (fill > len) {
 //      int n = fill - len;
@@ -346,11 +369,16 @@ public class ELF {
 //    }
   }
 
-  public ELFDebug getDebug() {
+  public synchronized ELFDebug getDebug() {
+    if (!debugRead) {
+      debugRead = true;
+      readDebug();
+    }
     return debug;
   }
 
   public int getPC(String FileName,int line) {
+    ELFDebug debug = getDebug();
     if (debug != null) {
         return debug.getPC(FileName, line);
     }
@@ -359,6 +387,7 @@ public class ELF {
   
   
   public DebugInfo getDebugInfo(int adr) {
+      ELFDebug debug = getDebug();
       if (debug != null) {
           return debug.getDebugInfo(adr);
       }
@@ -366,6 +395,7 @@ public class ELF {
   }
 
   public String lookupFile(int address) {
+    ELFDebug debug = getDebug();
     if (debug != null) {
         DebugInfo di = debug.getDebugInfo(address);
         if (di != null) {
@@ -381,8 +411,9 @@ public class ELF {
     return null;
   }
 
-  public MapTable getMap() {
+  public synchronized MapTable getMap() {
     MapTable map = new MapTable();
+    files.clear();
     int sAddrHighest = -1;
 
     ELFSection name = sections[symTable.link];
@@ -446,7 +477,7 @@ public class ELF {
           if (file == null) {
             file = currentFile;
           }
-	  map.setEntry(new MapEntry(MapEntry.TYPE.function, sAddr, 0, symbolName, file,
+	  map.setEntry(new MapEntry(MapEntry.TYPE.function, sAddr, size, symbolName, file,
 	      bind == ELFSection.SYMBIND_LOCAL));
 	} else if (type == ELFSection.SYMTYPE_OBJECT) {
           String file = lookupFile(sAddr);
@@ -473,24 +504,73 @@ public class ELF {
     return map;
   }
 
+  /**
+   * Reads and parses the specified ELF file. Files with the same
+   * contents are only parsed once and the parsed ELF is shared. The file
+   * is read into memory rather than mapped since the debug information
+   * is parsed later and the file may be rebuilt in the meantime.
+   */
   public static ELF readELF(String file) throws IOException {
-    DataInputStream input = new DataInputStream(new FileInputStream(file));
-    ByteArrayOutputStream baous = new ByteArrayOutputStream();
-    byte[] buf = new byte[2048];
-    for(int read; (read = input.read(buf)) != -1; baous.write(buf, 0, read)) {
-      ;
+    FileInputStream input = new FileInputStream(file);
+    byte[] data;
+    try {
+      data = new byte[(int) input.getChannel().size()];
+      new DataInputStream(input).readFully(data);
+    } finally {
+      input.close();
     }
-    input.close();
-    buf = null;
-    byte[] data = baous.toByteArray();
     if (DEBUG) {
       System.out.println("Length of data: " + data.length);
     }
+    return readELF(data);
+  }
 
-    ELF elf = new ELF(data);
-    elf.readAll();
+  public static ELF readELF(byte[] data) throws IOException {
+    return readELF(ByteBuffer.wrap(data));
+  }
 
-    return elf;
+  private static ELF readELF(ByteBuffer data) throws IOException {
+    String hash = getHash(data);
+    synchronized (cache) {
+      /* forget the files that the garbage collector has already dropped */
+      CacheReference cleared;
+      while ((cleared = (CacheReference) clearedCache.poll()) != null) {
+        if (cache.get(cleared.hash) == cleared) {
+          cache.remove(cleared.hash);
+        }
+      }
+      CacheReference ref = cache.get(hash);
+      ELF elf = ref != null ? ref.get() : null;
+      if (elf == null) {
+        elf = new ELF(data);
+        elf.readAll();
+        cache.put(hash, new CacheReference(hash, elf));
+      }
+      return elf;
+    }
+  }
+
+  private static class CacheReference extends SoftReference<ELF> {
+    final String hash;
+
+    CacheReference(String hash, ELF elf) {
+      super(elf, clearedCache);
+      this.hash = hash;
+    }
+  }
+
+  private static String getHash(ByteBuffer data) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(data.duplicate());
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest.digest()) {
+        sb.append(Utils.hex8(b & 0xff));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("no SHA-1 support", e);
+    }
   }
 
   public static void main(String[] args) throws Exception {
@@ -509,7 +589,7 @@ public class ELF {
           }
           for (int j = 0, m = 2000; j < m; j++) {
             if (DEBUG) {
-              System.out.print((char) elf.elfData[adr++]);
+              System.out.print((char) elf.elfData.get(adr++));
               if (i % 20 == 19) {
                 System.out.println();
               }
@@ -107,6 +107,10 @@ public class ELFSection {
   public int getPosition() {
       return pos;
   }
+
+  public void setPosition(int pos) {
+      this.pos = pos;
+  }
   
   public int getSize() {
       return size;
@@ -116,8 +120,8 @@ public class ELFSection {
     int pos = getOffset() + i;
     StringBuilder sb = new StringBuilder();
     char c;
-    int elfSize = elf.elfData.length;
-    while (pos < elfSize && (c = (char) elf.elfData[pos++]) != 0) {
+    int elfSize = elf.elfData.limit();
+    while (pos < elfSize && (c = (char) elf.elfData.get(pos++)) != 0) {
       sb.append(c);
     }
     return sb.toString();
@@ -55,6 +55,8 @@ public class MapEntry {
   private int dataSize;
   private int bssAddr;
   private int bssSize;
+  /* dense index assigned by the map table */
+  private int id = -1;
   
   public MapEntry(TYPE type, int address, int size, String name, String file, boolean isLocal) {
     this.type = type;
@@ -79,6 +81,19 @@ public class MapEntry {
     this.size = size;
   }
 
+  void setId(int id) {
+    this.id = id;
+  }
+
+  /**
+   * Returns the index of this entry in its map table or -1 if the entry
+   * has not been added to a map table. The indices are dense and can be
+   * used to keep per symbol data in arrays.
+   */
+  public int getId() {
+    return id;
+  }
+
   public int getSize() {
     return size;
   }
@@ -41,6 +41,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.regex.Pattern;
 
@@ -70,7 +72,28 @@ public class MapTable {
 
   private ArrayList<MapEntry> modules = new ArrayList<MapEntry>();
   private ArrayList<MapEntry> entries = new ArrayList<MapEntry>();
-  private HashMap<Integer, MapEntry> addressMap = new HashMap<Integer, MapEntry>();
+
+  /* open addressed address to entry map - looked up for every profiled call */
+  private int[] addressKeys = newAddressKeys(64);
+  private MapEntry[] addressEntries = new MapEntry[64];
+  private int addressCount = 0;
+
+  /* sorted address ranges of all symbols, rebuilt on demand after changes */
+  private static class AddressIndex {
+    final int[] starts;
+    final int[] ends;
+    /* the highest end of all ranges up to and including the index */
+    final int[] maxEnds;
+    final MapEntry[] entries;
+
+    AddressIndex(int size) {
+      starts = new int[size];
+      ends = new int[size];
+      maxEnds = new int[size];
+      entries = new MapEntry[size];
+    }
+  }
+  private AddressIndex addressIndex;
   
   public MapTable() {
   }
@@ -209,7 +232,119 @@ public class MapTable {
   }
 
   public MapEntry getEntry(int address) {
-      return addressMap.get(address);
+      final int[] keys = addressKeys;
+      final int mask = keys.length - 1;
+      for (int i = hash(address) & mask; keys[i] != -1; i = (i + 1) & mask) {
+          if (keys[i] == address) {
+              return addressEntries[i];
+          }
+      }
+      return null;
+  }
+
+  /**
+   * Returns the number of entries in this map table. The entry ids are
+   * in the range 0 to getEntryCount() - 1.
+   */
+  public int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the function or variable that contains the specified address
+   * or null if no symbol covers the address. Functions without a known
+   * size are assumed to extend to the next function. When ranges are
+   * nested the innermost symbol is returned.
+   */
+  public MapEntry getContainingEntry(int address) {
+    AddressIndex index = addressIndex;
+    if (index == null) {
+      index = addressIndex = createAddressIndex();
+    }
+    final int[] starts = index.starts;
+    int low = 0;
+    int high = starts.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (starts[mid] <= address) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    /* low - 1 is the last range starting at or before the address */
+    for (int i = low - 1; i >= 0 && index.maxEnds[i] > address; i--) {
+      if (index.ends[i] > address) {
+        return index.entries[i];
+      }
+    }
+    return null;
+  }
+
+  private AddressIndex createAddressIndex() {
+    ArrayList<MapEntry> symbols = new ArrayList<MapEntry>();
+    for (MapEntry entry : entries) {
+      if (entry.getType() != MapEntry.TYPE.module) {
+        symbols.add(entry);
+      }
+    }
+    final MapEntry[] sorted = symbols.toArray(new MapEntry[symbols.size()]);
+    Arrays.sort(sorted, new Comparator<MapEntry>() {
+      public int compare(MapEntry o1, MapEntry o2) {
+        return o1.getAddress() < o2.getAddress() ? -1 : (o1.getAddress() == o2.getAddress() ? 0 : 1);
+      }
+    });
+
+    final int[] ends = new int[sorted.length];
+    int nextFunction = -1;
+    for (int i = sorted.length - 1; i >= 0; ) {
+      /* all symbols at the same address end at the same next function */
+      int address = sorted[i].getAddress();
+      boolean function = false;
+      for (; i >= 0 && sorted[i].getAddress() == address; i--) {
+        MapEntry entry = sorted[i];
+        if (entry.getSize() > 0) {
+          ends[i] = address + entry.getSize();
+        } else if (entry.getType() == MapEntry.TYPE.function) {
+          ends[i] = nextFunction > 0 ? nextFunction : address + 2;
+        } else {
+          ends[i] = address + 1;
+        }
+        function |= entry.getType() == MapEntry.TYPE.function;
+      }
+      if (function) {
+        nextFunction = address;
+      }
+    }
+
+    /* outer ranges first so that the backwards search finds the innermost */
+    Integer[] order = new Integer[sorted.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer o1, Integer o2) {
+        int s1 = sorted[o1].getAddress();
+        int s2 = sorted[o2].getAddress();
+        if (s1 != s2) {
+          return s1 < s2 ? -1 : 1;
+        }
+        int e1 = ends[o1];
+        int e2 = ends[o2];
+        return e1 > e2 ? -1 : (e1 == e2 ? 0 : 1);
+      }
+    });
+
+    AddressIndex index = new AddressIndex(sorted.length);
+    int maxEnd = 0;
+    for (int i = 0; i < order.length; i++) {
+      index.starts[i] = sorted[order[i]].getAddress();
+      index.ends[i] = ends[order[i]];
+      index.entries[i] = sorted[order[i]];
+      maxEnd = Math.max(maxEnd, index.ends[i]);
+      index.maxEnds[i] = maxEnd;
+    }
+    return index;
   }
 
   public MapEntry[] getAllEntries() {
@@ -233,8 +368,54 @@ public class MapTable {
   }
 
   public void setEntry(MapEntry entry) {
+    if (entry.getId() < 0) {
+      entry.setId(entries.size());
+    }
     entries.add(entry);
-    addressMap.put(entry.getAddress(), entry);
+    putAddress(entry.getAddress(), entry);
+    addressIndex = null;
+  }
+
+  private void putAddress(int address, MapEntry entry) {
+    int mask = addressKeys.length - 1;
+    int i = hash(address) & mask;
+    while (addressKeys[i] != -1 && addressKeys[i] != address) {
+      i = (i + 1) & mask;
+    }
+    if (addressKeys[i] == -1) {
+      if ((addressCount + 1) * 2 > addressKeys.length) {
+        rehash(addressKeys.length * 2);
+        putAddress(address, entry);
+        return;
+      }
+      addressKeys[i] = address;
+      addressCount++;
+    }
+    addressEntries[i] = entry;
+  }
+
+  private void rehash(int size) {
+    int[] oldKeys = addressKeys;
+    MapEntry[] oldEntries = addressEntries;
+    addressKeys = newAddressKeys(size);
+    addressEntries = new MapEntry[size];
+    addressCount = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != -1) {
+        putAddress(oldKeys[i], oldEntries[i]);
+      }
+    }
+  }
+
+  private static int[] newAddressKeys(int size) {
+    int[] keys = new int[size];
+    Arrays.fill(keys, -1);
+    return keys;
+  }
+
+  private static int hash(int address) {
+    int h = address * 0x9e3779b9;
+    return h ^ (h >>> 16);
   }
 
   // Really slow way to find a specific function address!!!!
@@ -36,17 +36,27 @@
  */
 package se.sics.mspsim.util;
 
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
 
 import se.sics.mspsim.chip.PacketListener;
 
 /**
+ * Connects radios in emulators running on the same host. The first
+ * emulator sets up a server that forwards all packets to the others.
+ *
+ * All sockets are handled by one thread using a selector. Each peer has
+ * a bounded ring buffer of packets that are written with gathering
+ * writes. A sender waits while any peer has a full queue and the server
+ * stops reading from a peer while the packets from it can not be
+ * forwarded.
+ *
  * @author joakim
  *
  */
@@ -55,21 +65,35 @@ public class NetworkConnection implements Runnable {
   private final static boolean DEBUG = false;
   private final static int DEFAULT_PORT = 4711;
 
-  private ServerSocket serverSocket = null;
-  private SendThread sendThread = null;
-  private ConnectionThread[] connections = null;
+  /* Maximal number of queued packets per peer */
+  private final static int QUEUE_SIZE = 256;
+
+  private Selector selector;
+  private ServerSocketChannel serverChannel = null;
+  private Thread networkThread;
+  private Connection[] connections = null;
   private PacketListener packetListener;
 
+  /* Guards the send queues of all connections */
+  private final Object queueLock = new Object();
+
   public NetworkConnection() {
+    try {
+      selector = Selector.open();
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
+    }
     if (connect(DEFAULT_PORT)) {
       System.out.println("NetworkConnection: Connected to network...");
     } else {
       setupServer(DEFAULT_PORT);
       System.out.println("NetworkConnection: Setup network server...");
     }
-    sendThread = new SendThread();
+    networkThread = new Thread(this, "NetworkConnection");
+    networkThread.start();
   }
-  
+
   public synchronized void addPacketListener(PacketListener listener) {
       packetListener = PacketListener.Proxy.INSTANCE.add(packetListener, listener);
   }
@@ -80,55 +104,164 @@ public class NetworkConnection implements Runnable {
 
   private void setupServer(int port) {
     try {
-      serverSocket = new ServerSocket(port);
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.socket().setReuseAddress(true);
+      serverChannel.socket().bind(new InetSocketAddress(port));
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
       if (DEBUG) System.out.println("NetworkConnection: setup of server socket finished... ");
-      new Thread(this).start();
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
+  private boolean connect(int port) {
+    try {
+      SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+      addConnection(channel);
+    } catch (IOException e) {
+      return false;
+    }
+    return true;
+  }
+
+  private void addConnection(SocketChannel channel) throws IOException {
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    Connection c = new Connection(channel);
+    c.key = channel.register(selector, SelectionKey.OP_READ, c);
+    synchronized (queueLock) {
+      connections = ArrayUtils.add(Connection.class, connections, c);
+    }
+  }
+
   public void run() {
-    System.out.println("NetworkConnection: Accepting new connections...");
+    if (serverChannel != null) {
+      System.out.println("NetworkConnection: Accepting new connections...");
+    }
     while (true) {
       try {
-        Socket s = serverSocket.accept();
-        if (DEBUG) System.out.println("NetworkConnection: New connection from " + s.getRemoteSocketAddress());
-        connections = ArrayUtils.add(ConnectionThread.class, connections, new ConnectionThread(s));
+        selector.select();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            SocketChannel channel = serverChannel.accept();
+            if (channel != null) {
+              if (DEBUG) System.out.println("NetworkConnection: New connection from " + channel.socket().getRemoteSocketAddress());
+              addConnection(channel);
+            }
+            continue;
+          }
+          Connection c = (Connection) key.attachment();
+          if (key.isWritable() && c.write()) {
+            /* Space was freed - continue forwarding from stalled peers */
+            Connection[] conns = connections;
+            for (int i = 0, n = conns == null ? 0 : conns.length; i < n; i++) {
+              if (conns[i].stalled) {
+                conns[i].processInput();
+              }
+            }
+          }
+          if (key.isValid() && key.isReadable()) {
+            c.read();
+          }
+        }
+        updateInterest();
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
   }
-  
+
+  private void updateInterest() {
+    synchronized (queueLock) {
+      Connection[] conns = connections;
+      if (conns == null) {
+        return;
+      }
+      for (int i = 0, n = conns.length; i < n; i++) {
+        Connection c = conns[i];
+        if (c.key.isValid()) {
+          int ops = c.stalled ? 0 : SelectionKey.OP_READ;
+          if (c.count > 0) {
+            ops |= SelectionKey.OP_WRITE;
+          }
+          if (c.key.interestOps() != ops) {
+            c.key.interestOps(ops);
+          }
+        }
+      }
+    }
+  }
+
   // Data incoming from the network!!! - forward to radio and if server, to
-  // all other nodes
-  private void dataReceived(byte[] data, ConnectionThread source) {
+  // all other nodes. Returns false if the data could not be forwarded yet.
+  private boolean dataReceived(byte[] data, Connection source) {
+    // If this is the server, propagate to the others
+    if (serverChannel != null && !send(data, source, false)) {
+      return false;
+    }
+
     PacketListener listener = this.packetListener;
     if (listener != null) {
       // Send this data to the transmitter in this node!
-      listener.transmissionStarted();      
+      listener.transmissionStarted();
       listener.transmissionEnded(data);
     }
-
-    // And if this is the server, propagate to the others
-    if (serverSocket != null) {
-      dataSent(data, source);
-    }
+    return true;
   }
 
   // Data was sent from the radio in the node (or other node) and should
   // be sent out to other nodes!!!
   public void dataSent(byte[] receivedData) {
-    dataSent(receivedData, null);
+    send(receivedData, null, Thread.currentThread() != networkThread);
   }
 
-  // Data was sent either from radio, or came from another "radio" -
-  // and if so it should be propagated to all others.
-  public void dataSent(byte[] receivedData, ConnectionThread source) {
-    if (connections != null && sendThread != null) {
-      sendThread.send(receivedData, source);
+  /* Queues the data to all peers except the source, waiting for space if specified */
+  private boolean send(byte[] data, Connection source, boolean wait) {
+    synchronized (queueLock) {
+      Connection[] conns = connections;
+      if (conns == null) {
+        return true;
+      }
+      while (isQueueFull(conns, source)) {
+        if (!wait) {
+          return false;
+        }
+        try {
+          queueLock.wait();
+        } catch (InterruptedException e) {
+          return false;
+        }
+        conns = connections;
+      }
+      for (int i = 0, n = conns.length; i < n; i++) {
+        if (conns[i] != source && !conns[i].closed) {
+          conns[i].add(data);
+        }
+      }
+    }
+    if (DEBUG) {
+      printPacket("sent", data);
+    }
+    if (Thread.currentThread() != networkThread) {
+      selector.wakeup();
+    }
+    return true;
+  }
+
+  private static boolean isQueueFull(Connection[] conns, Connection source) {
+    for (int i = 0, n = conns.length; i < n; i++) {
+      if (conns[i] != source && !conns[i].closed && conns[i].count == QUEUE_SIZE) {
+        return true;
+      }
     }
+    return false;
   }
 
   private void printPacket(String prefix, byte[] data) {
@@ -138,132 +271,127 @@ public class NetworkConnection implements Runnable {
     }
     System.out.println();
   }
-  
-  private boolean connect(int port) {
-    try {
-      Socket socket = new Socket("127.0.0.1", port);
-      connections = ArrayUtils.add(ConnectionThread.class, connections, new ConnectionThread(socket));
-    } catch (UnknownHostException e) {
-      return false;
-    } catch (IOException e) {
-      return false;
-    }    
-    return true;
-  }
-
-  private static class SendEvent {
-    public final byte[] data;
-    public final ConnectionThread source;
-    public SendEvent(byte[] data, ConnectionThread source) {
-      this.data = data;
-      this.source = source;
-    }
-  }
 
-  class SendThread implements Runnable {
+  private class Connection {
+    final SocketChannel channel;
+    SelectionKey key;
+    /* Received data not yet handled */
+    ByteBuffer input = ByteBuffer.allocate(4096);
+    /* Packets to send, guarded by queueLock */
+    final ByteBuffer[] queue = new ByteBuffer[QUEUE_SIZE];
+    int head;
+    int count;
+    /* Set while received packets can not be forwarded */
+    boolean stalled;
+    boolean closed;
 
-    private ArrayList<SendEvent> queue = new ArrayList<SendEvent>();
-
-    public SendThread() {
-      new Thread(this).start();
-    }
-
-    public synchronized void send(byte[] receivedData, ConnectionThread source) {
-      queue.add(new SendEvent(receivedData, source));
-      notifyAll();
+    Connection(SocketChannel channel) {
+      this.channel = channel;
     }
 
-    public synchronized SendEvent getNext() throws InterruptedException {
-      while (queue.isEmpty()) {
-        wait();
-      }
-      return queue.remove(0);
+    void add(byte[] data) {
+      queue[(head + count) % QUEUE_SIZE] = ByteBuffer.wrap(data);
+      count++;
     }
 
-    private void sendPacket(SendEvent event) {
-      ConnectionThread[] cthr = connections;
-      if (cthr != null) {
-        for (int i = 0; i < cthr.length; i++) {
-          if (cthr[i].isClosed()) {
-            connections = ArrayUtils.remove(connections, cthr[i]);
-            // Do not write back to the source
-          } else if (cthr[i] != event.source){
-            try {
-              cthr[i].output.write(event.data, 0, event.data.length);
-              cthr[i].output.flush();
-            } catch (IOException e) {
-              e.printStackTrace();
-              cthr[i].close();
+    /* Writes as many queued packets as possible. Returns true if any
+     * packet was completely written. */
+    boolean write() {
+      synchronized (queueLock) {
+        int done = 0;
+        try {
+          while (count > 0) {
+            /* Gather the queued packets up to the end of the ring */
+            int n = Math.min(count, QUEUE_SIZE - head);
+            channel.write(queue, head, n);
+            int written = 0;
+            while (written < n && !queue[head].hasRemaining()) {
+              queue[head] = null;
+              head = (head + 1) % QUEUE_SIZE;
+              count--;
+              written++;
+            }
+            done += written;
+            if (written < n) {
+              /* Socket buffer is full */
+              break;
             }
           }
+        } catch (IOException e) {
+          e.printStackTrace();
+          close();
         }
-        if (DEBUG) {
-//              System.out.println("NetworkConnection: wrote " + receivedData.length + " bytes");
-          printPacket("sent", event.data);
+        if (done > 0) {
+          queueLock.notifyAll();
         }
+        return done > 0;
       }
     }
 
-    public void run() {
+    void read() {
       try {
-        SendEvent event;
-        do {
-          event = getNext();
-          if (event != null) {
-            sendPacket(event);
-          }
-        } while (event != null);
-      } catch (InterruptedException e) {
+        if (!input.hasRemaining()) {
+          ByteBuffer tmp = ByteBuffer.allocate(input.capacity() * 2);
+          input.flip();
+          tmp.put(input);
+          input = tmp;
+        }
+        if (channel.read(input) < 0) {
+          close();
+          return;
+        }
+      } catch (IOException e) {
         e.printStackTrace();
+        close();
+        return;
       }
+      processInput();
     }
-  }
 
-  class ConnectionThread implements Runnable {
-    Socket socket;
-    DataInputStream input;
-    OutputStream output;
-    
-    public ConnectionThread(Socket socket) throws IOException {
-      this.socket = socket;
-      input = new DataInputStream(socket.getInputStream());
-      output = socket.getOutputStream();
-      new Thread(this).start();
-    }
-    
-    public void close() {
-      try {
-        input.close();
-        socket.close();
-      } catch (IOException e) {
-        e.printStackTrace();
+    /* Handles all complete packets in the input buffer */
+    void processInput() {
+      input.flip();
+      stalled = false;
+      while (input.hasRemaining()) {
+        int pos = input.position();
+        int len = input.get(pos) & 0xff;
+        if (len == 0) {
+          input.get();
+          continue;
+        }
+        if (input.remaining() < len + 1) {
+          break;
+        }
+        byte[] buffer = new byte[len + 1];
+        input.get(buffer);
+        if (DEBUG) {
+          printPacket("read", buffer);
+        }
+        if (!dataReceived(buffer, this)) {
+          /* Retry when the other peers have room for the packet */
+          input.position(pos);
+          stalled = true;
+          break;
+        }
       }
-      socket = null;
+      input.compact();
     }
-    
-    public boolean isClosed() {
-      return socket == null;
-    }
-    
-    public void run() {
-      if (DEBUG) System.out.println("NetworkConnection: Started connection thread...");
-      try {
-        while (socket != null) {
-          int len = input.read();
-          if (len > 0) {
-            byte[] buffer = new byte[len + 1];
-            buffer[0] = (byte) (len & 0xff);
-            input.readFully(buffer, 1, len);
-            if (DEBUG) {
-//              System.out.println("NetworkConnection: Read packet with " + len + " bytes");
-              printPacket("read", buffer);
-            }
-            dataReceived(buffer, this);
-          }
+
+    void close() {
+      synchronized (queueLock) {
+        closed = true;
+        connections = ArrayUtils.remove(connections, this);
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+          queue[i] = null;
         }
+        count = 0;
+        queueLock.notifyAll();
+      }
+      key.cancel();
+      try {
+        channel.close();
       } catch (IOException e) {
         e.printStackTrace();
-        close();
       }
     }
   }
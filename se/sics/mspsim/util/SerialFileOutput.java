@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * -----------------------------------------------------------------
+ *
+ * SerialFileOutput
+ *
+ * Writes the output from a USART to a file or named pipe without any
+ * GUI. The output is collected in a buffer and written when the buffer
+ * is full or, at the end of a line, when the last write is older than
+ * the flush interval so that a reader still sees complete lines without
+ * one system call per character. A timer writes output that has been
+ * kept longer than the flush interval when the node goes quiet. The
+ * file name "-" writes to standard output.
+ */
+
+package se.sics.mspsim.util;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import se.sics.mspsim.core.USARTListener;
+import se.sics.mspsim.core.USARTSource;
+
+public class SerialFileOutput implements USARTListener, ServiceComponent {
+
+  private static final int BUFFER_SIZE = 8192;
+  /* Maximal time in nanoseconds to keep a completed line in the buffer */
+  private static final long FLUSH_INTERVAL = 100000000L;
+
+  /* shared by all serial outputs to flush output when nodes are quiet */
+  private static Timer flushTimer;
+
+  private final USARTSource usart;
+  private final String fileName;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  private String name;
+  private Status status = Status.STOPPED;
+  private WritableByteChannel channel;
+  private long lastFlush;
+  private Thread shutdownHook;
+  private TimerTask flushTask;
+
+  public SerialFileOutput(USARTSource usart, String fileName) {
+    this.usart = usart;
+    this.fileName = fileName;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  public void init(String name, ComponentRegistry registry) {
+    this.name = name;
+  }
+
+  public synchronized void start() {
+    if (status == Status.STARTED) {
+      return;
+    }
+    try {
+      if ("-".equals(fileName)) {
+        channel = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+      } else {
+        channel = new FileOutputStream(fileName).getChannel();
+      }
+    } catch (IOException e) {
+      System.err.println("Could not open serial output '" + fileName + "': " + e.getMessage());
+      status = Status.ERROR;
+      return;
+    }
+    buffer.clear();
+    lastFlush = System.nanoTime();
+    shutdownHook = new Thread(new Runnable() {
+      public void run() {
+        flush();
+      }
+    });
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+    flushTask = new TimerTask() {
+      public void run() {
+        flushIfOld();
+      }
+    };
+    getFlushTimer().schedule(flushTask, FLUSH_INTERVAL / 1000000, FLUSH_INTERVAL / 1000000);
+    usart.addUSARTListener(this);
+    status = Status.STARTED;
+  }
+
+  public synchronized void stop() {
+    if (status != Status.STARTED) {
+      return;
+    }
+    usart.removeUSARTListener(this);
+    flushTask.cancel();
+    flushTask = null;
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch (IllegalStateException e) {
+      // Already shutting down
+    }
+    shutdownHook = null;
+    flush();
+    close();
+    status = Status.STOPPED;
+  }
+
+  public synchronized void dataReceived(USARTSource source, int data) {
+    if (channel == null) {
+      return;
+    }
+    buffer.put((byte) data);
+    if (!buffer.hasRemaining()
+        || (data == '\n' && System.nanoTime() - lastFlush >= FLUSH_INTERVAL)) {
+      flush();
+    }
+  }
+
+  private static synchronized Timer getFlushTimer() {
+    if (flushTimer == null) {
+      flushTimer = new Timer("SerialFileOutput", true);
+    }
+    return flushTimer;
+  }
+
+  private synchronized void flushIfOld() {
+    if (buffer.position() > 0 && System.nanoTime() - lastFlush >= FLUSH_INTERVAL) {
+      flush();
+    }
+  }
+
+  public synchronized void flush() {
+    if (channel == null) {
+      return;
+    }
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } catch (IOException e) {
+      /* for example a pipe where the reader has gone away */
+      System.err.println("Could not write serial output '" + fileName + "': " + e.getMessage());
+      usart.removeUSARTListener(this);
+      if (flushTask != null) {
+        flushTask.cancel();
+        flushTask = null;
+      }
+      close();
+      status = Status.ERROR;
+    }
+    buffer.clear();
+    lastFlush = System.nanoTime();
+  }
+
+  private void close() {
+    try {
+      /* standard output is left open for others */
+      if (!"-".equals(fileName)) {
+        channel.close();
+      }
+    } catch (IOException e) {
+      // Ignore
+    }
+    channel = null;
+  }
+
+}
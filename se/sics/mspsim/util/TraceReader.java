@@ -0,0 +1,319 @@
+/**
+ * Copyright (c) 2012, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * -----------------------------------------------------------------
+ *
+ * TraceReader
+ *
+ * Reads execution traces written by TraceRecorder. The block headers
+ * are indexed when the trace is opened so that seeking to a cycle only
+ * decompresses the block containing that cycle.
+ *
+ * Usage: java se.sics.mspsim.util.TraceReader tracefile [cycles [count]]
+ */
+
+package se.sics.mspsim.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import se.sics.mspsim.core.Memory;
+
+public class TraceReader implements Closeable {
+
+  private static final int BLOCK_HEADER_SIZE = 24;
+
+  private final RandomAccessFile file;
+  private final Inflater inflater = new Inflater();
+
+  /* Block index */
+  private long[] offsets = new long[64];
+  private long[] startCycles = new long[64];
+  private long[] endCycles = new long[64];
+  private int blockCount;
+
+  /* Current position */
+  private final long[] records = new long[TraceRecorder.BLOCK_RECORDS];
+  private byte[] compressed = new byte[0];
+  private final byte[] raw = new byte[TraceRecorder.BLOCK_RECORDS * 8];
+  private int block = -1;
+  private int recordCount;
+  private int index;
+  private long record;
+  private long cycles;
+
+  public TraceReader(String filename) throws IOException {
+    file = new RandomAccessFile(filename, "r");
+    if (file.readInt() != TraceRecorder.MAGIC) {
+      file.close();
+      throw new IOException("not an execution trace: " + filename);
+    }
+    int version = file.readInt();
+    if (version != TraceRecorder.VERSION) {
+      file.close();
+      throw new IOException("unsupported trace version " + version + ": " + filename);
+    }
+    long offset = file.getFilePointer();
+    long length = file.length();
+    while (offset + BLOCK_HEADER_SIZE <= length) {
+      file.seek(offset);
+      long start = file.readLong();
+      long end = file.readLong();
+      file.readInt();
+      int size = file.readInt();
+      if (offset + BLOCK_HEADER_SIZE + size > length) {
+        /* Incomplete last block */
+        break;
+      }
+      if (blockCount == offsets.length) {
+        offsets = Arrays.copyOf(offsets, blockCount * 2);
+        startCycles = Arrays.copyOf(startCycles, blockCount * 2);
+        endCycles = Arrays.copyOf(endCycles, blockCount * 2);
+      }
+      offsets[blockCount] = offset;
+      startCycles[blockCount] = start;
+      endCycles[blockCount] = end;
+      blockCount++;
+      offset += BLOCK_HEADER_SIZE + size;
+    }
+  }
+
+  public int getBlockCount() {
+    return blockCount;
+  }
+
+  public long getStartCycles() {
+    return blockCount > 0 ? startCycles[0] : 0;
+  }
+
+  public long getEndCycles() {
+    return blockCount > 0 ? endCycles[blockCount - 1] : 0;
+  }
+
+  private void loadBlock(int b) throws IOException {
+    file.seek(offsets[b]);
+    cycles = file.readLong();
+    file.readLong();
+    recordCount = file.readInt();
+    int size = file.readInt();
+    if (compressed.length < size) {
+      compressed = new byte[size];
+    }
+    file.readFully(compressed, 0, size);
+    inflater.reset();
+    inflater.setInput(compressed, 0, size);
+    try {
+      int len = 0;
+      while (len < recordCount * 8 && !inflater.finished()) {
+        int n = inflater.inflate(raw, len, recordCount * 8 - len);
+        if (n == 0 && inflater.needsInput()) {
+          break;
+        }
+        len += n;
+      }
+      if (len != recordCount * 8) {
+        throw new IOException("truncated trace block " + b);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("corrupt trace block " + b + ": " + e.getMessage());
+    }
+    for (int i = 0, j = 0; i < recordCount; i++) {
+      long v = 0;
+      for (int k = 0; k < 8; k++) {
+        v = (v << 8) | (raw[j++] & 0xff);
+      }
+      records[i] = v;
+    }
+    block = b;
+    index = 0;
+  }
+
+  /**
+   * Positions the reader so that next() returns the first record at
+   * or after the specified cycle count. Returns false if the trace ends
+   * before that cycle count.
+   */
+  public boolean seek(long targetCycles) throws IOException {
+    int low = 0;
+    int high = blockCount - 1;
+    int b = 0;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (startCycles[mid] <= targetCycles) {
+        b = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    /* A block might start at the cycle count where the previous ended */
+    while (b > 0 && startCycles[b] == targetCycles && endCycles[b - 1] >= targetCycles) {
+      b--;
+    }
+    for (; b < blockCount; b++) {
+      if (endCycles[b] < targetCycles) {
+        continue;
+      }
+      loadBlock(b);
+      for (int i = 0; i < recordCount; i++) {
+        long r = records[i];
+        long c = getRecordCycles(r, cycles);
+        if (c >= targetCycles && getType(r) != TraceRecorder.CYCLES) {
+          index = i;
+          return true;
+        }
+        cycles = c;
+      }
+    }
+    block = blockCount;
+    return false;
+  }
+
+  /**
+   * Moves to the next record. Returns false at the end of the trace.
+   */
+  public boolean next() throws IOException {
+    while (true) {
+      if (block < 0) {
+        if (blockCount == 0) {
+          return false;
+        }
+        loadBlock(0);
+      } else if (index >= recordCount) {
+        if (block + 1 >= blockCount) {
+          return false;
+        }
+        loadBlock(block + 1);
+      }
+      record = records[index++];
+      cycles = getRecordCycles(record, cycles);
+      if (getType(record) != TraceRecorder.CYCLES) {
+        return true;
+      }
+    }
+  }
+
+  private static int getType(long r) {
+    return (int) (r >>> TraceRecorder.TYPE_SHIFT);
+  }
+
+  private static long getRecordCycles(long r, long cycles) {
+    switch (getType(r)) {
+    case TraceRecorder.CYCLES:
+      return r & ~(3L << TraceRecorder.TYPE_SHIFT);
+    case TraceRecorder.EXECUTE:
+      return cycles + (r >>> TraceRecorder.DELTA_SHIFT);
+    default:
+      return cycles;
+    }
+  }
+
+  /**
+   * Returns the type of the current record: TraceRecorder.EXECUTE,
+   * TraceRecorder.READ or TraceRecorder.WRITE.
+   */
+  public int getType() {
+    return getType(record);
+  }
+
+  /**
+   * Returns the cycle count after the last executed instruction.
+   */
+  public long getCycles() {
+    return cycles;
+  }
+
+  /**
+   * Returns the PC for executed instructions and the address for
+   * memory accesses.
+   */
+  public int getAddress() {
+    return (int) (record & 0xfffff);
+  }
+
+  public int getSR() {
+    return (int) ((record >> 20) & 0xffff);
+  }
+
+  public int getData() {
+    return (int) (record >> 24);
+  }
+
+  public Memory.AccessMode getAccessMode() {
+    return Memory.AccessMode.values()[(int) (record >> 20) & 3];
+  }
+
+  public Memory.AccessType getAccessType() {
+    return Memory.AccessType.values()[(int) (record >> 22) & 3];
+  }
+
+  public void close() throws IOException {
+    inflater.end();
+    file.close();
+  }
+
+  public String toString() {
+    switch (getType()) {
+    case TraceRecorder.EXECUTE:
+      return cycles + " $" + Utils.hex(getAddress(), 5) + " SR=$" + Utils.hex16(getSR());
+    case TraceRecorder.READ:
+      return cycles + " read " + getAccessType() + ' ' + getAccessMode()
+          + " $" + Utils.hex(getAddress(), 5);
+    default:
+      return cycles + " write " + getAccessMode() + " $" + Utils.hex(getAddress(), 5)
+          + " = $" + Utils.hex(getData(), 4);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 3) {
+      System.err.println("Usage: TraceReader tracefile [cycles [count]]");
+      System.exit(1);
+    }
+    TraceReader reader = new TraceReader(args[0]);
+    try {
+      System.out.println("Trace with " + reader.getBlockCount() + " blocks, cycles "
+          + reader.getStartCycles() + " - " + reader.getEndCycles());
+      if (args.length > 1 && !reader.seek(Long.parseLong(args[1]))) {
+        return;
+      }
+      long count = args.length > 2 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+      for (long i = 0; i < count && reader.next(); i++) {
+        System.out.println(reader);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+}
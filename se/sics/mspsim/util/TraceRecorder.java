@@ -0,0 +1,310 @@
+/**
+ * Copyright (c) 2012, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * -----------------------------------------------------------------
+ *
+ * TraceRecorder
+ *
+ * Streams an execution trace to a file. The execution thread appends
+ * fixed size records to a single producer/single consumer ring buffer
+ * and a background thread packs the records into deflate compressed
+ * blocks. Every block starts with the cycle count at the start of the
+ * block so that a trace can be searched by cycle without decompressing
+ * it (see TraceReader).
+ *
+ * File layout: magic, version and then blocks of
+ *   start cycles (long), end cycles (long), record count (int),
+ *   compressed length (int) and the compressed records.
+ *
+ * Each record is one long with the type in the two highest bits:
+ *   EXECUTE - pc (bits 0-19), sr (bits 20-35) and the number of cycles
+ *             since the previous instruction (bits 36-61)
+ *   READ    - address (bits 0-19), access mode (bits 20-21) and
+ *             access type (bits 22-23)
+ *   WRITE   - address (bits 0-19), access mode (bits 20-21) and
+ *             data (bits 24-55)
+ *   CYCLES  - absolute cycle count (bits 0-61)
+ * The memory accesses made by an instruction, including its fetch,
+ * are recorded before the instruction itself.
+ */
+
+package se.sics.mspsim.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+
+import se.sics.mspsim.core.Memory;
+import se.sics.mspsim.core.MemoryMonitor;
+
+public class TraceRecorder implements MemoryMonitor {
+
+  public static final int MAGIC = 0x4d535054; /* "MSPT" */
+  public static final int VERSION = 1;
+
+  public static final int EXECUTE = 0;
+  public static final int READ = 1;
+  public static final int WRITE = 2;
+  public static final int CYCLES = 3;
+
+  static final int TYPE_SHIFT = 62;
+  static final int DELTA_SHIFT = 36;
+  static final long MAX_DELTA = (1L << 26) - 1;
+
+  /* Number of records per compressed block */
+  static final int BLOCK_RECORDS = 8192;
+
+  /* Records are made visible to the writer thread in batches */
+  private static final int PUBLISH_INTERVAL = 256;
+
+  private final long[] buffer;
+  private final int mask;
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong consumed = new AtomicLong();
+
+  /* Only accessed by the execution thread */
+  private long position;
+  private long consumedCache;
+  private long lastCycles = -1;
+  private long stalls;
+
+  private final DataOutputStream out;
+  private final Thread writer;
+  private volatile boolean closed;
+  private IOException error;
+
+  /* Only accessed by the writer thread */
+  private final long[] block = new long[BLOCK_RECORDS];
+  private final byte[] raw = new byte[BLOCK_RECORDS * 8];
+  private byte[] compressed = new byte[BLOCK_RECORDS * 8];
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private int blockCount;
+  private long blockStart;
+  private long writerCycles;
+
+  /**
+   * Creates a recorder that writes to the specified file. The ring
+   * buffer size is rounded up to a power of two.
+   */
+  public TraceRecorder(String filename, int bufferSize) throws IOException {
+    int size = Integer.highestOneBit(Math.max(bufferSize, BLOCK_RECORDS) - 1) << 1;
+    buffer = new long[size];
+    mask = size - 1;
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    writer = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "trace writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  public TraceRecorder(String filename) throws IOException {
+    this(filename, 1 << 16);
+  }
+
+  /**
+   * Records an executed instruction. The cycles are the cycle count
+   * after the instruction was executed.
+   */
+  public void recordExecution(int pc, int sr, long cycles) {
+    long delta = cycles - lastCycles;
+    if (lastCycles < 0 || delta > MAX_DELTA || delta < 0) {
+      put(((long) CYCLES << TYPE_SHIFT) | (cycles & ~(3L << TYPE_SHIFT)));
+      delta = 0;
+    }
+    lastCycles = cycles;
+    put((delta << DELTA_SHIFT) | ((sr & 0xffffL) << 20) | (pc & 0xfffff));
+  }
+
+  public void notifyReadBefore(int addr, Memory.AccessMode mode, Memory.AccessType type) {
+  }
+
+  public void notifyReadAfter(int addr, Memory.AccessMode mode, Memory.AccessType type) {
+    put(((long) READ << TYPE_SHIFT) | (type.ordinal() << 22) | (mode.ordinal() << 20)
+        | (addr & 0xfffff));
+  }
+
+  public void notifyWriteBefore(int dstAddress, int data, Memory.AccessMode mode) {
+  }
+
+  public void notifyWriteAfter(int dstAddress, int data, Memory.AccessMode mode) {
+    put(((long) WRITE << TYPE_SHIFT) | ((data & 0xffffffffL) << 24) | (mode.ordinal() << 20)
+        | (dstAddress & 0xfffff));
+  }
+
+  private void put(long record) {
+    long pos = position;
+    if (pos - consumedCache >= buffer.length) {
+      waitForSpace(pos);
+    }
+    buffer[(int) pos & mask] = record;
+    position = ++pos;
+    if ((pos & (PUBLISH_INTERVAL - 1)) == 0) {
+      published.lazySet(pos);
+    }
+  }
+
+  /* The writer is behind - wait rather than losing records */
+  private void waitForSpace(long pos) {
+    published.set(pos);
+    stalls++;
+    while (pos - (consumedCache = consumed.get()) >= buffer.length) {
+      if (!writer.isAlive()) {
+        throw new IllegalStateException("trace writer stopped", error);
+      }
+      LockSupport.unpark(writer);
+      Thread.yield();
+    }
+  }
+
+  /**
+   * Makes all recorded records visible to the writer thread. Only
+   * called by the execution thread or when it no longer records.
+   */
+  public void flush() {
+    published.set(position);
+    LockSupport.unpark(writer);
+  }
+
+  /**
+   * Returns the number of times the execution thread had to wait for
+   * the writer thread.
+   */
+  public long getStallCount() {
+    return stalls;
+  }
+
+  public long getRecordCount() {
+    return position;
+  }
+
+  /**
+   * Writes all remaining records and closes the file. The recorder
+   * must first be removed from the CPU so that no more records are
+   * added while closing.
+   */
+  public void close() throws IOException {
+    flush();
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      long pos = 0;
+      while (true) {
+        long available = published.get();
+        if (pos == available) {
+          if (closed && pos == published.get()) {
+            break;
+          }
+          LockSupport.parkNanos(1000000);
+          continue;
+        }
+        for (; pos < available; pos++) {
+          long record = buffer[(int) pos & mask];
+          int type = (int) (record >>> TYPE_SHIFT);
+          if (type == CYCLES) {
+            writerCycles = record & ~(3L << TYPE_SHIFT);
+          }
+          if (blockCount == 0) {
+            blockStart = writerCycles;
+          }
+          if (type == EXECUTE) {
+            writerCycles += record >>> DELTA_SHIFT;
+          }
+          block[blockCount++] = record;
+          if (blockCount == BLOCK_RECORDS) {
+            consumed.lazySet(pos + 1);
+            writeBlock();
+          }
+        }
+        consumed.lazySet(pos);
+      }
+      if (blockCount > 0) {
+        writeBlock();
+      }
+    } catch (IOException e) {
+      error = e;
+    } finally {
+      deflater.end();
+      try {
+        out.close();
+      } catch (IOException e) {
+        if (error == null) {
+          error = e;
+        }
+      }
+    }
+  }
+
+  private void writeBlock() throws IOException {
+    int len = blockCount * 8;
+    for (int i = 0, j = 0; i < blockCount; i++) {
+      long v = block[i];
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        raw[j++] = (byte) (v >>> shift);
+      }
+    }
+    deflater.reset();
+    deflater.setInput(raw, 0, len);
+    deflater.finish();
+    int size = 0;
+    while (!deflater.finished()) {
+      if (size == compressed.length) {
+        compressed = Arrays.copyOf(compressed, size * 2);
+      }
+      size += deflater.deflate(compressed, size, compressed.length - size);
+    }
+    out.writeLong(blockStart);
+    out.writeLong(writerCycles);
+    out.writeInt(blockCount);
+    out.writeInt(size);
+    out.write(compressed, 0, size);
+    blockCount = 0;
+  }
+
+}